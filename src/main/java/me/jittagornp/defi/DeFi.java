@@ -13,6 +13,8 @@ import org.web3j.protocol.core.methods.response.TransactionReceipt;
 
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
@@ -28,33 +30,45 @@ public interface DeFi {
         BSC_MAINNET(
                 "Binance Smart Chain",
                 56L,
-                "https://bsc-dataseed.binance.org",
+                Arrays.asList(
+                        "https://bsc-dataseed.binance.org",
+                        "https://bsc-dataseed1.defibit.io",
+                        "https://bsc-dataseed1.ninicoin.io"
+                ),
                 "0xbb4CdB9CBd36B01bD1cBaEBF2De08d9173bc095c", //WBNB
                 "BNB",
-                "https://bscscan.com"
+                "https://bscscan.com",
+                "0xcA11bde05977b3631167028862bE2a173976CA11" //Multicall3
         ),
         POLYGON_MAINNET(
                 "Polygon (PoS) Chain",
                 137L,
-                "https://rpc-mainnet.maticvigil.com",
+                Arrays.asList(
+                        "https://rpc-mainnet.maticvigil.com",
+                        "https://polygon-rpc.com"
+                ),
                 "0x0d500b1d8e8ef31e21c99d1db9a6444d3adf1270", //WMATIC
                 "MATIC",
-                "https://polygonscan.com"
+                "https://polygonscan.com",
+                "0xcA11bde05977b3631167028862bE2a173976CA11" //Multicall3
         ),
         BITKUB_MAINNET(
                 "Bitkub Chain",
                 96L,
-                "https://rpc.bitkubchain.io",
+                Arrays.asList(
+                        "https://rpc.bitkubchain.io"
+                ),
                 "0x67eBD850304c70d983B2d1b93ea79c7CD6c3F6b5", //KKUB
                 "KUB",
-                "https://bkcscan.com"
+                "https://bkcscan.com",
+                null
         );
 
         private final String name;
 
         private final long chainId;
 
-        private final String rpcURL;
+        private final List<String> rpcURLs;
 
         private final String gasWrappedToken;
 
@@ -62,20 +76,28 @@ public interface DeFi {
 
         private final String explorerURL;
 
+        private final String multicallAddress;
+
         private Network(
                 final String name,
                 final long chainId,
-                final String rpcURL,
+                final List<String> rpcURLs,
                 final String gasWrappedToken,
                 final String gasSymbol,
-                final String explorerURL
+                final String explorerURL,
+                final String multicallAddress
         ) {
             this.name = name;
             this.chainId = chainId;
-            this.rpcURL = rpcURL;
+            this.rpcURLs = Collections.unmodifiableList(rpcURLs);
             this.gasWrappedToken = gasWrappedToken;
             this.gasSymbol = gasSymbol;
             this.explorerURL = explorerURL;
+            this.multicallAddress = multicallAddress;
+        }
+
+        public String getRpcURL() {
+            return rpcURLs.get(0);
         }
     }
 
@@ -139,6 +161,8 @@ public interface DeFi {
 
     void onTransfer(final String token, final Consumer<TransferEvent> consumer);
 
+    CompletableFuture<Long> getTransferEvents(final String token, final BigInteger fromBlock, final BigInteger toBlock, final Consumer<TransferEvent> consumer);
+
     @Data
     @Builder
     class TransferEvent {
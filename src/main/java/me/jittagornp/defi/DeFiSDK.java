@@ -5,41 +5,92 @@ package me.jittagornp.defi;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.reactivex.Flowable;
 import io.reactivex.disposables.Disposable;
+import io.reactivex.schedulers.Schedulers;
+import lombok.Builder;
 import lombok.extern.slf4j.Slf4j;
+import me.jittagornp.defi.amm.ArbitrageDetector;
+import me.jittagornp.defi.amm.ArbitrageOpportunity;
+import me.jittagornp.defi.amm.DepthCurve;
+import me.jittagornp.defi.amm.LocalQuoteEngine;
+import me.jittagornp.defi.amm.PairCrawler;
+import me.jittagornp.defi.amm.PairIndex;
+import me.jittagornp.defi.amm.PairReserves;
+import me.jittagornp.defi.amm.PairAddressResolver;
+import me.jittagornp.defi.amm.PoolStateMirror;
+import me.jittagornp.defi.amm.Route;
+import me.jittagornp.defi.amm.RouteFinder;
+import me.jittagornp.defi.amm.SplitOrder;
+import me.jittagornp.defi.amm.SplitOrderOptimizer;
+import me.jittagornp.defi.cache.BlockCache;
+import me.jittagornp.defi.cache.Cache;
+import me.jittagornp.defi.cache.CacheConfig;
+import me.jittagornp.defi.cache.CacheStats;
+import me.jittagornp.defi.cache.TokenMetadataStore;
+import me.jittagornp.defi.exception.CircuitBreakerOpenException;
 import me.jittagornp.defi.exception.ResponseErrorException;
 import me.jittagornp.defi.model.TokenInfo;
+import me.jittagornp.defi.multicall.MulticallAggregator;
+import me.jittagornp.defi.oracle.GasPriceOracle;
+import me.jittagornp.defi.oracle.TwapOracle;
+import me.jittagornp.defi.rpc.CircuitBreakerListener;
+import me.jittagornp.defi.rpc.HedgingPolicy;
+import me.jittagornp.defi.rpc.RpcEndpointPool;
+import me.jittagornp.defi.rpc.RpcMetrics;
+import me.jittagornp.defi.rpc.RpcTransport;
+import me.jittagornp.defi.rpc.SingleFlight;
+import me.jittagornp.defi.rpc.StreamingLogReader;
+import me.jittagornp.defi.rpc.WebSocketSubscriber;
 import me.jittagornp.defi.smartcontract.ERC20;
+import me.jittagornp.defi.smartcontract.Factory;
+import me.jittagornp.defi.smartcontract.Multicall;
+import me.jittagornp.defi.smartcontract.Pairs;
 import me.jittagornp.defi.smartcontract.Router;
 import me.jittagornp.defi.smartcontract.Wrapped;
+import me.jittagornp.defi.util.WeiConverter;
+import org.web3j.abi.EventEncoder;
+import org.web3j.abi.EventValues;
+import org.web3j.abi.datatypes.Type;
 import org.web3j.crypto.Credentials;
+import org.web3j.crypto.RawTransaction;
 import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.DefaultBlockParameter;
 import org.web3j.protocol.core.DefaultBlockParameterName;
 import org.web3j.protocol.core.RemoteFunctionCall;
 import org.web3j.protocol.core.Response;
+import org.web3j.protocol.core.methods.request.EthFilter;
 import org.web3j.protocol.core.methods.request.Transaction;
 import org.web3j.protocol.core.methods.response.EthBlock;
 import org.web3j.protocol.core.methods.response.EthSendTransaction;
+import org.web3j.protocol.core.methods.response.Log;
 import org.web3j.protocol.core.methods.response.TransactionReceipt;
-import org.web3j.protocol.http.HttpService;
+import org.web3j.tuples.generated.Tuple3;
 import org.web3j.tx.Contract;
-import org.web3j.tx.RawTransactionManager;
+import org.web3j.tx.FastRawTransactionManager;
 import org.web3j.tx.TransactionManager;
 import org.web3j.tx.gas.ContractGasProvider;
 import org.web3j.tx.gas.DefaultGasProvider;
 import org.web3j.tx.response.EmptyTransactionReceipt;
+import org.web3j.utils.Async;
 import org.web3j.utils.Convert;
+import org.web3j.utils.Numeric;
 
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.file.Path;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 /**
@@ -48,25 +99,110 @@ import java.util.stream.Collectors;
 @Slf4j
 public class DeFiSDK implements DeFi {
 
+    private static final long BLOCK_CACHE_POLL_MILLIS = 1_000;
+    private static final long LOCAL_QUOTE_MAX_AGE_MILLIS = 3_000;
+
     private final Network network;
 
     private int defaultSwapDeadlineMinutes = 10;
     private double defaultSwapSlippage = 0.5;
     private double tokenAutoApproveNTimes = 3;
 
+    private final RpcEndpointPool rpcPool;
     private final Web3j web3j;
     private final Credentials credentials;
-    private final TransactionManager transactionManager;
+    private final FastRawTransactionManager transactionManager;
+    //Sends take local nonces under the read lock, a reset waits for the sends in flight so no leg reuses a sibling's nonce
+    private final ReadWriteLock nonceLock = new ReentrantReadWriteLock();
+    private volatile boolean nonceStale;
     private final ContractGasProvider gasProvider = new DefaultGasProvider();
-    private final Map<String, Object> cached = new HashMap<>();
+    private final Cache<String, Contract> contractCache;
+    private final Cache<String, Object> tokenMetadataCache;
+    private final BlockCache blockCache = new BlockCache();
+    private final TokenMetadataStore tokenMetadataStore;
+    private final GasPriceOracle gasPriceOracle;
+    private final TwapOracle twapOracle;
+    private GasPriceOracle.Tier gasPriceTier = GasPriceOracle.Tier.CURRENT;
+    private Disposable blockCacheHeads;
+    private final SingleFlight<String> singleFlight = new SingleFlight<>();
+    private final MulticallAggregator multicall;
+    private final StreamingLogReader logReader;
+    private final PairAddressResolver pairAddressResolver;
+    private final LocalQuoteEngine localQuoteEngine;
+    private boolean localQuoteEnabled;
+    private final PoolStateMirror poolStateMirror;
+    private final Map<String, RouteFinder> routeFinders = new ConcurrentHashMap<>();
+    private List<String> routeConnectors;
+    private int routeMaxHops = RouteFinder.DEFAULT_MAX_HOPS;
+    private boolean multiHopRoutingEnabled;
+    private final SplitOrderOptimizer splitOrderOptimizer;
+    private final ArbitrageDetector arbitrageDetector = new ArbitrageDetector();
+    private WebSocketSubscriber webSocket;
     private Disposable onBlock;
     private Map<String, Disposable> onTransferMap = new HashMap<>();
 
     protected DeFiSDK(final Network network, final Credentials credentials) {
+        this(network, credentials, null, null, null, null);
+    }
+
+    /**
+     * @param rpcURLs   null to use the network RPC URLs
+     * @param transport null to use the process wide {@link RpcTransport#shared()}
+     * @param cacheConfig null to use {@link CacheConfig#defaultConfig()}
+     * @param tokenMetadataStore null to not persist token decimals / name / symbol
+     */
+    @Builder
+    protected DeFiSDK(final Network network, final Credentials credentials, final List<String> rpcURLs, final RpcTransport transport, final CacheConfig cacheConfig, final TokenMetadataStore tokenMetadataStore) {
+        final RpcTransport rpcTransport = transport == null ? RpcTransport.shared() : transport;
+        final List<String> urls = rpcURLs == null ? network.getRpcURLs() : rpcURLs;
+        final CacheConfig caches = cacheConfig == null ? CacheConfig.defaultConfig() : cacheConfig;
         this.network = network;
         this.credentials = credentials;
-        this.web3j = Web3j.build(new HttpService(network.getRpcURL()));
-        this.transactionManager = new RawTransactionManager(web3j, credentials, network.getChainId());
+        this.contractCache = Cache.of("contracts", caches.getContractMaximumSize(), caches.getContractExpireAfterWriteMillis());
+        this.tokenMetadataCache = Cache.of("tokenMetadata", caches.getTokenMetadataMaximumSize(), caches.getTokenMetadataExpireAfterWriteMillis());
+        this.tokenMetadataStore = tokenMetadataStore;
+        this.rpcPool = rpcTransport.getPool(urls);
+        this.web3j = Web3j.build(rpcTransport.getService(urls));
+        this.transactionManager = new NonceTrackingTransactionManager(web3j, credentials, network.getChainId());
+        this.multicall = network.getMulticallAddress() == null ? null : new MulticallAggregator(web3j, _newContract(Multicall.class, network.getMulticallAddress()));
+        this.logReader = new StreamingLogReader(rpcTransport.getClient(), rpcPool);
+        this.gasPriceOracle = new GasPriceOracle(web3j);
+        this.twapOracle = multicall == null ? null : new TwapOracle(multicall, pair -> _loadContract(Pairs.class, pair));
+        this.pairAddressResolver = new PairAddressResolver(new PairAddressResolver.Loader() {
+            @Override
+            public CompletableFuture<String> getFactory(final String swapRouter) {
+                final Router router = _loadContract(Router.class, swapRouter);
+                return _read(router, router.factory());
+            }
+
+            @Override
+            public CompletableFuture<byte[]> getInitCodeHash(final String factory) {
+                final Factory contract = _loadContract(Factory.class, factory);
+                return _read(contract, contract.INIT_CODE_PAIR_HASH());
+            }
+
+            @Override
+            public CompletableFuture<String> getPair(final String factory, final String tokenA, final String tokenB) {
+                final Factory contract = _loadContract(Factory.class, factory);
+                return _read(contract, contract.getPair(tokenA, tokenB));
+            }
+
+            @Override
+            public CompletableFuture<Boolean> hasCode(final String address) {
+                return web3j.ethGetCode(address, DefaultBlockParameterName.LATEST)
+                        .sendAsync()
+                        .thenApply(resp -> {
+                            final String code = _throwIfError("ethGetCode", resp).getCode();
+                            return code != null && Numeric.cleanHexPrefix(code).length() > 0;
+                        });
+            }
+        });
+        this.localQuoteEngine = new LocalQuoteEngine(pairAddressResolver, this::_getReserves, LOCAL_QUOTE_MAX_AGE_MILLIS);
+        this.poolStateMirror = new PoolStateMirror(this::_syncLogFlowable, this::_getReserves);
+        this.localQuoteEngine.setPoolStateMirror(poolStateMirror);
+        this.routeConnectors = Collections.singletonList(network.getGasWrappedToken());
+        this.splitOrderOptimizer = new SplitOrderOptimizer(localQuoteEngine);
+        this.poolStateMirror.addListener(arbitrageDetector::onReserves);
         log.info("Wallet address : {}", getWalletShortAddress());
     }
 
@@ -86,6 +222,10 @@ public class DeFiSDK implements DeFi {
         throw new UnsupportedOperationException("Unsupported network " + network);
     }
 
+    public static DeFiSDK of(final Network network, final Credentials credentials, final List<String> rpcURLs) {
+        return new DeFiSDK(network, credentials, rpcURLs, null, null, null);
+    }
+
     public static DeFiSDK bscMainnet(final Credentials credentials) {
         return new DeFiSDK(Network.BSC_MAINNET, credentials);
     }
@@ -132,6 +272,366 @@ public class DeFiSDK implements DeFi {
         return this;
     }
 
+    /**
+     * Opt-in hedging of idempotent reads across RPC endpoints, null to disable.
+     * Transactions are never hedged. Applies to every DeFiSDK sharing the same transport and RPC URLs.
+     */
+    public DeFiSDK setHedgingPolicy(final HedgingPolicy hedgingPolicy) {
+        rpcPool.setHedgingPolicy(hedgingPolicy);
+        return this;
+    }
+
+    public RpcMetrics getRpcMetrics() {
+        return rpcPool.getMetrics();
+    }
+
+    public CacheStats getContractCacheStats() {
+        return contractCache.stats();
+    }
+
+    public CacheStats getTokenMetadataCacheStats() {
+        return tokenMetadataCache.stats();
+    }
+
+    public CacheStats getBlockCacheStats() {
+        return blockCache.stats();
+    }
+
+    /**
+     * Reuse eth_call results within one block, the cache is dropped on every new head.
+     * Heads come from WebSocket newHeads when {@link #setWebSocketURL(String)} was called before,
+     * otherwise from eth_blockNumber polled every {@value #BLOCK_CACHE_POLL_MILLIS} ms.
+     */
+    public DeFiSDK setBlockCacheEnabled(final boolean enabled) {
+        if (blockCacheHeads != null) {
+            blockCacheHeads.dispose();
+            blockCacheHeads = null;
+        }
+        blockCache.clear();
+        if (!enabled) {
+            return this;
+        }
+        final Flowable<Long> heads = webSocket != null
+                ? webSocket.newHeadFlowable().map(block -> block.getNumber().longValue())
+                : Flowable.interval(0, BLOCK_CACHE_POLL_MILLIS, TimeUnit.MILLISECONDS)
+                .onBackpressureDrop()
+                .concatMap(tick -> web3j.ethBlockNumber()
+                        .flowable()
+                        .subscribeOn(Schedulers.io())
+                        .filter(resp -> !resp.hasError())
+                        .map(resp -> resp.getBlockNumber().longValue())
+                        .onErrorResumeNext(Flowable.<Long>empty()));
+        blockCacheHeads = heads.subscribe(number -> {
+            blockCache.onNewHead(number);
+            gasPriceOracle.onNewHead(number);
+            poolStateMirror.onNewHead(number);
+        }, error -> {
+            log.warn("Block cache heads error : {}", error.getMessage());
+            blockCache.clear();
+        });
+        return this;
+    }
+
+    /**
+     * Called when the circuit breaker of an RPC endpoint changes state,
+     * e.g. pause strategies while {@link #isRpcAvailable()} is false instead of queueing calls that will fail.
+     */
+    public DeFiSDK addCircuitBreakerListener(final CircuitBreakerListener listener) {
+        rpcPool.addCircuitBreakerListener(listener);
+        return this;
+    }
+
+    public DeFiSDK removeCircuitBreakerListener(final CircuitBreakerListener listener) {
+        rpcPool.removeCircuitBreakerListener(listener);
+        return this;
+    }
+
+    /**
+     * At least one RPC endpoint has a closed (or half-open) circuit breaker.
+     */
+    public boolean isRpcAvailable() {
+        return rpcPool.isAvailable();
+    }
+
+    /**
+     * Pair (LP token) address of tokenA / tokenB on the router's factory, computed offline with CREATE2
+     * once the factory and its init code hash are known, no RPC call per pair.
+     */
+    public CompletableFuture<String> getPairAddress(final String swapRouter, final String tokenA, final String tokenB) {
+        return pairAddressResolver.getPairByRouter(swapRouter, tokenA, tokenB);
+    }
+
+    /**
+     * Quote getTokenAmountsOut / getTokenPrice / getTokenInfo locally from pair reserves instead of Router.getAmountsOut,
+     * reserves are reused for {@value #LOCAL_QUOTE_MAX_AGE_MILLIS} ms unless {@link #setLocalQuoteMaxAgeMillis(long)} says otherwise.
+     * Swaps still read amountOutMin from the router.
+     */
+    public DeFiSDK setLocalQuoteEnabled(final boolean enabled) {
+        this.localQuoteEnabled = enabled;
+        return this;
+    }
+
+    public DeFiSDK setLocalQuoteMaxAgeMillis(final long maxAgeMillis) {
+        localQuoteEngine.setMaxAgeMillis(maxAgeMillis);
+        return this;
+    }
+
+    /**
+     * Swap fee of a router, default from {@link LocalQuoteEngine#KNOWN_FEE_BPS} by factory or {@value LocalQuoteEngine#DEFAULT_FEE_BPS} bps.
+     */
+    public DeFiSDK setRouterFeeBps(final String swapRouter, final int feeBps) {
+        localQuoteEngine.setFeeBps(swapRouter, feeBps);
+        return this;
+    }
+
+    /**
+     * Keep the reserves of these pairs in memory from their Sync events (one log subscription for all watched pairs),
+     * local quotes of watched pairs then need no RPC call. Each element is {tokenA, tokenB}.
+     *
+     * @return completes when the reserves of every watched pair are loaded
+     */
+    public CompletableFuture<Void> watchPairs(final String swapRouter, final List<String[]> tokenPairs) {
+        final List<CompletableFuture<Void>> pairs = tokenPairs.stream()
+                .map(tokens -> pairAddressResolver.getPairByRouter(swapRouter, tokens[0], tokens[1])
+                        .thenAccept(pair -> {
+                            poolStateMirror.addPair(pair, tokens[0], tokens[1]);
+                            _getRouteFinder(swapRouter).addPair(pair, tokens[0], tokens[1]);
+                        }))
+                .collect(Collectors.toList());
+        return CompletableFuture.allOf(pairs.toArray(new CompletableFuture<?>[0]))
+                .thenCompose(none -> poolStateMirror.start());
+    }
+
+    public PoolStateMirror getPoolStateMirror() {
+        return poolStateMirror;
+    }
+
+    /**
+     * Sample price0CumulativeLast / price1CumulativeLast of these pairs in the background (one multicall per sample for all pairs),
+     * see {@link #getTwapPrice(String, String, String, long)}. Each element is {tokenA, tokenB}.
+     */
+    public CompletableFuture<Void> watchTwap(final String swapRouter, final List<String[]> tokenPairs) {
+        if (twapOracle == null) {
+            throw new UnsupportedOperationException("TWAP oracle requires Multicall, network " + network);
+        }
+        final List<CompletableFuture<Void>> pairs = tokenPairs.stream()
+                .map(tokens -> pairAddressResolver.getPairByRouter(swapRouter, tokens[0], tokens[1])
+                        .thenAccept(pair -> twapOracle.addPair(pair, tokens[0], tokens[1])))
+                .collect(Collectors.toList());
+        return CompletableFuture.allOf(pairs.toArray(new CompletableFuture<?>[0]))
+                .thenRun(twapOracle::start);
+    }
+
+    /**
+     * Time weighted average price of tokenA in tokenB over the last windowSeconds, read from memory,
+     * null until the pair is watched ({@link #watchTwap(String, List)}) long enough to cover the window.
+     */
+    public CompletableFuture<BigDecimal> getTwapPrice(final String swapRouter, final String tokenA, final String tokenB, final long windowSeconds) {
+        if (twapOracle == null) {
+            throw new UnsupportedOperationException("TWAP oracle requires Multicall, network " + network);
+        }
+        final CompletableFuture<BigInteger> tokenADecimals = _getDecimals(tokenA);
+        final CompletableFuture<BigInteger> tokenBDecimals = _getDecimals(tokenB);
+        final CompletableFuture<String> pair = pairAddressResolver.getPairByRouter(swapRouter, tokenA, tokenB);
+        return CompletableFuture.allOf(tokenADecimals, tokenBDecimals, pair)
+                .thenApply(none -> {
+                    final String pairAddress = _get(pair);
+                    final double price = twapOracle.getTwap(pairAddress, tokenA, windowSeconds);
+                    if (Double.isNaN(price)) {
+                        return null;
+                    }
+                    final BigInteger decimalsA = _get(tokenADecimals);
+                    final BigInteger decimalsB = _get(tokenBDecimals);
+                    return BigDecimal.valueOf(price).scaleByPowerOfTen(decimalsA.intValue() - decimalsB.intValue());
+                });
+    }
+
+    public TwapOracle getTwapOracle() {
+        return twapOracle;
+    }
+
+    /**
+     * Crawl every pair of the router's factory (allPairs, token0 / token1, decimals by multicall) into a PairIndex file in the directory,
+     * the route finder of the router then only looks up pairs that exist. An interrupted crawl resumes from its checkpoint log,
+     * crawling again later only fetches the pairs created since.
+     */
+    public CompletableFuture<PairIndex> crawlPairs(final String swapRouter, final Path directory) {
+        if (multicall == null) {
+            throw new UnsupportedOperationException("Pair crawler requires Multicall, network " + network);
+        }
+        return pairAddressResolver.getFactory(swapRouter)
+                .thenCompose(factory -> {
+                    final PairCrawler crawler;
+                    try {
+                        crawler = PairCrawler.open(
+                                multicall,
+                                _loadContract(Factory.class, factory),
+                                pair -> _loadContract(Pairs.class, pair),
+                                token -> _loadContract(ERC20.class, token),
+                                directory
+                        );
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return crawler.crawl()
+                            .whenComplete((index, error) -> _closeQuietly(crawler));
+                })
+                .thenApply(index -> {
+                    _getRouteFinder(swapRouter).setPairIndex(index);
+                    return index;
+                });
+    }
+
+    /**
+     * Use a PairIndex saved by {@link #crawlPairs(String, Path)} for the router without crawling.
+     */
+    public PairIndex loadPairIndex(final String swapRouter, final Path file) throws IOException {
+        final PairIndex index = PairIndex.load(file);
+        _getRouteFinder(swapRouter).setPairIndex(index);
+        return index;
+    }
+
+    private static void _closeQuietly(final PairCrawler crawler) {
+        try {
+            crawler.close();
+        } catch (IOException e) {
+            log.warn("Close pair crawler error : {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Quote and swap through the best path of up to {@link #setRouteMaxHops(int)} pairs instead of the direct pair only.
+     * Paths go through the route connectors (default the wrapped gas token) and the watched pairs.
+     */
+    public DeFiSDK setMultiHopRoutingEnabled(final boolean enabled) {
+        this.multiHopRoutingEnabled = enabled;
+        return this;
+    }
+
+    /**
+     * Intermediate tokens a route may go through, e.g. wrapped gas token and stablecoins.
+     */
+    public DeFiSDK setRouteConnectors(final List<String> connectors) {
+        this.routeConnectors = new ArrayList<>(connectors);
+        routeFinders.values().forEach(finder -> finder.setConnectors(routeConnectors));
+        return this;
+    }
+
+    public DeFiSDK setRouteMaxHops(final int maxHops) {
+        this.routeMaxHops = maxHops;
+        routeFinders.values().forEach(finder -> finder.setMaxHops(maxHops));
+        return this;
+    }
+
+    /**
+     * Best path from tokenA to tokenB on the router for this amount, amounts are computed from local reserves.
+     */
+    public CompletableFuture<Route> findRoute(final String swapRouter, final String tokenA, final String tokenB, final BigDecimal amount) {
+        return _getDecimals(tokenA)
+                .thenCompose(decimals -> _getRouteFinder(swapRouter).findBestRoute(tokenA, tokenB, _toWei(amount, decimals)));
+    }
+
+    private RouteFinder _getRouteFinder(final String swapRouter) {
+        return routeFinders.computeIfAbsent(swapRouter.toLowerCase(), key -> {
+            final RouteFinder finder = new RouteFinder(swapRouter, pairAddressResolver, localQuoteEngine);
+            finder.setConnectors(routeConnectors);
+            finder.setMaxHops(routeMaxHops);
+            return finder;
+        });
+    }
+
+    /**
+     * Watch the pairs on every router for arbitrage cycles, pairs that don't exist on a router are skipped.
+     * Each Sync of a watched pair re-runs detection around that pair only, see {@link #getArbitrageDetector()} to add listeners.
+     *
+     * @return opportunities of the initial reserves
+     */
+    public CompletableFuture<List<ArbitrageOpportunity>> watchArbitrage(final List<String> swapRouters, final List<String[]> tokenPairs) {
+        final List<CompletableFuture<Void>> pools = new ArrayList<>();
+        for (final String swapRouter : swapRouters) {
+            for (final String[] tokens : tokenPairs) {
+                pools.add(localQuoteEngine.getReserves(swapRouter, tokens[0], tokens[1])
+                        .thenCombine(localQuoteEngine.getFeeBps(swapRouter), (reserves, feeBps) -> {
+                            arbitrageDetector.addPool(swapRouter, reserves.getPair(), tokens[0], tokens[1], feeBps);
+                            arbitrageDetector.setReserves(reserves);
+                            poolStateMirror.addPair(reserves.getPair(), tokens[0], tokens[1]);
+                            return (Void) null;
+                        })
+                        .exceptionally(error -> {
+                            log.debug("No pair {} / {} on {}", tokens[0], tokens[1], swapRouter);
+                            return null;
+                        }));
+            }
+        }
+        return CompletableFuture.allOf(pools.toArray(new CompletableFuture<?>[0]))
+                .thenCompose(none -> poolStateMirror.start())
+                .thenApply(none -> arbitrageDetector.detectAll());
+    }
+
+    public ArbitrageDetector getArbitrageDetector() {
+        return arbitrageDetector;
+    }
+
+    /**
+     * Swap the cycle, one swapExactTokensForTokens per run of hops on the same router (atomic when the whole cycle is on one router).
+     * Each swap requires at least the expected amount less slippage, the last one at least the input amount.
+     */
+    public CompletableFuture<List<TransactionReceipt>> executeArbitrage(final ArbitrageOpportunity opportunity, final double slippage, final int deadlineMinutes) {
+        final BigInteger deadline = BigInteger.valueOf(Instant.now().plusSeconds(60 * deadlineMinutes).toEpochMilli());
+        final List<String> routers = opportunity.getRouters();
+        final List<int[]> segments = new ArrayList<>();
+        int start = 0;
+        for (int i = 1; i <= routers.size(); i++) {
+            if (i == routers.size() || !routers.get(i).equalsIgnoreCase(routers.get(start))) {
+                segments.add(new int[]{start, i});
+                start = i;
+            }
+        }
+        final BigDecimal keep = BigDecimal.ONE.subtract(BigDecimal.valueOf(slippage).divide(BigDecimal.valueOf(100)));
+        CompletableFuture<BigInteger> amountIn = CompletableFuture.completedFuture(opportunity.getAmountIn());
+        final List<TransactionReceipt> receipts = new ArrayList<>();
+        for (int s = 0; s < segments.size(); s++) {
+            final int from = segments.get(s)[0];
+            final int to = segments.get(s)[1];
+            final boolean last = s == segments.size() - 1;
+            final String swapRouter = routers.get(from);
+            final List<String> path = opportunity.getPath().subList(from, to + 1);
+            amountIn = amountIn.thenCompose(in -> {
+                final BigInteger expected = new BigDecimal(opportunity.getAmounts().get(to)).multiply(keep).toBigInteger();
+                final BigInteger amountOutMin = last ? expected.max(opportunity.getAmountIn()) : expected;
+                return _getDecimals(path.get(0))
+                        .thenCompose(decimals -> _autoApprove(path.get(0), _fromWei(in, decimals), swapRouter))
+                        .thenCompose(none -> _sendSwap(swapRouter, path, in, amountOutMin, deadline))
+                        .thenApply(receipt -> {
+                            receipts.add(receipt);
+                            //Next swap spends what this one guaranteed
+                            return amountOutMin;
+                        });
+            });
+        }
+        return amountIn.thenApply(none -> receipts);
+    }
+
+    /**
+     * Init code hash of a factory that has no INIT_CODE_PAIR_HASH() and is not in {@link PairAddressResolver#KNOWN_INIT_CODE_HASHES}.
+     */
+    public DeFiSDK registerInitCodeHash(final String factory, final String initCodeHash) {
+        pairAddressResolver.registerInitCodeHash(factory, initCodeHash);
+        return this;
+    }
+
+    /**
+     * Use eth_subscribe over WebSocket for onBlock / onTransfer instead of HTTP filter polling, null to disable.
+     * Call before onBlock / onTransfer. onBlock blocks still carry their transaction hashes, read over HTTP per head.
+     */
+    public DeFiSDK setWebSocketURL(final String wsURL) {
+        if (webSocket != null) {
+            webSocket.close();
+        }
+        webSocket = wsURL == null ? null : new WebSocketSubscriber(wsURL, web3j, logReader);
+        return this;
+    }
+
     private <T extends Contract> T _newContract(final Class<T> clazz, final String address) {
         try {
             return (T) clazz.getMethod(
@@ -149,25 +649,15 @@ public class DeFiSDK implements DeFi {
 
     private <T extends Contract> T _loadContract(final Class<T> clazz, final String address) {
         final String key = clazz.getSimpleName() + "." + address;
-        T contract = (T) cached.get(key);
-        if (contract == null) {
-            synchronized (this) {
-                contract = _newContract(clazz, address);
-                cached.put(key, contract);
-            }
-        }
-        return contract;
+        return (T) contractCache.get(key, k -> _newContract(clazz, address));
     }
 
     private BigDecimal _fromWei(final BigInteger value, final BigInteger decimals) {
-        final BigDecimal val = new BigDecimal(value.toString());
-        final int d = decimals.intValue();
-        return val.divide(BigDecimal.TEN.pow(d));
+        return WeiConverter.fromWei(value, decimals.intValue());
     }
 
     private BigInteger _toWei(final BigDecimal value, final BigInteger decimals) {
-        final int d = decimals.intValue();
-        return value.multiply(BigDecimal.TEN.pow(d)).toBigInteger();
+        return WeiConverter.toWei(value, decimals.intValue());
     }
 
     private BigDecimal _fromGwei(final BigInteger ether) {
@@ -186,38 +676,112 @@ public class DeFiSDK implements DeFi {
         return response;
     }
 
+    //web3j decodes return values into a raw List<Type>, here and below
+    @SuppressWarnings("rawtypes")
+    private <T> CompletableFuture<T> _read(final Contract contract, final RemoteFunctionCall<T> functionCall, final Function<List<Type>, T> decoder) {
+        final String to = contract.getContractAddress();
+        final String data = functionCall.encodeFunctionCall();
+        return blockCache.get(to, data, () -> singleFlight.execute(SingleFlight.callKey("eth_call", to, data, "latest"), () -> _readFresh(contract, functionCall, decoder)));
+    }
+
+    /**
+     * Neither the block cache nor an in-flight identical call, e.g. after a reorg at the same height
+     */
+    @SuppressWarnings("rawtypes")
+    private <T> CompletableFuture<T> _readFresh(final Contract contract, final RemoteFunctionCall<T> functionCall, final Function<List<Type>, T> decoder) {
+        if (multicall == null) {
+            return functionCall.sendAsync();
+        }
+        return multicall.call(contract.getContractAddress(), functionCall)
+                .thenApply(decoder);
+    }
+
+    private <T> CompletableFuture<T> _read(final Contract contract, final RemoteFunctionCall<T> functionCall) {
+        return _read(contract, functionCall, MulticallAggregator::singleValue);
+    }
+
+    private CompletableFuture<Tuple3<BigInteger, BigInteger, BigInteger>> _getReserves(final String pair) {
+        return _getReserves(pair, false);
+    }
+
+    @SuppressWarnings("rawtypes")
+    private CompletableFuture<Tuple3<BigInteger, BigInteger, BigInteger>> _getReserves(final String pair, final boolean fresh) {
+        final Pairs contract = _loadContract(Pairs.class, pair);
+        final Function<List<Type>, Tuple3<BigInteger, BigInteger, BigInteger>> decoder = values -> new Tuple3<>(
+                (BigInteger) values.get(0).getValue(),
+                (BigInteger) values.get(1).getValue(),
+                (BigInteger) values.get(2).getValue()
+        );
+        return fresh ? _readFresh(contract, contract.getReserves(), decoder) : _read(contract, contract.getReserves(), decoder);
+    }
+
+    private Flowable<Log> _syncLogFlowable(final List<String> pairs) {
+        final String topic = EventEncoder.encode(Pairs.SYNC_EVENT);
+        if (webSocket != null) {
+            return webSocket.logFlowable(pairs, Collections.singletonList(topic));
+        }
+        final EthFilter filter = new EthFilter(DefaultBlockParameterName.LATEST, DefaultBlockParameterName.LATEST, pairs);
+        filter.addSingleTopic(topic);
+        return web3j.ethLogFlowable(filter);
+    }
+
     private CompletableFuture<BigDecimal> _getTokenTotalSupply(final String token, final BigInteger decimals) {
-        return _loadContract(ERC20.class, token)
-                .totalSupply().sendAsync()
+        final ERC20 contract = _loadContract(ERC20.class, token);
+        return _read(contract, contract.totalSupply())
                 .thenApply(totalSupply -> _fromWei(totalSupply, decimals));
     }
 
-    private <T> CompletableFuture<T> _cacheValue(final String key, final RemoteFunctionCall<T> functionCall) {
-        final T value = (T) cached.get(key);
+    private <T> CompletableFuture<T> _cacheValue(final String key, final Supplier<CompletableFuture<T>> supplier) {
+        final T value = (T) tokenMetadataCache.getIfPresent(key);
         if (value == null) {
-            return functionCall.sendAsync()
+            return singleFlight.execute(key, () -> supplier.get()
                     .thenApply(val -> {
-                        cached.put(key, val);
+                        if (val != null) {
+                            tokenMetadataCache.put(key, val);
+                        }
                         return val;
-                    });
+                    }));
         } else {
             return CompletableFuture.completedFuture(value);
         }
     }
 
+    /**
+     * Memory cache, then the persistent store, then the chain.
+     */
+    private <T> CompletableFuture<T> _getTokenMetadata(final String token, final TokenMetadataStore.Field field, final Function<String, T> parser, final Supplier<CompletableFuture<T>> supplier) {
+        final String key = token + "." + field.name().toLowerCase();
+        return _cacheValue(key, () -> {
+            if (tokenMetadataStore == null) {
+                return supplier.get();
+            }
+            final String stored = tokenMetadataStore.get(network.getChainId(), token, field);
+            if (stored != null) {
+                return CompletableFuture.completedFuture(parser.apply(stored));
+            }
+            return supplier.get()
+                    .thenApply(value -> {
+                        if (value != null) {
+                            tokenMetadataStore.put(network.getChainId(), token, field, value.toString());
+                        }
+                        return value;
+                    });
+        });
+    }
+
     private CompletableFuture<BigInteger> _getDecimals(final String token) {
-        final String key = token + ".decimals";
-        return _cacheValue(key, _loadContract(ERC20.class, token).decimals());
+        final ERC20 contract = _loadContract(ERC20.class, token);
+        return _getTokenMetadata(token, TokenMetadataStore.Field.DECIMALS, BigInteger::new, () -> _read(contract, contract.decimals()));
     }
 
     private CompletableFuture<String> _getName(final String token) {
-        final String key = token + ".name";
-        return _cacheValue(key, _loadContract(ERC20.class, token).name());
+        final ERC20 contract = _loadContract(ERC20.class, token);
+        return _getTokenMetadata(token, TokenMetadataStore.Field.NAME, Function.identity(), () -> _read(contract, contract.name()));
     }
 
     private CompletableFuture<String> _getSymbol(final String token) {
-        final String key = token + ".symbol";
-        return _cacheValue(key, _loadContract(ERC20.class, token).symbol());
+        final ERC20 contract = _loadContract(ERC20.class, token);
+        return _getTokenMetadata(token, TokenMetadataStore.Field.SYMBOL, Function.identity(), () -> _read(contract, contract.symbol()));
     }
 
     @Override
@@ -280,9 +844,8 @@ public class DeFiSDK implements DeFi {
     }
 
     public CompletableFuture<BigDecimal> _getTokenBalance(final String token, final BigInteger decimals) {
-        return _loadContract(ERC20.class, token)
-                .balanceOf(credentials.getAddress())
-                .sendAsync()
+        final ERC20 contract = _loadContract(ERC20.class, token);
+        return _read(contract, contract.balanceOf(credentials.getAddress()))
                 .thenApply(balanceOf -> _fromWei(balanceOf, decimals));
     }
 
@@ -297,12 +860,33 @@ public class DeFiSDK implements DeFi {
             return CompletableFuture.completedFuture(BigDecimal.ONE);
         }
         final BigInteger amountIn = _toWei(amount, tokenADecimals);
-        final List<String> path = Arrays.asList(tokenA, tokenB);
-        return _loadContract(Router.class, swapRouter)
-                .getAmountsOut(amountIn, path)
-                .sendAsync()
-                .thenApply(amounts -> (BigInteger) amounts.get(1))
-                .thenApply(amountOut -> _fromWei(amountOut, tokenBDecimals));
+        final CompletableFuture<BigInteger> amountOut;
+        if (multiHopRoutingEnabled) {
+            amountOut = _getRouteFinder(swapRouter).findBestRoute(tokenA, tokenB, amountIn)
+                    .thenCompose(route -> localQuoteEnabled
+                            ? CompletableFuture.completedFuture(route.getAmountOut())
+                            : _getRouterAmountsOut(swapRouter, route.getPath(), amountIn));
+        } else if (localQuoteEnabled) {
+            amountOut = localQuoteEngine.getAmountsOut(swapRouter, amountIn, Arrays.asList(tokenA, tokenB))
+                    .thenApply(amounts -> amounts.get(1));
+        } else {
+            amountOut = _getRouterAmountsOut(swapRouter, Arrays.asList(tokenA, tokenB), amountIn);
+        }
+        return amountOut.thenApply(value -> _fromWei(value, tokenBDecimals));
+    }
+
+    private CompletableFuture<BigInteger> _getRouterAmountsOut(final String swapRouter, final List<String> path, final BigInteger amountIn) {
+        final Router router = _loadContract(Router.class, swapRouter);
+        return _read(router, router.getAmountsOut(amountIn, path), MulticallAggregator::listValue)
+                .thenApply(amounts -> (BigInteger) amounts.get(amounts.size() - 1));
+    }
+
+    private CompletableFuture<List<String>> _getSwapPath(final String swapRouter, final String tokenA, final String tokenB, final BigInteger amountIn) {
+        if (!multiHopRoutingEnabled) {
+            return CompletableFuture.completedFuture(Arrays.asList(tokenA, tokenB));
+        }
+        return _getRouteFinder(swapRouter).findBestRoute(tokenA, tokenB, amountIn)
+                .thenApply(Route::getPath);
     }
 
     @Override
@@ -314,6 +898,43 @@ public class DeFiSDK implements DeFi {
 
     }
 
+    /**
+     * Amount out, effective price and price impact of every amount on the tokenA / tokenB pair,
+     * computed locally from one reserves read instead of one getAmountsOut call per amount.
+     */
+    public CompletableFuture<DepthCurve> getDepthCurve(final String swapRouter, final String tokenA, final String tokenB, final List<BigDecimal> amounts) {
+        final CompletableFuture<BigInteger> tokenADecimals = _getDecimals(tokenA);
+        final CompletableFuture<BigInteger> tokenBDecimals = _getDecimals(tokenB);
+        final CompletableFuture<PairReserves> reserves = localQuoteEngine.getReserves(swapRouter, tokenA, tokenB);
+        final CompletableFuture<Integer> feeBps = localQuoteEngine.getFeeBps(swapRouter);
+        return CompletableFuture.allOf(tokenADecimals, tokenBDecimals, reserves, feeBps)
+                .thenApply(none -> {
+                    final BigInteger decimalsIn = _get(tokenADecimals);
+                    final BigInteger decimalsOut = _get(tokenBDecimals);
+                    final List<BigInteger> amountsIn = new ArrayList<>(amounts.size());
+                    for (final BigDecimal amount : amounts) {
+                        amountsIn.add(_toWei(amount, decimalsIn));
+                    }
+                    return DepthCurve.of(
+                            swapRouter,
+                            _get(reserves),
+                            tokenA,
+                            _get(feeBps),
+                            decimalsIn.intValue(),
+                            decimalsOut.intValue(),
+                            amountsIn
+                    );
+                });
+    }
+
+    /**
+     * Largest amount of tokenA to swap with a price impact (percent, swap fee included) of at most priceImpact
+     */
+    public CompletableFuture<BigDecimal> getMaxAmountInForPriceImpact(final String swapRouter, final String tokenA, final String tokenB, final double priceImpact) {
+        return getDepthCurve(swapRouter, tokenA, tokenB, Collections.emptyList())
+                .thenApply(curve -> _fromWei(curve.getMaxAmountIn(priceImpact), BigInteger.valueOf(curve.getDecimalsIn())));
+    }
+
     @Override
     public CompletableFuture<BigDecimal> getTokenAmountsOutMin(final String swapRouter, final String tokenA, final String tokenB, final BigDecimal amount, final double slippage) {
         return getTokenAmountsOut(swapRouter, tokenA, tokenB, amount)
@@ -334,11 +955,10 @@ public class DeFiSDK implements DeFi {
         return getTokenAmountsOut(swapRouter, tokenA, tokenB, BigDecimal.ONE);
     }
 
-    private Transaction _createTransaction(final String contractAddress, final String data, final BigDecimal value) {
+    private Transaction _createTransaction(final String contractAddress, final String data, final BigDecimal value, final BigInteger gasPrice) {
         final String from = credentials.getAddress();
         final int RANDOM_RANGE = 100000;
         final BigInteger nonce = BigInteger.valueOf((long) (Math.random() * RANDOM_RANGE) % RANDOM_RANGE);
-        final BigInteger gasPrice = _get(_getGasPrice());
         final BigInteger gasLimit = gasProvider.getGasLimit(null);
         final String to = contractAddress;
         final BigInteger val = _toWei(value, BigInteger.valueOf(18)); //TODO : Fixed value
@@ -346,14 +966,13 @@ public class DeFiSDK implements DeFi {
     }
 
     private CompletableFuture<TransactionReceipt> _sendTransaction(final String contractAddress, final String data, final BigDecimal value, final String func) {
-        return web3j.ethEstimateGas(_createTransaction(contractAddress, data, value))
+        return _getGasPrice().thenCompose(gasPrice -> web3j.ethEstimateGas(_createTransaction(contractAddress, data, value, gasPrice))
                 .sendAsync()
                 .thenApply(resp -> _throwIfError("ethEstimateGas", resp))
                 .thenCompose(resp -> {
                     try {
-                        final BigInteger gasPrice = _get(_getGasPrice());
                         log.info("Tx \"{}\" : Estimate gas limit = {}, gas price = {}", func, resp.getAmountUsed(), gasPrice);
-                        final EthSendTransaction tx = transactionManager.sendTransaction(
+                        final EthSendTransaction tx = _sendRawTransaction(
                                 gasPrice,
                                 resp.getAmountUsed(),
                                 contractAddress,
@@ -367,7 +986,40 @@ public class DeFiSDK implements DeFi {
                         log.error("Send Transaction error ", e);
                         throw new RuntimeException(e);
                     }
-                });
+                }));
+    }
+
+    private EthSendTransaction _sendRawTransaction(final BigInteger gasPrice, final BigInteger gasLimit, final String to, final String data, final BigInteger value) throws IOException {
+        if (nonceStale) {
+            _resetNonce();
+        }
+        boolean sent = false;
+        nonceLock.readLock().lock();
+        try {
+            final EthSendTransaction tx = transactionManager.sendTransaction(gasPrice, gasLimit, to, data, value);
+            sent = !tx.hasError();
+            return tx;
+        } finally {
+            nonceLock.readLock().unlock();
+            if (!sent) {
+                //The local nonce was taken, sent or not (timeout, open circuit) : re-read the pending count
+                _resetNonce();
+            }
+        }
+    }
+
+    private void _resetNonce() {
+        nonceLock.writeLock().lock();
+        try {
+            transactionManager.resetNonce();
+            nonceStale = false;
+        } catch (IOException | RuntimeException e) {
+            //Try again before the next send
+            log.warn("Reset nonce error ", e);
+            nonceStale = true;
+        } finally {
+            nonceLock.writeLock().unlock();
+        }
     }
 
     @Override
@@ -397,44 +1049,51 @@ public class DeFiSDK implements DeFi {
         final CompletableFuture<BigInteger> tokenBDecimals = _getDecimals(tokenB);
         return CompletableFuture.allOf(tokenADecimals, tokenBDecimals)
                 .thenCompose(none -> {
-                    final BigInteger aDecimals = _get(tokenADecimals);
-                    final BigInteger bDecimals = _get(tokenBDecimals);
-                    return _getTokenAmountsOut(swapRouter, tokenA, aDecimals, tokenB, bDecimals, amount)
-                            .thenCompose(receiveAmount -> {
-                                final BigInteger amountOut = _toWei(getAmountOutMin(receiveAmount, slippage), bDecimals);
-                                final BigInteger deadline = BigInteger.valueOf(Instant.now().plusSeconds(60 * deadlineMinutes).toEpochMilli());
-                                final BigInteger amountIn = _toWei(amount, aDecimals);
-                                final List<String> path = Arrays.asList(tokenA, tokenB);
-                                log.info("amount = {}", amount);
-                                log.info("slippage = {}", slippage);
-                                log.info("receiveAmount = {}", receiveAmount);
-                                log.info("amountOut = {}", amountOut);
-                                log.info("deadline = {}", deadline);
-                                log.info("path = {}", path);
-                                return _sendTransaction(
-                                        swapRouter,
-                                        _loadContract(Router.class, swapRouter)
-                                                .swapExactTokensForTokens(
-                                                        amountIn,
-                                                        amountOut,
-                                                        path,
-                                                        credentials.getAddress(),
-                                                        deadline
-                                                ).encodeFunctionCall(),
-                                        BigDecimal.ZERO,
-                                        "Router.swapExactTokensForTokens(amountIn, amountOutMin, path, to, deadline)"
-                                );
-                            });
+                    final BigInteger amountIn = _toWei(amount, _get(tokenADecimals));
+                    return _getSwapPath(swapRouter, tokenA, tokenB, amountIn)
+                            .thenCompose(path -> _swapExactTokensForTokens(swapRouter, path, amountIn, _get(tokenBDecimals), slippage, deadlineMinutes));
+                });
+    }
+
+    private CompletableFuture<TransactionReceipt> _swapExactTokensForTokens(final String swapRouter, final List<String> path, final BigInteger amountIn, final BigInteger tokenBDecimals, final double slippage, final int deadlineMinutes) {
+        return _getRouterAmountsOut(swapRouter, path, amountIn)
+                .thenCompose(receiveWei -> {
+                    final BigDecimal receiveAmount = _fromWei(receiveWei, tokenBDecimals);
+                    final BigInteger amountOut = _toWei(getAmountOutMin(receiveAmount, slippage), tokenBDecimals);
+                    final BigInteger deadline = BigInteger.valueOf(Instant.now().plusSeconds(60 * deadlineMinutes).toEpochMilli());
+                    log.info("swapRouter = {}", swapRouter);
+                    log.info("amountIn = {}", amountIn);
+                    log.info("slippage = {}", slippage);
+                    log.info("receiveAmount = {}", receiveAmount);
+                    log.info("amountOut = {}", amountOut);
+                    log.info("deadline = {}", deadline);
+                    log.info("path = {}", path);
+                    return _sendSwap(swapRouter, path, amountIn, amountOut, deadline);
                 });
     }
 
+    private CompletableFuture<TransactionReceipt> _sendSwap(final String swapRouter, final List<String> path, final BigInteger amountIn, final BigInteger amountOutMin, final BigInteger deadline) {
+        return _sendTransaction(
+                swapRouter,
+                _loadContract(Router.class, swapRouter)
+                        .swapExactTokensForTokens(
+                                amountIn,
+                                amountOutMin,
+                                path,
+                                credentials.getAddress(),
+                                deadline
+                        ).encodeFunctionCall(),
+                BigDecimal.ZERO,
+                "Router.swapExactTokensForTokens(amountIn, amountOutMin, path, to, deadline)"
+        );
+    }
+
     @Override
     public CompletableFuture<BigDecimal> getTokenAllowance(final String token, final String contractAddress) {
         return _getDecimals(token)
                 .thenCompose(decimals -> {
-                    return _loadContract(ERC20.class, token)
-                            .allowance(credentials.getAddress(), contractAddress)
-                            .sendAsync()
+                    final ERC20 contract = _loadContract(ERC20.class, token);
+                    return _read(contract, contract.allowance(credentials.getAddress(), contractAddress))
                             .thenApply(allowance -> _fromWei(allowance, decimals));
                 });
     }
@@ -464,18 +1123,32 @@ public class DeFiSDK implements DeFi {
 
     @Override
     public CompletableFuture<TransactionReceipt> tokenSwapAndAutoApprove(final String swapRouter, final String tokenA, final String tokenB, final BigDecimal amount, final double slippage, final int deadlineMinutes) {
-        return getTokenAllowance(tokenA, swapRouter)
+        return _autoApprove(tokenA, amount, swapRouter)
+                .thenCompose(none -> _swap(swapRouter, tokenA, tokenB, amount, slippage, deadlineMinutes));
+    }
+
+    private CompletableFuture<Void> _requireAllowance(final String token, final BigDecimal amount, final String contractAddress) {
+        return getTokenAllowance(token, contractAddress)
+                .thenAccept(allowance -> {
+                    if (allowance.compareTo(amount) < 0) {
+                        throw new RuntimeException("Please call .tokenApprove(token, amount, contractAddress) before swap on " + contractAddress);
+                    }
+                });
+    }
+
+    private CompletableFuture<Void> _autoApprove(final String token, final BigDecimal amount, final String contractAddress) {
+        return getTokenAllowance(token, contractAddress)
                 .thenCompose(allowance -> {
-                    log.info("Allowance Token \"{}\" amount {} for Contract \"{}\"", tokenA, allowance, swapRouter);
+                    log.info("Allowance Token \"{}\" amount {} for Contract \"{}\"", token, allowance, contractAddress);
                     boolean isLessThan = allowance.compareTo(amount) < 0;
                     if (isLessThan) {
                         final BigDecimal times = BigDecimal.valueOf(tokenAutoApproveNTimes);
                         final BigDecimal approvedAmount = times.multiply(amount);
                         log.info("Approved amount = {}", approvedAmount);
-                        return tokenApprove(tokenA, approvedAmount, swapRouter)
-                                .thenCompose(tx -> _swap(swapRouter, tokenA, tokenB, amount, slippage, deadlineMinutes));
+                        return tokenApprove(token, approvedAmount, contractAddress)
+                                .thenApply(tx -> null);
                     }
-                    return _swap(swapRouter, tokenA, tokenB, amount, slippage, deadlineMinutes);
+                    return CompletableFuture.completedFuture(null);
                 });
     }
 
@@ -498,10 +1171,22 @@ public class DeFiSDK implements DeFi {
     }
 
     private CompletableFuture<BigInteger> _getGasPrice() {
-        return web3j.ethGasPrice()
+        return _getGasPrice(gasPriceTier);
+    }
+
+    /**
+     * From the oracle (started on first use), eth_gasPrice until the oracle has a value.
+     */
+    private CompletableFuture<BigInteger> _getGasPrice(final GasPriceOracle.Tier tier) {
+        gasPriceOracle.start();
+        final BigInteger gasPrice = gasPriceOracle.getGasPrice(tier);
+        if (gasPrice != null) {
+            return CompletableFuture.completedFuture(gasPrice);
+        }
+        return singleFlight.execute(SingleFlight.callKey("eth_gasPrice", null, null, "latest"), () -> web3j.ethGasPrice()
                 .sendAsync()
                 .thenApply(resp -> _throwIfError("ethGasPrice", resp))
-                .thenApply(resp -> resp.getGasPrice());
+                .thenApply(resp -> resp.getGasPrice()));
     }
 
     @Override
@@ -510,6 +1195,19 @@ public class DeFiSDK implements DeFi {
                 .thenApply(this::_fromGwei);
     }
 
+    public CompletableFuture<BigDecimal> getGasPrice(final GasPriceOracle.Tier tier) {
+        return _getGasPrice(tier)
+                .thenApply(this::_fromGwei);
+    }
+
+    /**
+     * Gas price tier used by transactions and {@link #getGasPrice()}, default {@link GasPriceOracle.Tier#CURRENT}.
+     */
+    public DeFiSDK setGasPriceTier(final GasPriceOracle.Tier gasPriceTier) {
+        this.gasPriceTier = gasPriceTier;
+        return this;
+    }
+
     @Override
     public CompletableFuture<TransactionReceipt> tokenTransfer(final String token, String recipient, final BigDecimal amount) {
         return _getDecimals(token)
@@ -525,6 +1223,77 @@ public class DeFiSDK implements DeFi {
                 });
     }
 
+    /**
+     * Split of the amount across the routers that gives the most tokenB (equal marginal price on every leg),
+     * each leg uses the best route of its router when multi-hop routing is enabled, otherwise the direct pair.
+     */
+    public CompletableFuture<SplitOrder> getSplitOrder(final List<String> swapRouters, final String tokenA, final String tokenB, final BigDecimal amount) {
+        return _getDecimals(tokenA)
+                .thenCompose(decimals -> _getSplitOrder(swapRouters, tokenA, tokenB, _toWei(amount, decimals)));
+    }
+
+    private CompletableFuture<SplitOrder> _getSplitOrder(final List<String> swapRouters, final String tokenA, final String tokenB, final BigInteger amountIn) {
+        final Map<String, List<String>> paths = new LinkedHashMap<>();
+        final List<CompletableFuture<Void>> routes = new ArrayList<>();
+        for (final String swapRouter : swapRouters) {
+            routes.add(_getSwapPath(swapRouter, tokenA, tokenB, amountIn)
+                    .handle((path, error) -> {
+                        if (path != null) {
+                            synchronized (paths) {
+                                paths.put(swapRouter, path);
+                            }
+                        }
+                        return null;
+                    }));
+        }
+        return CompletableFuture.allOf(routes.toArray(new CompletableFuture<?>[0]))
+                .thenCompose(none -> splitOrderOptimizer.optimize(paths, amountIn));
+    }
+
+    /**
+     * Swap split across routers, legs are sent together (local nonces) and swapped concurrently.
+     * Every router must already be approved for its leg.
+     */
+    public CompletableFuture<List<TransactionReceipt>> tokenSwapSplit(final List<String> swapRouters, final String tokenA, final String tokenB, final BigDecimal amount, final double slippage, final int deadlineMinutes) {
+        return _tokenSwapSplit(swapRouters, tokenA, tokenB, amount, slippage, deadlineMinutes, false);
+    }
+
+    public CompletableFuture<List<TransactionReceipt>> tokenSwapSplit(final List<String> swapRouters, final String tokenA, final String tokenB, final BigDecimal amount) {
+        return tokenSwapSplit(swapRouters, tokenA, tokenB, amount, defaultSwapSlippage, defaultSwapDeadlineMinutes);
+    }
+
+    public CompletableFuture<List<TransactionReceipt>> tokenSwapSplitAndAutoApprove(final List<String> swapRouters, final String tokenA, final String tokenB, final BigDecimal amount, final double slippage, final int deadlineMinutes) {
+        return _tokenSwapSplit(swapRouters, tokenA, tokenB, amount, slippage, deadlineMinutes, true);
+    }
+
+    public CompletableFuture<List<TransactionReceipt>> tokenSwapSplitAndAutoApprove(final List<String> swapRouters, final String tokenA, final String tokenB, final BigDecimal amount) {
+        return tokenSwapSplitAndAutoApprove(swapRouters, tokenA, tokenB, amount, defaultSwapSlippage, defaultSwapDeadlineMinutes);
+    }
+
+    private CompletableFuture<List<TransactionReceipt>> _tokenSwapSplit(final List<String> swapRouters, final String tokenA, final String tokenB, final BigDecimal amount, final double slippage, final int deadlineMinutes, final boolean autoApprove) {
+        final CompletableFuture<BigInteger> tokenADecimals = _getDecimals(tokenA);
+        final CompletableFuture<BigInteger> tokenBDecimals = _getDecimals(tokenB);
+        return CompletableFuture.allOf(tokenADecimals, tokenBDecimals)
+                .thenCompose(none -> _getSplitOrder(swapRouters, tokenA, tokenB, _toWei(amount, _get(tokenADecimals))))
+                .thenCompose(order -> {
+                    log.info("Split order {}", order);
+                    final List<CompletableFuture<TransactionReceipt>> legs = order.getLegs()
+                            .stream()
+                            .map(leg -> {
+                                final BigDecimal legAmount = _fromWei(leg.getAmountIn(), _get(tokenADecimals));
+                                final CompletableFuture<Void> approved = autoApprove
+                                        ? _autoApprove(tokenA, legAmount, leg.getRouter())
+                                        : _requireAllowance(tokenA, legAmount, leg.getRouter());
+                                return approved.thenCompose(ok -> _swapExactTokensForTokens(leg.getRouter(), leg.getPath(), leg.getAmountIn(), _get(tokenBDecimals), slippage, deadlineMinutes));
+                            })
+                            .collect(Collectors.toList());
+                    return CompletableFuture.allOf(legs.toArray(new CompletableFuture<?>[0]))
+                            .thenApply(all -> legs.stream()
+                                    .map(CompletableFuture::join)
+                                    .collect(Collectors.toList()));
+                });
+    }
+
     @Override
     public CompletableFuture<TransactionReceipt> fillGas(final BigDecimal amount) {
         final String gasToken = network.getGasWrappedToken();
@@ -555,18 +1324,38 @@ public class DeFiSDK implements DeFi {
         if (onBlock != null) {
             onBlock.dispose();
         }
-        onBlock = web3j.blockFlowable(false)
-                .throttleWithTimeout(throttleMillisec, TimeUnit.MILLISECONDS)
-                .subscribe(ethBlock -> {
-                    if (!ethBlock.hasError()) {
-                        consumer.accept(ethBlock.getBlock());
-                    }
-                });
+        Flowable<EthBlock.Block> blocks = webSocket != null
+                ? webSocket.blockFlowable()
+                : web3j.blockFlowable(false)
+                .filter(ethBlock -> !ethBlock.hasError())
+                .map(EthBlock::getBlock);
+        if (blockCacheHeads != null) {
+            blocks = blocks.doOnNext(block -> blockCache.onNewHead(block.getNumber().longValue()));
+        }
+        blocks = blocks.doOnNext(block -> {
+            gasPriceOracle.onNewHead(block.getNumber().longValue());
+            poolStateMirror.onNewHead(block.getNumber().longValue());
+        });
+        if (throttleMillisec > 0) {
+            blocks = blocks.throttleWithTimeout(throttleMillisec, TimeUnit.MILLISECONDS);
+        }
+        onBlock = blocks.subscribe(consumer::accept);
     }
 
     @Override
     public void onBlock(final Consumer<EthBlock.Block> consumer) {
-        onBlock(consumer, 300);
+        //Heads are pushed over WebSocket, don't delay them
+        onBlock(consumer, webSocket != null ? 0 : 300);
+    }
+
+    private ERC20.TransferEventResponse _toTransferEvent(final Log value) {
+        final EventValues eventValues = Contract.staticExtractEventParameters(ERC20.TRANSFER_EVENT, value);
+        final ERC20.TransferEventResponse event = new ERC20.TransferEventResponse();
+        event.log = value;
+        event.from = (String) eventValues.getIndexedValues().get(0).getValue();
+        event.to = (String) eventValues.getIndexedValues().get(1).getValue();
+        event.value = (BigInteger) eventValues.getNonIndexedValues().get(0).getValue();
+        return event;
     }
 
     @Override
@@ -575,18 +1364,15 @@ public class DeFiSDK implements DeFi {
         if (disposable != null) {
             disposable.dispose();
         }
-        disposable = _loadContract(ERC20.class, token)
-                .transferEventFlowable(DefaultBlockParameterName.LATEST, DefaultBlockParameterName.LATEST)
+        final Flowable<ERC20.TransferEventResponse> events = webSocket != null
+                ? webSocket.logFlowable(Collections.singletonList(token), Collections.singletonList(EventEncoder.encode(ERC20.TRANSFER_EVENT)))
+                .map(this::_toTransferEvent)
+                : _loadContract(ERC20.class, token)
+                .transferEventFlowable(DefaultBlockParameterName.LATEST, DefaultBlockParameterName.LATEST);
+        disposable = events
                 .onErrorReturnItem(new ERC20.TransferEventResponse())
                 .filter(event -> Objects.equals(event.from, getWalletAddress()) || Objects.equals(event.to, getWalletAddress()))
-                .map(event -> TransferEvent.builder()
-                        .token(token)
-                        .from(event.from)
-                        .to(event.to)
-                        .value(event.value)
-                        .log(event.log)
-                        .build()
-                )
+                .map(event -> _newTransferEvent(token, event))
                 .subscribe(event -> {
                     log.info("Transfer => from \"{}\" to \"{}\" value {} log {}", event.getFrom(), event.getTo(), event.getValue(), event.getLog());
                     consumer.accept(event);
@@ -594,6 +1380,65 @@ public class DeFiSDK implements DeFi {
         onTransferMap.put(token, disposable);
     }
 
+    private TransferEvent _newTransferEvent(final String token, final ERC20.TransferEventResponse event) {
+        return TransferEvent.builder()
+                .token(token)
+                .from(event.from)
+                .to(event.to)
+                .value(event.value)
+                .log(event.log)
+                .build();
+    }
+
+    /**
+     * All Transfer events of the token in the block range, decoded from the response stream.
+     * Ranges are split into chunks of {@value StreamingLogReader#BLOCK_RANGE} blocks, {@value StreamingLogReader#BATCH_SIZE} chunks per batch.
+     */
+    @Override
+    public CompletableFuture<Long> getTransferEvents(final String token, final BigInteger fromBlock, final BigInteger toBlock, final Consumer<TransferEvent> consumer) {
+        return Async.run(() -> {
+            final String topic = EventEncoder.encode(ERC20.TRANSFER_EVENT);
+            return logReader.getLogs(fromBlock, toBlock, (from, to) -> {
+                final EthFilter filter = new EthFilter(from, to, token);
+                filter.addSingleTopic(topic);
+                return filter;
+            }, value -> consumer.accept(_newTransferEvent(token, _toTransferEvent(value))));
+        });
+    }
+
+    /**
+     * Sends and nonce reads go to the pinned RPC endpoint, still a lagging pending count (e.g. after a failover)
+     * must not hand out a nonce that was already sent : a reset never goes below the highest nonce sent successfully.
+     */
+    private static class NonceTrackingTransactionManager extends FastRawTransactionManager {
+
+        private BigInteger highestSent = BigInteger.valueOf(-1);
+
+        private NonceTrackingTransactionManager(final Web3j web3j, final Credentials credentials, final long chainId) {
+            super(web3j, credentials, chainId);
+        }
+
+        @Override
+        public EthSendTransaction signAndSend(final RawTransaction rawTransaction) throws IOException {
+            final EthSendTransaction tx = super.signAndSend(rawTransaction);
+            if (!tx.hasError()) {
+                synchronized (this) {
+                    highestSent = highestSent.max(rawTransaction.getNonce());
+                }
+            }
+            return tx;
+        }
+
+        @Override
+        public synchronized void resetNonce() throws IOException {
+            super.resetNonce();
+            if (getCurrentNonce().compareTo(highestSent) < 0) {
+                log.warn("Pending nonce {} is behind the highest nonce sent {}, keep {}", getCurrentNonce().add(BigInteger.ONE), highestSent, highestSent);
+                setNonce(highestSent);
+            }
+        }
+    }
+
     private class SchedulerGetTransactionReceipt {
 
         private final String transactionHash;
@@ -641,11 +1486,19 @@ public class DeFiSDK implements DeFi {
                             log.info("{} : SUCCESS Tx = {} in {} milliseconds, {}", id, transactionHash, waitTime, txReceipt);
                             break;
                         }
-                        round = round + 1;
-                        Thread.sleep(waitMilliseconds);
-                    } catch (IOException | InterruptedException e) {
+                    } catch (CircuitBreakerOpenException e) {
+                        log.warn("{} : RPC unavailable, retry in {} milliseconds", id, waitMilliseconds);
+                    } catch (IOException e) {
                         log.warn("{} : get() error ", id, e);
                     }
+                    round = round + 1;
+                    try {
+                        Thread.sleep(waitMilliseconds);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        future.completeExceptionally(e);
+                        break;
+                    }
                 }
             };
         }
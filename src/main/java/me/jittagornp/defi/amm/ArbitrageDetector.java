@@ -0,0 +1,401 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.amm;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Arbitrage cycles over the pools of several routers. A swap u -&gt; v is an edge of weight -log(g * reserveOut / reserveIn),
+ * a cycle of negative weight returns more than it takes at the margin.
+ * <p>
+ * When the reserves of one pool change only cycles through that pool can appear, so detection is a hop bounded
+ * Bellman-Ford from the pool's output token back to its input token (the affected subgraph), not a full graph pass.
+ * A cycle is a chain of constant product pools, i.e. one virtual pool out(a) = g * a * Y / (X + g * a),
+ * its best input is a = (sqrt(g * X * Y) - X) / g, then checked with exact integer math.
+ *
+ * @author jittagornp
+ */
+@Slf4j
+public class ArbitrageDetector {
+
+    public static final int DEFAULT_MAX_CYCLE_LENGTH = 3;
+
+    private final List<ArbitrageListener> listeners = new CopyOnWriteArrayList<>();
+    private final Map<String, Integer> tokenIndex = new HashMap<>();
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private String[] tokens = new String[16];
+    private int tokenCount;
+
+    private String[] pools = new String[16];
+    private String[] routers = new String[16];
+    private int[] token0 = new int[16];
+    private int[] token1 = new int[16];
+    private int[] feeBps = new int[16];
+    private double[] logFee = new double[16];
+    private double[] logReserve0 = new double[16];
+    private double[] logReserve1 = new double[16];
+    private BigInteger[] reserve0 = new BigInteger[16];
+    private BigInteger[] reserve1 = new BigInteger[16];
+    private int poolCount;
+
+    //Edges of token t are edgeTo / edgePool[offsets[t] .. offsets[t + 1])
+    private int[] offsets = new int[1];
+    private int[] edgeTo = new int[0];
+    private int[] edgePool = new int[0];
+    private boolean dirty;
+
+    //Bellman-Ford buffers, layer k = paths of k edges, only the reached tokens of a layer are visited and reset
+    private double[][] dist = new double[0][];
+    private int[][] predEdge = new int[0][];
+    private int[][] predToken = new int[0][];
+    private int[][] reached = new int[0][];
+    private int[] reachedCount = new int[0];
+
+    private int maxCycleLength = DEFAULT_MAX_CYCLE_LENGTH;
+    private BigInteger minProfit = BigInteger.ZERO;
+
+    public void addListener(final ArbitrageListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(final ArbitrageListener listener) {
+        listeners.remove(listener);
+    }
+
+    public synchronized void setMaxCycleLength(final int maxCycleLength) {
+        if (maxCycleLength < 2) {
+            throw new IllegalArgumentException("Required maxCycleLength > 1");
+        }
+        this.maxCycleLength = maxCycleLength;
+        dirty = true;
+    }
+
+    /**
+     * In wei of the start token
+     */
+    public synchronized void setMinProfit(final BigInteger minProfit) {
+        this.minProfit = minProfit;
+    }
+
+    public synchronized int size() {
+        return poolCount;
+    }
+
+    public synchronized boolean contains(final String pair) {
+        return poolIndex.containsKey(pair.toLowerCase());
+    }
+
+    public synchronized void addPool(final String router, final String pair, final String tokenA, final String tokenB, final int feeBps) {
+        final String key = pair.toLowerCase();
+        if (poolIndex.containsKey(key)) {
+            return;
+        }
+        if (poolCount == pools.length) {
+            final int capacity = poolCount * 2;
+            pools = Arrays.copyOf(pools, capacity);
+            routers = Arrays.copyOf(routers, capacity);
+            token0 = Arrays.copyOf(token0, capacity);
+            token1 = Arrays.copyOf(token1, capacity);
+            this.feeBps = Arrays.copyOf(this.feeBps, capacity);
+            logFee = Arrays.copyOf(logFee, capacity);
+            logReserve0 = Arrays.copyOf(logReserve0, capacity);
+            logReserve1 = Arrays.copyOf(logReserve1, capacity);
+            Arrays.fill(logReserve0, poolCount, capacity, Double.NaN);
+            Arrays.fill(logReserve1, poolCount, capacity, Double.NaN);
+            reserve0 = Arrays.copyOf(reserve0, capacity);
+            reserve1 = Arrays.copyOf(reserve1, capacity);
+        }
+        final String[] sorted = PairAddressResolver.sortTokens(tokenA, tokenB);
+        pools[poolCount] = pair;
+        routers[poolCount] = router;
+        token0[poolCount] = _token(sorted[0]);
+        token1[poolCount] = _token(sorted[1]);
+        this.feeBps[poolCount] = feeBps;
+        logFee[poolCount] = Math.log((ConstantProduct.BPS - feeBps) / (double) ConstantProduct.BPS);
+        //No price until the reserves are loaded, an unloaded pool is not a 1:1 edge
+        logReserve0[poolCount] = Double.NaN;
+        logReserve1[poolCount] = Double.NaN;
+        reserve0[poolCount] = BigInteger.ZERO;
+        reserve1[poolCount] = BigInteger.ZERO;
+        poolIndex.put(key, poolCount);
+        poolCount = poolCount + 1;
+        dirty = true;
+    }
+
+    private int _token(final String token) {
+        final Integer index = tokenIndex.get(token);
+        if (index != null) {
+            return index;
+        }
+        if (tokenCount == tokens.length) {
+            tokens = Arrays.copyOf(tokens, tokenCount * 2);
+        }
+        tokens[tokenCount] = token;
+        tokenIndex.put(token, tokenCount);
+        tokenCount = tokenCount + 1;
+        return tokenCount - 1;
+    }
+
+    /**
+     * Update the pool and look for cycles through it, listeners get every opportunity found.
+     */
+    public List<ArbitrageOpportunity> onReserves(final PairReserves reserves) {
+        final List<ArbitrageOpportunity> opportunities;
+        synchronized (this) {
+            final Integer i = poolIndex.get(reserves.getPair().toLowerCase());
+            if (i == null || !_setReserves(i, reserves.getReserve0(), reserves.getReserve1())) {
+                return Collections.emptyList();
+            }
+            opportunities = _detect(i, reserves.getBlockNumber());
+        }
+        for (final ArbitrageOpportunity opportunity : opportunities) {
+            for (final ArbitrageListener listener : listeners) {
+                try {
+                    listener.onOpportunity(opportunity);
+                } catch (RuntimeException e) {
+                    log.warn("Arbitrage listener error ", e);
+                }
+            }
+        }
+        return opportunities;
+    }
+
+    /**
+     * Update reserves without detection, e.g. the initial load
+     */
+    public synchronized void setReserves(final PairReserves reserves) {
+        final Integer i = poolIndex.get(reserves.getPair().toLowerCase());
+        if (i != null) {
+            _setReserves(i, reserves.getReserve0(), reserves.getReserve1());
+        }
+    }
+
+    private boolean _setReserves(final int i, final BigInteger value0, final BigInteger value1) {
+        if (value0.equals(reserve0[i]) && value1.equals(reserve1[i])) {
+            return false;
+        }
+        reserve0[i] = value0;
+        reserve1[i] = value1;
+        logReserve0[i] = value0.signum() > 0 ? Math.log(value0.doubleValue()) : Double.NaN;
+        logReserve1[i] = value1.signum() > 0 ? Math.log(value1.doubleValue()) : Double.NaN;
+        return true;
+    }
+
+    /**
+     * Cycles through every pool, one pass per pool
+     */
+    public synchronized List<ArbitrageOpportunity> detectAll() {
+        final List<ArbitrageOpportunity> opportunities = new ArrayList<>();
+        for (int i = 0; i < poolCount; i++) {
+            opportunities.addAll(_detect(i, 0));
+        }
+        return opportunities;
+    }
+
+    private List<ArbitrageOpportunity> _detect(final int pool, final long blockNumber) {
+        if (Double.isNaN(logReserve0[pool]) || Double.isNaN(logReserve1[pool])) {
+            return Collections.emptyList();
+        }
+        if (dirty) {
+            _rebuild();
+        }
+        final List<ArbitrageOpportunity> opportunities = new ArrayList<>(2);
+        _detect(pool, token0[pool], token1[pool], blockNumber, opportunities);
+        _detect(pool, token1[pool], token0[pool], blockNumber, opportunities);
+        return opportunities;
+    }
+
+    /**
+     * Best cycle from -&gt; (pool) -&gt; to -&gt; ... -&gt; from
+     */
+    private void _detect(final int pool, final int from, final int to, final long blockNumber, final List<ArbitrageOpportunity> opportunities) {
+        final double weight = _weight(pool, from);
+        final int layers = maxCycleLength - 1;
+        for (int k = 0; k <= layers; k++) {
+            for (int j = 0; j < reachedCount[k]; j++) {
+                dist[k][reached[k][j]] = Double.POSITIVE_INFINITY;
+            }
+            reachedCount[k] = 0;
+        }
+        dist[0][to] = 0;
+        reached[0][reachedCount[0]++] = to;
+        for (int k = 1; k <= layers; k++) {
+            final double[] previous = dist[k - 1];
+            final double[] current = dist[k];
+            for (int j = 0; j < reachedCount[k - 1]; j++) {
+                final int u = reached[k - 1][j];
+                for (int e = offsets[u]; e < offsets[u + 1]; e++) {
+                    final int p = edgePool[e];
+                    if (p == pool) {
+                        continue;
+                    }
+                    final double w = _weight(p, u);
+                    if (Double.isNaN(w)) {
+                        continue;
+                    }
+                    final int v = edgeTo[e];
+                    if (current[v] == Double.POSITIVE_INFINITY) {
+                        reached[k][reachedCount[k]++] = v;
+                    }
+                    if (previous[u] + w < current[v]) {
+                        current[v] = previous[u] + w;
+                        predEdge[k][v] = e;
+                        predToken[k][v] = u;
+                    }
+                }
+            }
+        }
+        //Every negative layer is a candidate, best first, the next one when the best is not simple or cannot be sized
+        final boolean[] tried = new boolean[layers + 1];
+        while (true) {
+            int bestLayer = -1;
+            double best = -weight;
+            for (int k = 1; k <= layers; k++) {
+                if (!tried[k] && dist[k][from] < best) {
+                    best = dist[k][from];
+                    bestLayer = k;
+                }
+            }
+            if (bestLayer < 0) {
+                return;
+            }
+            tried[bestLayer] = true;
+            final ArbitrageOpportunity opportunity = _cycle(pool, from, to, bestLayer, blockNumber);
+            if (opportunity != null) {
+                opportunities.add(opportunity);
+                return;
+            }
+        }
+    }
+
+    private ArbitrageOpportunity _cycle(final int pool, final int from, final int to, final int layer, final long blockNumber) {
+        //Walk the predecessors back from `from` to `to`
+        final int[] cycleTokens = new int[layer + 2];
+        final int[] cyclePools = new int[layer + 1];
+        cycleTokens[0] = from;
+        cycleTokens[1] = to;
+        cyclePools[0] = pool;
+        int token = from;
+        for (int k = layer; k >= 1; k--) {
+            cycleTokens[k + 1] = token;
+            cyclePools[k] = edgePool[predEdge[k][token]];
+            token = predToken[k][token];
+        }
+        if (!_isSimple(cycleTokens)) {
+            return null;
+        }
+        return _size(cycleTokens, cyclePools, blockNumber);
+    }
+
+    private double _weight(final int pool, final int tokenIn) {
+        return tokenIn == token0[pool]
+                ? -(logFee[pool] + logReserve1[pool] - logReserve0[pool])
+                : -(logFee[pool] + logReserve0[pool] - logReserve1[pool]);
+    }
+
+    private static boolean _isSimple(final int[] cycleTokens) {
+        for (int i = 0; i < cycleTokens.length - 1; i++) {
+            for (int j = i + 1; j < cycleTokens.length - 1; j++) {
+                if (cycleTokens[i] == cycleTokens[j]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private ArbitrageOpportunity _size(final int[] cycleTokens, final int[] cyclePools, final long blockNumber) {
+        //Fold the cycle into one virtual pool, fee of the first hop
+        double x = 0;
+        double y = 0;
+        double g = 0;
+        for (int i = 0; i < cyclePools.length; i++) {
+            final int p = cyclePools[i];
+            final boolean zeroForOne = cycleTokens[i] == token0[p];
+            final double reserveIn = (zeroForOne ? reserve0[p] : reserve1[p]).doubleValue();
+            final double reserveOut = (zeroForOne ? reserve1[p] : reserve0[p]).doubleValue();
+            final double hopFee = (ConstantProduct.BPS - feeBps[p]) / (double) ConstantProduct.BPS;
+            if (i == 0) {
+                x = reserveIn;
+                y = reserveOut;
+                g = hopFee;
+            } else {
+                final double d = reserveIn + hopFee * y;
+                x = x * reserveIn / d;
+                y = hopFee * y * reserveOut / d;
+            }
+        }
+        final double amountIn = (Math.sqrt(g * x * y) - x) / g;
+        if (!(amountIn >= 1)) {
+            return null;
+        }
+        final List<BigInteger> amounts = new ArrayList<>(cycleTokens.length);
+        amounts.add(new BigDecimal(amountIn).toBigInteger());
+        final List<String> path = new ArrayList<>(cycleTokens.length);
+        final List<String> pairs = new ArrayList<>(cyclePools.length);
+        final List<String> hopRouters = new ArrayList<>(cyclePools.length);
+        path.add(tokens[cycleTokens[0]]);
+        for (int i = 0; i < cyclePools.length; i++) {
+            final int p = cyclePools[i];
+            final boolean zeroForOne = cycleTokens[i] == token0[p];
+            final BigInteger in = amounts.get(i);
+            if (in.signum() <= 0) {
+                return null;
+            }
+            amounts.add(ConstantProduct.getAmountOut(in, zeroForOne ? reserve0[p] : reserve1[p], zeroForOne ? reserve1[p] : reserve0[p], feeBps[p]));
+            path.add(tokens[cycleTokens[i + 1]]);
+            pairs.add(pools[p]);
+            hopRouters.add(routers[p]);
+        }
+        final ArbitrageOpportunity opportunity = ArbitrageOpportunity.builder()
+                .path(path)
+                .pairs(pairs)
+                .routers(hopRouters)
+                .amounts(amounts)
+                .blockNumber(blockNumber)
+                .build();
+        return opportunity.getProfit().compareTo(minProfit) > 0 ? opportunity : null;
+    }
+
+    private void _rebuild() {
+        final int[] degree = new int[tokenCount + 1];
+        for (int i = 0; i < poolCount; i++) {
+            degree[token0[i]]++;
+            degree[token1[i]]++;
+        }
+        offsets = new int[tokenCount + 1];
+        for (int t = 0; t < tokenCount; t++) {
+            offsets[t + 1] = offsets[t] + degree[t];
+        }
+        edgeTo = new int[poolCount * 2];
+        edgePool = new int[poolCount * 2];
+        final int[] next = Arrays.copyOf(offsets, tokenCount);
+        for (int i = 0; i < poolCount; i++) {
+            edgeTo[next[token0[i]]] = token1[i];
+            edgePool[next[token0[i]]++] = i;
+            edgeTo[next[token1[i]]] = token0[i];
+            edgePool[next[token1[i]]++] = i;
+        }
+        final int layers = maxCycleLength;
+        dist = new double[layers][tokenCount];
+        for (final double[] layer : dist) {
+            Arrays.fill(layer, Double.POSITIVE_INFINITY);
+        }
+        predEdge = new int[layers][tokenCount];
+        predToken = new int[layers][tokenCount];
+        reached = new int[layers][tokenCount];
+        reachedCount = new int[layers];
+        dirty = false;
+    }
+}
@@ -0,0 +1,14 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.amm;
+
+/**
+ * @author jittagornp
+ */
+@FunctionalInterface
+public interface ArbitrageListener {
+
+    void onOpportunity(final ArbitrageOpportunity opportunity);
+
+}
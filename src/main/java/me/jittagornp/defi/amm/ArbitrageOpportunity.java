@@ -0,0 +1,60 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.amm;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.math.BigInteger;
+import java.util.List;
+
+/**
+ * Cycle of swaps that ends with more of the start token than it began with.
+ *
+ * @author jittagornp
+ */
+@Getter
+@Builder
+@ToString
+public class ArbitrageOpportunity {
+
+    /**
+     * Token addresses, first == last
+     */
+    private final List<String> path;
+
+    /**
+     * Pair and router of each hop
+     */
+    private final List<String> pairs;
+
+    private final List<String> routers;
+
+    /**
+     * Amount of every token along the path, exact constant product math at the sized input
+     */
+    private final List<BigInteger> amounts;
+
+    /**
+     * Block of the reserves the opportunity was found with, 0 when unknown
+     */
+    private final long blockNumber;
+
+    public String getToken() {
+        return path.get(0);
+    }
+
+    public BigInteger getAmountIn() {
+        return amounts.get(0);
+    }
+
+    public BigInteger getAmountOut() {
+        return amounts.get(amounts.size() - 1);
+    }
+
+    public BigInteger getProfit() {
+        return getAmountOut().subtract(getAmountIn());
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.amm;
+
+import me.jittagornp.defi.util.UInt256;
+
+import java.math.BigInteger;
+
+/**
+ * Uniswap V2 style x * y = k math, same integer rounding as UniswapV2Library.
+ * The fee is in basis points, e.g. 30 = 0.3% (997 / 1000), 25 = 0.25% (9975 / 10000).
+ *
+ * @author jittagornp
+ */
+public final class ConstantProduct {
+
+    public static final int BPS = 10_000;
+
+    private static final BigInteger BIG_BPS = BigInteger.valueOf(BPS);
+
+    private ConstantProduct() {
+
+    }
+
+    public static BigInteger getAmountOut(final BigInteger amountIn, final BigInteger reserveIn, final BigInteger reserveOut, final int feeBps) {
+        if (amountIn.signum() <= 0) {
+            throw new IllegalArgumentException("Insufficient input amount");
+        }
+        if (reserveIn.signum() <= 0 || reserveOut.signum() <= 0) {
+            throw new IllegalArgumentException("Insufficient liquidity");
+        }
+        final BigInteger amountInWithFee = amountIn.multiply(BigInteger.valueOf(BPS - feeBps));
+        final BigInteger numerator = amountInWithFee.multiply(reserveOut);
+        final BigInteger denominator = reserveIn.multiply(BIG_BPS).add(amountInWithFee);
+        return numerator.divide(denominator);
+    }
+
+    /**
+     * Same as {@link #getAmountOut(BigInteger, BigInteger, BigInteger, int)} without allocation,
+     * scratch and result are overwritten and must not be one of the inputs.
+     */
+    public static UInt256 getAmountOut(final UInt256 amountIn, final UInt256 reserveIn, final UInt256 reserveOut, final int feeBps, final UInt256 scratch, final UInt256 result) {
+        if (amountIn.isZero()) {
+            throw new IllegalArgumentException("Insufficient input amount");
+        }
+        if (reserveIn.isZero() || reserveOut.isZero()) {
+            throw new IllegalArgumentException("Insufficient liquidity");
+        }
+        final UInt256 amountInWithFee = scratch.set(amountIn).mul(BPS - feeBps);
+        final UInt256 denominator = result.set(reserveIn).mul(BPS).add(amountInWithFee);
+        return result.set(amountInWithFee.mulDiv(reserveOut, denominator));
+    }
+
+    public static BigInteger getAmountIn(final BigInteger amountOut, final BigInteger reserveIn, final BigInteger reserveOut, final int feeBps) {
+        if (amountOut.signum() <= 0) {
+            throw new IllegalArgumentException("Insufficient output amount");
+        }
+        if (reserveIn.signum() <= 0 || reserveOut.compareTo(amountOut) <= 0) {
+            throw new IllegalArgumentException("Insufficient liquidity");
+        }
+        final BigInteger numerator = reserveIn.multiply(amountOut).multiply(BIG_BPS);
+        final BigInteger denominator = reserveOut.subtract(amountOut).multiply(BigInteger.valueOf(BPS - feeBps));
+        return numerator.divide(denominator).add(BigInteger.ONE);
+    }
+}
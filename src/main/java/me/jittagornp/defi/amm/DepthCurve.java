@@ -0,0 +1,145 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.amm;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+import me.jittagornp.defi.util.WeiConverter;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Output, effective price and price impact of many input sizes on one pair, all from the same reserves.
+ * Price impact follows the Uniswap SDK : 1 - effective price / mid price (reserveOut / reserveIn), so it includes the swap fee.
+ *
+ * @author jittagornp
+ */
+@Getter
+@Builder
+@ToString
+public class DepthCurve {
+
+    private static final BigDecimal HUNDRED = BigDecimal.valueOf(100);
+
+    private final String router;
+
+    private final String pair;
+
+    private final String tokenIn;
+
+    private final String tokenOut;
+
+    private final int decimalsIn;
+
+    private final int decimalsOut;
+
+    private final BigInteger reserveIn;
+
+    private final BigInteger reserveOut;
+
+    private final int feeBps;
+
+    /**
+     * tokenOut per tokenIn (token units) before any swap
+     */
+    private final BigDecimal midPrice;
+
+    private final List<DepthPoint> points;
+
+    public static DepthCurve of(final String router, final PairReserves reserves, final String tokenIn, final int feeBps, final int decimalsIn, final int decimalsOut, final List<BigInteger> amountsIn) {
+        final BigInteger reserveIn = reserves.getReserveIn(tokenIn);
+        final BigInteger reserveOut = reserves.getReserveOut(tokenIn);
+        final BigDecimal midPrice = _price(reserveIn, reserveOut, decimalsIn, decimalsOut);
+        final List<DepthPoint> points = new ArrayList<>(amountsIn.size());
+        for (final BigInteger amountIn : amountsIn) {
+            if (amountIn.signum() == 0) {
+                points.add(DepthPoint.builder()
+                        .amountIn(amountIn)
+                        .amountOut(BigInteger.ZERO)
+                        .price(midPrice)
+                        .priceImpact(0)
+                        .build());
+                continue;
+            }
+            final BigInteger amountOut = ConstantProduct.getAmountOut(amountIn, reserveIn, reserveOut, feeBps);
+            //1 - (amountOut / amountIn) / (reserveOut / reserveIn)
+            final BigDecimal ratio = new BigDecimal(amountOut.multiply(reserveIn))
+                    .divide(new BigDecimal(amountIn.multiply(reserveOut)), MathContext.DECIMAL64);
+            points.add(DepthPoint.builder()
+                    .amountIn(amountIn)
+                    .amountOut(amountOut)
+                    .price(_price(amountIn, amountOut, decimalsIn, decimalsOut))
+                    .priceImpact(BigDecimal.ONE.subtract(ratio).multiply(HUNDRED).doubleValue())
+                    .build());
+        }
+        return DepthCurve.builder()
+                .router(router)
+                .pair(reserves.getPair())
+                .tokenIn(tokenIn)
+                .tokenOut(reserves.isToken0(tokenIn) ? reserves.getToken1() : reserves.getToken0())
+                .decimalsIn(decimalsIn)
+                .decimalsOut(decimalsOut)
+                .reserveIn(reserveIn)
+                .reserveOut(reserveOut)
+                .feeBps(feeBps)
+                .midPrice(midPrice)
+                .points(points)
+                .build();
+    }
+
+    private static BigDecimal _price(final BigInteger amountIn, final BigInteger amountOut, final int decimalsIn, final int decimalsOut) {
+        return WeiConverter.fromWei(amountOut, decimalsOut)
+                .divide(WeiConverter.fromWei(amountIn, decimalsIn), MathContext.DECIMAL64);
+    }
+
+    /**
+     * Largest input whose price impact is at most the given percent, zero when the fee alone is above it.
+     * Closed form upper bound reserveIn * (1 / (1 - impact) - 1 / (1 - fee)), refined against the exact integer amount out.
+     */
+    public BigInteger getMaxAmountIn(final double priceImpact) {
+        if (!(priceImpact >= 0 && priceImpact < 100)) {
+            throw new IllegalArgumentException("Invalid price impact " + priceImpact);
+        }
+        final BigDecimal keep = BigDecimal.ONE.subtract(BigDecimal.valueOf(priceImpact).divide(HUNDRED));
+        final BigDecimal feeKeep = BigDecimal.valueOf(ConstantProduct.BPS - feeBps).divide(BigDecimal.valueOf(ConstantProduct.BPS));
+        if (keep.compareTo(feeKeep) >= 0) {
+            return BigInteger.ZERO;
+        }
+        final BigInteger upper = new BigDecimal(reserveIn)
+                .multiply(BigDecimal.ONE.divide(keep, MathContext.DECIMAL128).subtract(BigDecimal.ONE.divide(feeKeep, MathContext.DECIMAL128)))
+                .toBigInteger();
+        //Rounding only moves the answer slightly below the closed form
+        BigInteger low = upper.subtract(upper.shiftRight(20));
+        if (!_isWithin(low, keep)) {
+            low = BigInteger.ZERO;
+        }
+        BigInteger high = upper;
+        while (low.compareTo(high) < 0) {
+            final BigInteger middle = low.add(high).add(BigInteger.ONE).shiftRight(1);
+            if (_isWithin(middle, keep)) {
+                low = middle;
+            } else {
+                high = middle.subtract(BigInteger.ONE);
+            }
+        }
+        return low;
+    }
+
+    /**
+     * amountOut / amountIn &gt;= keep * reserveOut / reserveIn
+     */
+    private boolean _isWithin(final BigInteger amountIn, final BigDecimal keep) {
+        if (amountIn.signum() == 0) {
+            return true;
+        }
+        final BigInteger amountOut = ConstantProduct.getAmountOut(amountIn, reserveIn, reserveOut, feeBps);
+        return new BigDecimal(amountOut.multiply(reserveIn))
+                .compareTo(keep.multiply(new BigDecimal(amountIn.multiply(reserveOut)))) >= 0;
+    }
+}
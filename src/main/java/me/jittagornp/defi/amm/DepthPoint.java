@@ -0,0 +1,34 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.amm;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * @author jittagornp
+ */
+@Getter
+@Builder
+@ToString
+public class DepthPoint {
+
+    private final BigInteger amountIn;
+
+    private final BigInteger amountOut;
+
+    /**
+     * Effective price, tokenOut per tokenIn (token units)
+     */
+    private final BigDecimal price;
+
+    /**
+     * Percent below the mid price, swap fee included
+     */
+    private final double priceImpact;
+}
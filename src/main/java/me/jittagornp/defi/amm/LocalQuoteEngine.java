@@ -0,0 +1,205 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.amm;
+
+import lombok.extern.slf4j.Slf4j;
+import org.web3j.tuples.generated.Tuple3;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Router quotes (getAmountsOut / getAmountsIn) computed locally from pair reserves,
+ * reserves are read with Pairs.getReserves() and reused until they are older than maxAgeMillis.
+ * token0 / token1 come from the pair address sort order, no read needed.
+ *
+ * @author jittagornp
+ */
+@Slf4j
+public class LocalQuoteEngine {
+
+    public static final int DEFAULT_FEE_BPS = 30;
+
+    /**
+     * Swap fee of factories that differ from {@value #DEFAULT_FEE_BPS} bps (lowercase address)
+     */
+    public static final Map<String, Integer> KNOWN_FEE_BPS;
+
+    static {
+        final Map<String, Integer> fees = new HashMap<>();
+        //PancakeSwap V2 (BSC)
+        fees.put("0xca143ce32fe78f1f7019d7d551a6402fc5350c73", 25);
+        //PancakeSwap V1 (BSC)
+        fees.put("0xbcfccbde45ce874adcb698cc183debcf17952812", 20);
+        //ApeSwap (BSC)
+        fees.put("0x0841bd0b734e4f5853f0dd8d7ea041c241fb0da6", 20);
+        //BiSwap (BSC)
+        fees.put("0x858e3312ed3a876947ea49d572a7c42de08af7ee", 10);
+        KNOWN_FEE_BPS = Collections.unmodifiableMap(fees);
+    }
+
+    private final PairAddressResolver pairAddressResolver;
+    private final Function<String, CompletableFuture<Tuple3<BigInteger, BigInteger, BigInteger>>> reservesLoader;
+    private final Map<String, Integer> routerFees = new ConcurrentHashMap<>();
+    private final Set<String> defaultFeeFactories = ConcurrentHashMap.newKeySet();
+    private final Map<String, PairReserves> reserves = new ConcurrentHashMap<>();
+    private volatile long maxAgeMillis;
+    private volatile PoolStateMirror poolStateMirror;
+
+    /**
+     * @param reservesLoader pair address -&gt; getReserves()
+     */
+    public LocalQuoteEngine(final PairAddressResolver pairAddressResolver, final Function<String, CompletableFuture<Tuple3<BigInteger, BigInteger, BigInteger>>> reservesLoader, final long maxAgeMillis) {
+        this.pairAddressResolver = pairAddressResolver;
+        this.reservesLoader = reservesLoader;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    /**
+     * 0 to read the reserves on every quote (still one getReserves instead of getAmountsOut per hop)
+     */
+    public void setMaxAgeMillis(final long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Pairs watched by the mirror are quoted from memory, unless the mirror has not confirmed them
+     * for {@link PoolStateMirror#setMaxAgeMillis(long)}, those are read from the chain.
+     */
+    public void setPoolStateMirror(final PoolStateMirror poolStateMirror) {
+        this.poolStateMirror = poolStateMirror;
+    }
+
+    public void setFeeBps(final String router, final int feeBps) {
+        if (feeBps < 0 || feeBps >= ConstantProduct.BPS) {
+            throw new IllegalArgumentException("Invalid fee bps " + feeBps);
+        }
+        routerFees.put(router.toLowerCase(), feeBps);
+    }
+
+    public CompletableFuture<Integer> getFeeBps(final String router) {
+        final Integer fee = routerFees.get(router.toLowerCase());
+        if (fee != null) {
+            return CompletableFuture.completedFuture(fee);
+        }
+        return pairAddressResolver.getFactory(router)
+                .thenApply(factory -> {
+                    final Integer known = KNOWN_FEE_BPS.get(factory.toLowerCase());
+                    final int feeBps = known == null ? DEFAULT_FEE_BPS : known;
+                    if (known == null && defaultFeeFactories.add(factory.toLowerCase())) {
+                        log.warn("Unknown fee of factory {} (router {}), assume {} bps, set it with setRouterFeeBps()", factory, router, DEFAULT_FEE_BPS);
+                    }
+                    routerFees.putIfAbsent(router.toLowerCase(), feeBps);
+                    return feeBps;
+                });
+    }
+
+    public CompletableFuture<PairReserves> getReserves(final String router, final String tokenA, final String tokenB) {
+        return pairAddressResolver.getPairByRouter(router, tokenA, tokenB)
+                .thenCompose(pair -> _getReserves(pair, PairAddressResolver.sortTokens(tokenA, tokenB)));
+    }
+
+    private CompletableFuture<PairReserves> _getReserves(final String pair, final String[] tokens) {
+        final PoolStateMirror mirror = poolStateMirror;
+        final PairReserves mirrored = mirror == null ? null : mirror.getFresh(pair);
+        if (mirrored != null) {
+            return CompletableFuture.completedFuture(mirrored);
+        }
+        final String key = pair.toLowerCase();
+        final PairReserves cached = reserves.get(key);
+        if (cached != null && System.currentTimeMillis() - cached.getUpdatedMillis() <= maxAgeMillis) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return reservesLoader.apply(pair)
+                .thenApply(result -> {
+                    final PairReserves value = PairReserves.builder()
+                            .pair(pair)
+                            .token0(tokens[0])
+                            .token1(tokens[1])
+                            .reserve0(result.component1())
+                            .reserve1(result.component2())
+                            .blockTimestampLast(result.component3().longValue())
+                            .updatedMillis(System.currentTimeMillis())
+                            .build();
+                    update(value);
+                    return value;
+                });
+    }
+
+    /**
+     * Newer reserves from elsewhere (e.g. a Sync event), ignored when older than what is cached.
+     */
+    public void update(final PairReserves value) {
+        reserves.merge(value.getPair().toLowerCase(), value, (current, next) ->
+                next.getBlockNumber() != 0 && next.getBlockNumber() < current.getBlockNumber() ? current : next
+        );
+    }
+
+    public void invalidate(final String pair) {
+        reserves.remove(pair.toLowerCase());
+    }
+
+    /**
+     * Same result as Router.getAmountsOut(amountIn, path)
+     */
+    public CompletableFuture<List<BigInteger>> getAmountsOut(final String router, final BigInteger amountIn, final List<String> path) {
+        if (path.size() < 2) {
+            throw new IllegalArgumentException("Invalid path " + path);
+        }
+        final List<CompletableFuture<PairReserves>> hops = _hops(router, path);
+        return CompletableFuture.allOf(hops.toArray(new CompletableFuture<?>[0]))
+                .thenCombine(getFeeBps(router), (none, feeBps) -> {
+                    final List<BigInteger> amounts = new ArrayList<>(path.size());
+                    amounts.add(amountIn);
+                    for (int i = 0; i < hops.size(); i++) {
+                        final PairReserves hop = hops.get(i).join();
+                        final String tokenIn = path.get(i);
+                        amounts.add(ConstantProduct.getAmountOut(amounts.get(i), hop.getReserveIn(tokenIn), hop.getReserveOut(tokenIn), feeBps));
+                    }
+                    return amounts;
+                });
+    }
+
+    /**
+     * Same result as Router.getAmountsIn(amountOut, path)
+     */
+    public CompletableFuture<List<BigInteger>> getAmountsIn(final String router, final BigInteger amountOut, final List<String> path) {
+        if (path.size() < 2) {
+            throw new IllegalArgumentException("Invalid path " + path);
+        }
+        final List<CompletableFuture<PairReserves>> hops = _hops(router, path);
+        return CompletableFuture.allOf(hops.toArray(new CompletableFuture<?>[0]))
+                .thenCombine(getFeeBps(router), (none, feeBps) -> {
+                    final BigInteger[] amounts = new BigInteger[path.size()];
+                    amounts[amounts.length - 1] = amountOut;
+                    for (int i = hops.size() - 1; i >= 0; i--) {
+                        final PairReserves hop = hops.get(i).join();
+                        final String tokenIn = path.get(i);
+                        amounts[i] = ConstantProduct.getAmountIn(amounts[i + 1], hop.getReserveIn(tokenIn), hop.getReserveOut(tokenIn), feeBps);
+                    }
+                    return Arrays.asList(amounts);
+                });
+    }
+
+    private List<CompletableFuture<PairReserves>> _hops(final String router, final List<String> path) {
+        final List<CompletableFuture<PairReserves>> hops = new ArrayList<>(path.size() - 1);
+        for (int i = 0; i < path.size() - 1; i++) {
+            hops.add(getReserves(router, path.get(i), path.get(i + 1)));
+        }
+        return hops;
+    }
+}
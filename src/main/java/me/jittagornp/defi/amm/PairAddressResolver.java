@@ -0,0 +1,211 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.amm;
+
+import lombok.extern.slf4j.Slf4j;
+import me.jittagornp.defi.exception.ResponseErrorException;
+import me.jittagornp.defi.multicall.MulticallAggregator;
+import org.web3j.crypto.Hash;
+import org.web3j.crypto.Keys;
+import org.web3j.tx.exceptions.ContractCallException;
+import org.web3j.utils.Numeric;
+
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Pair address of a Uniswap V2 style factory computed locally with CREATE2 :
+ * keccak256(0xff ++ factory ++ keccak256(token0 ++ token1) ++ INIT_CODE_PAIR_HASH)[12:].
+ * Router -> factory and factory -> init code hash are read on chain once, factories without
+ * INIT_CODE_PAIR_HASH() and no known hash fall back to Factory.getPair.
+ *
+ * @author jittagornp
+ */
+@Slf4j
+public class PairAddressResolver {
+
+    /**
+     * Factories whose init code hash is not readable on chain (lowercase address)
+     */
+    public static final Map<String, String> KNOWN_INIT_CODE_HASHES;
+
+    static {
+        final Map<String, String> hashes = new HashMap<>();
+        //PancakeSwap V2 (BSC)
+        hashes.put("0xca143ce32fe78f1f7019d7d551a6402fc5350c73", "0x00fb7f630766e6a796048ea87d01acd3068e8ff67d078148a3fa3f4a84f69bd5");
+        //QuickSwap (Polygon)
+        hashes.put("0x5757371414417b8c6caad45baef941abc7d3ab32", "0x96e8ac4277198ff8b6f785478aa9a39f403cb768dd02cbee326c3e7da348845f");
+        KNOWN_INIT_CODE_HASHES = Collections.unmodifiableMap(hashes);
+    }
+
+    private static final byte[] NO_HASH = new byte[0];
+
+    /**
+     * On chain reads, each is called once per router / factory.
+     */
+    public interface Loader {
+
+        CompletableFuture<String> getFactory(final String router);
+
+        CompletableFuture<byte[]> getInitCodeHash(final String factory);
+
+        CompletableFuture<String> getPair(final String factory, final String tokenA, final String tokenB);
+
+        CompletableFuture<Boolean> hasCode(final String address);
+
+    }
+
+    private final Loader loader;
+    private final Map<String, CompletableFuture<String>> factories = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<byte[]>> initCodeHashes = new ConcurrentHashMap<>();
+    private final Map<String, String> pairs = new ConcurrentHashMap<>();
+
+    public PairAddressResolver(final Loader loader) {
+        this.loader = loader;
+    }
+
+    public CompletableFuture<String> getFactory(final String router) {
+        return _once(factories, router.toLowerCase(), key -> loader.getFactory(router));
+    }
+
+    /**
+     * Empty array when the factory has no readable init code hash.
+     */
+    public CompletableFuture<byte[]> getInitCodeHash(final String factory) {
+        return _once(initCodeHashes, factory.toLowerCase(), key -> {
+            final String known = KNOWN_INIT_CODE_HASHES.get(key);
+            if (known != null) {
+                return CompletableFuture.completedFuture(Numeric.hexStringToByteArray(known));
+            }
+            return loader.getInitCodeHash(factory)
+                    .handle((hash, error) -> {
+                        //Other errors (timeout, throttled, open circuit) are not remembered, the next lookup reads again
+                        if (error != null && !_isMissingGetter(error)) {
+                            throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+                        }
+                        if (error != null || hash == null || hash.length != 32) {
+                            log.info("Factory {} has no INIT_CODE_PAIR_HASH, use getPair", factory);
+                            return NO_HASH;
+                        }
+                        return hash;
+                    });
+        });
+    }
+
+    /**
+     * The factory answered, INIT_CODE_PAIR_HASH() reverted or returned nothing
+     */
+    private static boolean _isMissingGetter(final Throwable error) {
+        Throwable cause = error;
+        while (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof ResponseErrorException) {
+            final ResponseErrorException e = (ResponseErrorException) cause;
+            return e.getError() != null && e.getError().getCode() == MulticallAggregator.ERROR_CODE_CALL_FAILED;
+        }
+        //Without multicall web3j reports any error of the eth_call as "reverted ... with the reason: '<error>'", keep real reverts
+        if (!(cause instanceof ContractCallException) || cause.getMessage() == null) {
+            return false;
+        }
+        final String message = cause.getMessage();
+        final int reason = message.indexOf("reason:");
+        return reason >= 0 && message.substring(reason).toLowerCase().contains("revert");
+    }
+
+    public void registerInitCodeHash(final String factory, final String initCodeHash) {
+        initCodeHashes.put(factory.toLowerCase(), CompletableFuture.completedFuture(Numeric.hexStringToByteArray(initCodeHash)));
+    }
+
+    public CompletableFuture<String> getPairByRouter(final String router, final String tokenA, final String tokenB) {
+        return getFactory(router).thenCompose(factory -> getPair(factory, tokenA, tokenB));
+    }
+
+    /**
+     * Pair address, computed locally once the init code hash of the factory is known.
+     */
+    public CompletableFuture<String> getPair(final String factory, final String tokenA, final String tokenB) {
+        return getInitCodeHash(factory).thenCompose(hash -> {
+            if (hash.length > 0) {
+                return CompletableFuture.completedFuture(computePairAddress(factory, hash, tokenA, tokenB));
+            }
+            final String[] tokens = sortTokens(tokenA, tokenB);
+            final String key = factory.toLowerCase() + ":" + tokens[0] + ":" + tokens[1];
+            final String pair = pairs.get(key);
+            if (pair != null) {
+                return CompletableFuture.completedFuture(pair);
+            }
+            return loader.getPair(factory, tokenA, tokenB)
+                    .thenApply(address -> {
+                        //Zero address : not created yet, ask again next time
+                        if (address != null && Numeric.toBigInt(address).signum() != 0) {
+                            pairs.put(key, address);
+                        }
+                        return address;
+                    });
+        });
+    }
+
+    /**
+     * False for the zero address (getPair of a pair not created) and for a computed address with no code deployed.
+     */
+    public CompletableFuture<Boolean> exists(final String pair) {
+        if (pair == null || Numeric.toBigInt(pair).signum() == 0) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return loader.hasCode(pair);
+    }
+
+    /**
+     * Lowercase token addresses, token0 first.
+     */
+    public static String[] sortTokens(final String tokenA, final String tokenB) {
+        final String a = tokenA.toLowerCase();
+        final String b = tokenB.toLowerCase();
+        if (a.equals(b)) {
+            throw new IllegalArgumentException("Identical addresses " + tokenA);
+        }
+        return Numeric.toBigInt(a).compareTo(Numeric.toBigInt(b)) < 0
+                ? new String[]{a, b}
+                : new String[]{b, a};
+    }
+
+    public static String computePairAddress(final String factory, final byte[] initCodeHash, final String tokenA, final String tokenB) {
+        final String[] tokens = sortTokens(tokenA, tokenB);
+        final byte[] packed = new byte[40];
+        System.arraycopy(_address(tokens[0]), 0, packed, 0, 20);
+        System.arraycopy(_address(tokens[1]), 0, packed, 20, 20);
+        final byte[] salt = Hash.sha3(packed);
+        final byte[] input = new byte[1 + 20 + 32 + 32];
+        input[0] = (byte) 0xff;
+        System.arraycopy(_address(factory), 0, input, 1, 20);
+        System.arraycopy(salt, 0, input, 21, 32);
+        System.arraycopy(initCodeHash, 0, input, 53, 32);
+        final byte[] hash = Hash.sha3(input);
+        final byte[] address = new byte[20];
+        System.arraycopy(hash, 12, address, 0, 20);
+        return Keys.toChecksumAddress(Numeric.toHexString(address));
+    }
+
+    private static byte[] _address(final String address) {
+        return Numeric.toBytesPadded(Numeric.toBigInt(address), 20);
+    }
+
+    private static <T> CompletableFuture<T> _once(final Map<String, CompletableFuture<T>> cache, final String key, final Function<String, CompletableFuture<T>> loader) {
+        final CompletableFuture<T> future = cache.computeIfAbsent(key, loader);
+        //Don't remember failures
+        future.whenComplete((value, error) -> {
+            if (error != null) {
+                cache.remove(key, future);
+            }
+        });
+        return future;
+    }
+}
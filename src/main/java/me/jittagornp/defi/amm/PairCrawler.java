@@ -0,0 +1,425 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.amm;
+
+import lombok.extern.slf4j.Slf4j;
+import me.jittagornp.defi.multicall.MulticallAggregator;
+import me.jittagornp.defi.smartcontract.ERC20;
+import me.jittagornp.defi.smartcontract.Factory;
+import me.jittagornp.defi.smartcontract.Pairs;
+import org.web3j.abi.datatypes.Type;
+import org.web3j.protocol.core.DefaultBlockParameterName;
+import org.web3j.protocol.core.RemoteFunctionCall;
+import org.web3j.utils.Numeric;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+/**
+ * Every pair of a factory (allPairs, token0, token1 and the tokens' decimals) crawled in chunks of multicalls,
+ * a few chunks in flight at a time, into a {@link PairIndex}.
+ * <p>
+ * Each finished chunk is appended to a checkpoint file (same checksummed record log as the token metadata store),
+ * a crawl after a crash or on a later day only fetches the chunks that are missing, including the pairs created since.
+ * <p>
+ * Files : &lt;factory&gt;.log (checkpoint), &lt;factory&gt;.idx (index)
+ *
+ * @author jittagornp
+ */
+@Slf4j
+public class PairCrawler implements Closeable {
+
+    public static final int DEFAULT_CHUNK_SIZE = 500;
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    private static final int MAGIC = 0x44465043; //DFPC
+    private static final int ADDRESS_SIZE = 20;
+    private static final int HEADER_SIZE = 4 + ADDRESS_SIZE;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final MulticallAggregator multicall;
+    private final Factory factory;
+    private final Function<String, Pairs> pairLoader;
+    private final Function<String, ERC20> tokenLoader;
+    private final byte[] factoryAddress;
+    private final Path checkpointPath;
+    private final Path indexPath;
+    private final FileChannel channel;
+
+    //PairIndex.RECORD_SIZE bytes per pair, by pair index
+    private byte[] records = new byte[1024 * PairIndex.RECORD_SIZE];
+    private final BitSet done = new BitSet();
+    private volatile int chunkSize = DEFAULT_CHUNK_SIZE;
+    private volatile int parallelism = DEFAULT_PARALLELISM;
+
+    private PairCrawler(final MulticallAggregator multicall, final Factory factory, final Function<String, Pairs> pairLoader, final Function<String, ERC20> tokenLoader, final Path directory) throws IOException {
+        this.multicall = multicall;
+        this.factory = factory;
+        this.pairLoader = pairLoader;
+        this.tokenLoader = tokenLoader;
+        this.factoryAddress = Numeric.hexStringToByteArray(factory.getContractAddress());
+        this.checkpointPath = directory.resolve(factory.getContractAddress().toLowerCase() + ".log");
+        this.indexPath = getIndexPath(directory, factory.getContractAddress());
+        this.channel = FileChannel.open(checkpointPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        _load();
+    }
+
+    /**
+     * Open (or start) the checkpoint of the factory in the directory
+     *
+     * @param pairLoader  pair address -&gt; Pairs contract
+     * @param tokenLoader token address -&gt; ERC20 contract
+     */
+    public static PairCrawler open(final MulticallAggregator multicall, final Factory factory, final Function<String, Pairs> pairLoader, final Function<String, ERC20> tokenLoader, final Path directory) throws IOException {
+        Files.createDirectories(directory);
+        return new PairCrawler(multicall, factory, pairLoader, tokenLoader, directory);
+    }
+
+    public static Path getIndexPath(final Path directory, final String factory) {
+        return directory.resolve(factory.toLowerCase() + ".idx");
+    }
+
+    public Path getIndexPath() {
+        return indexPath;
+    }
+
+    /**
+     * Pairs per chunk, each chunk is up to three multicalls (allPairs, token0 + token1, decimals)
+     */
+    public void setChunkSize(final int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Required chunkSize > 0");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Chunks in flight at the same time
+     */
+    public void setParallelism(final int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Required parallelism > 0");
+        }
+        this.parallelism = parallelism;
+    }
+
+    public synchronized int getCrawledCount() {
+        return done.cardinality();
+    }
+
+    /**
+     * Crawl the pairs not in the checkpoint yet, then write and return the index.
+     * Completes exceptionally when a chunk still fails after retries, crawl again to resume.
+     */
+    @SuppressWarnings("rawtypes")
+    public CompletableFuture<PairIndex> crawl() {
+        return multicall.call(factory.getContractAddress(), factory.allPairsLength())
+                .thenApply(values -> MulticallAggregator.<BigInteger>singleValue(values).intValue())
+                .thenCompose(length -> {
+                    final List<int[]> chunks = new ArrayList<>();
+                    final int size = chunkSize;
+                    synchronized (this) {
+                        for (int from = 0; from < length; from += size) {
+                            final int to = Math.min(length, from + size);
+                            if (done.nextClearBit(from) < to) {
+                                chunks.add(new int[]{from, to});
+                            }
+                        }
+                    }
+                    log.info("Crawl factory {} : {} pairs, {} crawled, {} chunks to go", factory.getContractAddress(), length, getCrawledCount(), chunks.size());
+                    return _runAll(chunks)
+                            .thenApply(failed -> {
+                                if (failed > 0) {
+                                    throw new IllegalStateException(failed + " chunks of factory " + factory.getContractAddress() + " failed, crawl again to resume");
+                                }
+                                return length;
+                            });
+                })
+                .thenApply(length -> {
+                    final PairIndex index;
+                    synchronized (this) {
+                        index = PairIndex.build(factoryAddress, records, length);
+                    }
+                    try {
+                        index.save(indexPath);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    log.info("Saved {} to {}", index, indexPath);
+                    return index;
+                });
+    }
+
+    /**
+     * Keep up to parallelism chunks in flight
+     *
+     * @return number of failed chunks
+     */
+    private CompletableFuture<Integer> _runAll(final List<int[]> chunks) {
+        final CompletableFuture<Integer> result = new CompletableFuture<>();
+        if (chunks.isEmpty()) {
+            result.complete(0);
+            return result;
+        }
+        final int workers = Math.min(parallelism, chunks.size());
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger(workers);
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger finished = new AtomicInteger();
+        for (int i = 0; i < workers; i++) {
+            _next(chunks, next, running, failed, finished, result);
+        }
+        return result;
+    }
+
+    private void _next(final List<int[]> chunks, final AtomicInteger next, final AtomicInteger running, final AtomicInteger failed, final AtomicInteger finished, final CompletableFuture<Integer> result) {
+        final int i = next.getAndIncrement();
+        if (i >= chunks.size()) {
+            if (running.decrementAndGet() == 0) {
+                result.complete(failed.get());
+            }
+            return;
+        }
+        final int[] chunk = chunks.get(i);
+        _crawlChunk(chunk[0], chunk[1], 1).whenComplete((none, error) -> {
+            if (error != null) {
+                failed.incrementAndGet();
+                log.warn("Crawl chunk {} - {} error : {}", chunk[0], chunk[1], error.getMessage());
+            }
+            final int count = finished.incrementAndGet();
+            if (count % 100 == 0 || count == chunks.size()) {
+                log.info("Crawled {} / {} chunks of factory {}", count, chunks.size(), factory.getContractAddress());
+            }
+            _next(chunks, next, running, failed, finished, result);
+        });
+    }
+
+    private CompletableFuture<Void> _crawlChunk(final int from, final int to, final int attempt) {
+        CompletableFuture<Void> future;
+        try {
+            future = _fetchChunk(from, to);
+        } catch (RuntimeException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+        return future.handle((none, error) -> {
+            if (error == null) {
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+            if (attempt < MAX_ATTEMPTS) {
+                log.debug("Retry chunk {} - {} : {}", from, to, error.getMessage());
+                return _crawlChunk(from, to, attempt + 1);
+            }
+            final CompletableFuture<Void> failure = new CompletableFuture<>();
+            failure.completeExceptionally(error);
+            return failure;
+        }).thenCompose(Function.identity());
+    }
+
+    /**
+     * allPairs(i) -&gt; token0 / token1 of each pair -&gt; decimals of each token, then checkpoint
+     */
+    //Multicall results are web3j's raw List<Type>, here, in crawl and in _fetchDecimals
+    @SuppressWarnings("rawtypes")
+    private CompletableFuture<Void> _fetchChunk(final int from, final int to) {
+        final List<String> factoryTargets = new ArrayList<>(to - from);
+        final List<RemoteFunctionCall<?>> allPairs = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            factoryTargets.add(factory.getContractAddress());
+            allPairs.add(factory.allPairs(BigInteger.valueOf(i)));
+        }
+        return multicall.callAll(factoryTargets, allPairs, DefaultBlockParameterName.LATEST)
+                .thenCompose(results -> {
+                    final List<String> pairs = new ArrayList<>(results.size());
+                    for (final List<Type> result : results) {
+                        if (result == null) {
+                            throw new IllegalStateException("allPairs failed");
+                        }
+                        pairs.add(MulticallAggregator.singleValue(result));
+                    }
+                    //Calls without arguments encode the same for every target
+                    final Pairs pair = pairLoader.apply(pairs.get(0));
+                    final RemoteFunctionCall<String> token0 = pair.token0();
+                    final RemoteFunctionCall<String> token1 = pair.token1();
+                    final List<String> targets = new ArrayList<>(pairs.size() * 2);
+                    final List<RemoteFunctionCall<?>> calls = new ArrayList<>(pairs.size() * 2);
+                    for (final String address : pairs) {
+                        targets.add(address);
+                        calls.add(token0);
+                        targets.add(address);
+                        calls.add(token1);
+                    }
+                    return multicall.callAll(targets, calls, DefaultBlockParameterName.LATEST)
+                            .thenCompose(tokens -> _fetchDecimals(from, pairs, tokens));
+                });
+    }
+
+    @SuppressWarnings("rawtypes")
+    private CompletableFuture<Void> _fetchDecimals(final int from, final List<String> pairs, final List<List<Type>> tokens) {
+        //Non standard pairs (token0 / token1 failed) keep zero tokens and are left out of the index
+        final String[] tokenAddresses = new String[tokens.size()];
+        final Map<String, Integer> unique = new LinkedHashMap<>();
+        for (int i = 0; i < tokens.size(); i++) {
+            if (tokens.get(i) != null) {
+                tokenAddresses[i] = ((String) MulticallAggregator.singleValue(tokens.get(i))).toLowerCase();
+                unique.putIfAbsent(tokenAddresses[i], unique.size());
+            }
+        }
+        if (unique.isEmpty()) {
+            _checkpoint(from, pairs, tokenAddresses, new int[0], unique);
+            return CompletableFuture.completedFuture(null);
+        }
+        final List<String> targets = new ArrayList<>(unique.keySet());
+        final RemoteFunctionCall<BigInteger> decimals = tokenLoader.apply(targets.get(0)).decimals();
+        final List<RemoteFunctionCall<?>> calls = new ArrayList<>(targets.size());
+        for (int i = 0; i < targets.size(); i++) {
+            calls.add(decimals);
+        }
+        return multicall.callAll(targets, calls, DefaultBlockParameterName.LATEST)
+                .thenAccept(results -> {
+                    final int[] values = new int[results.size()];
+                    for (int i = 0; i < results.size(); i++) {
+                        final BigInteger value = results.get(i) == null ? null : MulticallAggregator.singleValue(results.get(i));
+                        //Not an ERC20 or nonsense decimals
+                        values[i] = value == null || value.compareTo(BigInteger.valueOf(Byte.MAX_VALUE)) > 0 ? -1 : value.intValue();
+                    }
+                    _checkpoint(from, pairs, tokenAddresses, values, unique);
+                });
+    }
+
+    private void _checkpoint(final int from, final List<String> pairs, final String[] tokens, final int[] decimals, final Map<String, Integer> unique) {
+        final byte[] chunk = new byte[pairs.size() * PairIndex.RECORD_SIZE];
+        for (int i = 0; i < pairs.size(); i++) {
+            final int base = i * PairIndex.RECORD_SIZE;
+            System.arraycopy(Numeric.hexStringToByteArray(pairs.get(i)), 0, chunk, base, ADDRESS_SIZE);
+            for (int side = 0; side < 2; side++) {
+                final String token = tokens[i * 2 + side];
+                if (token == null) {
+                    continue;
+                }
+                System.arraycopy(Numeric.hexStringToByteArray(token), 0, chunk, base + ADDRESS_SIZE * (side + 1), ADDRESS_SIZE);
+                chunk[base + ADDRESS_SIZE * 3 + side] = (byte) decimals[unique.get(token)];
+            }
+        }
+        final ByteBuffer payload = ByteBuffer.allocate(8 + chunk.length);
+        payload.putInt(from)
+                .putInt(pairs.size())
+                .put(chunk);
+        ((Buffer) payload).flip();
+        final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.remaining());
+        record.putInt(payload.remaining())
+                .putInt(_crc(payload.duplicate()))
+                .put(payload);
+        ((Buffer) record).flip();
+        synchronized (this) {
+            try {
+                long position = channel.size();
+                while (record.hasRemaining()) {
+                    position = position + channel.write(record, position);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            _apply(from, pairs.size(), chunk);
+        }
+    }
+
+    private void _apply(final int from, final int count, final byte[] chunk) {
+        final int end = (from + count) * PairIndex.RECORD_SIZE;
+        if (end > records.length) {
+            records = Arrays.copyOf(records, Math.max(end, records.length * 2));
+        }
+        System.arraycopy(chunk, 0, records, from * PairIndex.RECORD_SIZE, count * PairIndex.RECORD_SIZE);
+        done.set(from, from + count);
+    }
+
+    private synchronized void _load() throws IOException {
+        final long size = channel.size();
+        if (size < HEADER_SIZE) {
+            _reset();
+            return;
+        }
+        final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        final int magic = buffer.getInt();
+        final byte[] address = new byte[ADDRESS_SIZE];
+        buffer.get(address);
+        if (magic != MAGIC || !Arrays.equals(address, factoryAddress)) {
+            log.warn("Unknown pair crawl checkpoint {}, start a new one", checkpointPath);
+            _reset();
+            return;
+        }
+        long valid = HEADER_SIZE;
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            final int length = buffer.getInt();
+            final int crc = buffer.getInt();
+            if (length < 8 || length > buffer.remaining()) {
+                break;
+            }
+            final ByteBuffer payload = buffer.slice();
+            ((Buffer) payload).limit(length);
+            if (_crc(payload.duplicate()) != crc) {
+                break;
+            }
+            final int from = payload.getInt();
+            final int count = payload.getInt();
+            if (from < 0 || count < 0 || (long) count * PairIndex.RECORD_SIZE != payload.remaining()) {
+                break;
+            }
+            final byte[] chunk = new byte[payload.remaining()];
+            payload.get(chunk);
+            _apply(from, count, chunk);
+            ((Buffer) buffer).position(buffer.position() + length);
+            valid = buffer.position();
+        }
+        if (valid < size) {
+            log.warn("Truncate pair crawl checkpoint {} at {} of {} bytes", checkpointPath, valid, size);
+            channel.truncate(valid);
+        }
+        log.info("Loaded {} crawled pairs from {}", done.cardinality(), checkpointPath);
+    }
+
+    private void _reset() throws IOException {
+        channel.truncate(0);
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).put(factoryAddress);
+        ((Buffer) header).flip();
+        channel.write(header, 0);
+    }
+
+    private static int _crc(final ByteBuffer payload) {
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.force(false);
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return "PairCrawler{" + factory.getContractAddress() + ", " + getCrawledCount() + " pairs}";
+    }
+}
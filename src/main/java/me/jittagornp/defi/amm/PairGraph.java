@@ -0,0 +1,204 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.amm;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Token graph of the pairs of one router, tokens and pairs are numbered and the adjacency
+ * is kept as primitive arrays (compressed sparse rows) so a path search never touches a String.
+ * Reserves are doubles, good enough to rank paths, exact amounts are computed afterwards with {@link ConstantProduct}.
+ *
+ * @author jittagornp
+ */
+public class PairGraph {
+
+    private final Map<String, Integer> tokenIndex = new HashMap<>();
+    private final Map<String, Integer> pairIndex = new HashMap<>();
+    private String[] tokens = new String[16];
+    private int tokenCount;
+
+    private String[] pairs = new String[16];
+    private int[] pairToken0 = new int[16];
+    private int[] pairToken1 = new int[16];
+    private double[] reserve0 = new double[16];
+    private double[] reserve1 = new double[16];
+    private int pairCount;
+
+    //Edges of token t are edgeTo / edgePair[offsets[t] .. offsets[t + 1])
+    private int[] offsets = new int[1];
+    private int[] edgeTo = new int[0];
+    private int[] edgePair = new int[0];
+    private boolean dirty;
+
+    public synchronized boolean contains(final String pair) {
+        return pairIndex.containsKey(pair.toLowerCase());
+    }
+
+    public synchronized int size() {
+        return pairCount;
+    }
+
+    public synchronized void addPair(final String pair, final String tokenA, final String tokenB) {
+        final String key = pair.toLowerCase();
+        if (pairIndex.containsKey(key)) {
+            return;
+        }
+        final String[] sorted = PairAddressResolver.sortTokens(tokenA, tokenB);
+        if (pairCount == pairs.length) {
+            final int capacity = pairCount * 2;
+            pairs = Arrays.copyOf(pairs, capacity);
+            pairToken0 = Arrays.copyOf(pairToken0, capacity);
+            pairToken1 = Arrays.copyOf(pairToken1, capacity);
+            reserve0 = Arrays.copyOf(reserve0, capacity);
+            reserve1 = Arrays.copyOf(reserve1, capacity);
+        }
+        pairs[pairCount] = pair;
+        pairToken0[pairCount] = _token(sorted[0]);
+        pairToken1[pairCount] = _token(sorted[1]);
+        pairIndex.put(key, pairCount);
+        pairCount = pairCount + 1;
+        dirty = true;
+    }
+
+    private int _token(final String token) {
+        final Integer index = tokenIndex.get(token);
+        if (index != null) {
+            return index;
+        }
+        if (tokenCount == tokens.length) {
+            tokens = Arrays.copyOf(tokens, tokenCount * 2);
+        }
+        tokens[tokenCount] = token;
+        tokenIndex.put(token, tokenCount);
+        tokenCount = tokenCount + 1;
+        return tokenCount - 1;
+    }
+
+    public synchronized void setReserves(final String pair, final BigInteger reserve0, final BigInteger reserve1) {
+        final Integer i = pairIndex.get(pair.toLowerCase());
+        if (i != null) {
+            this.reserve0[i] = reserve0.doubleValue();
+            this.reserve1[i] = reserve1.doubleValue();
+        }
+    }
+
+    /**
+     * Pair addresses and their tokens, {pair, token0, token1}
+     */
+    public synchronized List<String[]> getPairs() {
+        final List<String[]> list = new ArrayList<>(pairCount);
+        for (int i = 0; i < pairCount; i++) {
+            list.add(new String[]{pairs[i], tokens[pairToken0[i]], tokens[pairToken1[i]]});
+        }
+        return list;
+    }
+
+    private void _rebuild() {
+        final int[] degree = new int[tokenCount + 1];
+        for (int i = 0; i < pairCount; i++) {
+            degree[pairToken0[i]]++;
+            degree[pairToken1[i]]++;
+        }
+        offsets = new int[tokenCount + 1];
+        for (int t = 0; t < tokenCount; t++) {
+            offsets[t + 1] = offsets[t] + degree[t];
+        }
+        edgeTo = new int[pairCount * 2];
+        edgePair = new int[pairCount * 2];
+        final int[] next = Arrays.copyOf(offsets, tokenCount);
+        for (int i = 0; i < pairCount; i++) {
+            final int a = pairToken0[i];
+            final int b = pairToken1[i];
+            edgeTo[next[a]] = b;
+            edgePair[next[a]++] = i;
+            edgeTo[next[b]] = a;
+            edgePair[next[b]++] = i;
+        }
+        dirty = false;
+    }
+
+    /**
+     * Simple path with the highest output of at most maxHops pairs, pairs without reserves are skipped.
+     *
+     * @return token addresses from tokenIn to tokenOut, null when there is no path
+     */
+    public synchronized List<String> findBestPath(final String tokenIn, final String tokenOut, final double amountIn, final int maxHops, final int feeBps) {
+        final Integer from = tokenIndex.get(tokenIn.toLowerCase());
+        final Integer to = tokenIndex.get(tokenOut.toLowerCase());
+        if (from == null || to == null || from.equals(to)) {
+            return null;
+        }
+        if (dirty) {
+            _rebuild();
+        }
+        final Search search = new Search(to, maxHops, (ConstantProduct.BPS - feeBps) / (double) ConstantProduct.BPS);
+        search.path[0] = from;
+        search.visited[from] = true;
+        search.run(from, amountIn, 0);
+        if (search.bestHops == 0) {
+            return null;
+        }
+        final List<String> path = new ArrayList<>(search.bestHops + 1);
+        for (int i = 0; i <= search.bestHops; i++) {
+            path.add(tokens[search.bestPath[i]]);
+        }
+        return path;
+    }
+
+    private class Search {
+
+        private final int target;
+        private final int maxHops;
+        private final double feeFactor;
+        private final int[] path;
+        private final boolean[] visited = new boolean[tokenCount];
+        private final int[] bestPath;
+        private double bestAmount;
+        private int bestHops;
+
+        private Search(final int target, final int maxHops, final double feeFactor) {
+            this.target = target;
+            this.maxHops = maxHops;
+            this.feeFactor = feeFactor;
+            this.path = new int[maxHops + 1];
+            this.bestPath = new int[maxHops + 1];
+        }
+
+        private void run(final int token, final double amount, final int hops) {
+            for (int e = offsets[token]; e < offsets[token + 1]; e++) {
+                final int next = edgeTo[e];
+                if (visited[next]) {
+                    continue;
+                }
+                final int pair = edgePair[e];
+                final boolean zeroForOne = pairToken0[pair] == token;
+                final double reserveIn = zeroForOne ? reserve0[pair] : reserve1[pair];
+                final double reserveOut = zeroForOne ? reserve1[pair] : reserve0[pair];
+                if (reserveIn <= 0 || reserveOut <= 0) {
+                    continue;
+                }
+                final double amountInWithFee = amount * feeFactor;
+                final double out = amountInWithFee * reserveOut / (reserveIn + amountInWithFee);
+                path[hops + 1] = next;
+                if (next == target) {
+                    if (out > bestAmount) {
+                        bestAmount = out;
+                        bestHops = hops + 1;
+                        System.arraycopy(path, 0, bestPath, 0, hops + 2);
+                    }
+                } else if (hops + 1 < maxHops) {
+                    visited[next] = true;
+                    run(next, out, hops + 1);
+                    visited[next] = false;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.amm;
+
+import org.web3j.utils.Numeric;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Every pair of a factory and its tokens in flat arrays : pair -&gt; token0 / token1 and token -&gt; pairs,
+ * addresses are raw 20 bytes looked up by binary search, about 45 bytes per pair in memory and on disk.
+ * <p>
+ * File : int magic, 20 bytes factory, int pairs, int tokens, sorted token addresses, token decimals (-1 = unknown),
+ * pair addresses (factory order), token0 / token1 index of each pair, pair indices sorted by address,
+ * token -&gt; pairs offsets and pair indices, int crc32 of all that.
+ *
+ * @author jittagornp
+ */
+public class PairIndex {
+
+    private static final int MAGIC = 0x44465049; //DFPI
+    private static final int ADDRESS_SIZE = 20;
+
+    /**
+     * pair, token0, token1 (20 bytes each), decimals of token0, decimals of token1 (-1 = unknown)
+     */
+    public static final int RECORD_SIZE = ADDRESS_SIZE * 3 + 2;
+
+    private final byte[] factory;
+    private final int pairCount;
+    private final int tokenCount;
+    private final byte[] tokens;
+    private final byte[] decimals;
+    private final byte[] pairs;
+    private final int[] pairToken0;
+    private final int[] pairToken1;
+    private final int[] sortedPairs;
+    //Pairs of token t are tokenPairs[tokenOffsets[t] .. tokenOffsets[t + 1])
+    private final int[] tokenOffsets;
+    private final int[] tokenPairs;
+
+    private PairIndex(final byte[] factory, final byte[] tokens, final byte[] decimals, final byte[] pairs, final int[] pairToken0, final int[] pairToken1, final int[] sortedPairs, final int[] tokenOffsets, final int[] tokenPairs) {
+        this.factory = factory;
+        this.pairCount = pairToken0.length;
+        this.tokenCount = decimals.length;
+        this.tokens = tokens;
+        this.decimals = decimals;
+        this.pairs = pairs;
+        this.pairToken0 = pairToken0;
+        this.pairToken1 = pairToken1;
+        this.sortedPairs = sortedPairs;
+        this.tokenOffsets = tokenOffsets;
+        this.tokenPairs = tokenPairs;
+    }
+
+    /**
+     * @param records {@value #RECORD_SIZE} bytes per pair in factory order, pairs with a zero token are skipped
+     */
+    public static PairIndex build(final byte[] factory, final byte[] records, final int count) {
+        final int recordSize = RECORD_SIZE;
+        //Unique tokens, sorted
+        final List<Integer> refs = new ArrayList<>(count * 2);
+        final List<Integer> valid = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final int base = i * recordSize;
+            if (_isZero(records, base + ADDRESS_SIZE) || _isZero(records, base + ADDRESS_SIZE * 2)) {
+                continue;
+            }
+            valid.add(i);
+            refs.add(base + ADDRESS_SIZE);
+            refs.add(base + ADDRESS_SIZE * 2);
+        }
+        refs.sort((a, b) -> _compare(records, a, records, b));
+        final byte[] tokenBytes = new byte[refs.size() * ADDRESS_SIZE];
+        int tokenCount = 0;
+        for (final int ref : refs) {
+            if (tokenCount == 0 || _compare(records, ref, tokenBytes, (tokenCount - 1) * ADDRESS_SIZE) != 0) {
+                System.arraycopy(records, ref, tokenBytes, tokenCount * ADDRESS_SIZE, ADDRESS_SIZE);
+                tokenCount = tokenCount + 1;
+            }
+        }
+        final byte[] tokens = Arrays.copyOf(tokenBytes, tokenCount * ADDRESS_SIZE);
+        final byte[] tokenDecimals = new byte[tokenCount];
+        Arrays.fill(tokenDecimals, (byte) -1);
+
+        final int pairCount = valid.size();
+        final byte[] pairs = new byte[pairCount * ADDRESS_SIZE];
+        final int[] pairToken0 = new int[pairCount];
+        final int[] pairToken1 = new int[pairCount];
+        for (int p = 0; p < pairCount; p++) {
+            final int base = valid.get(p) * recordSize;
+            System.arraycopy(records, base, pairs, p * ADDRESS_SIZE, ADDRESS_SIZE);
+            pairToken0[p] = _search(tokens, tokenCount, records, base + ADDRESS_SIZE);
+            pairToken1[p] = _search(tokens, tokenCount, records, base + ADDRESS_SIZE * 2);
+            if (records[base + ADDRESS_SIZE * 3] >= 0) {
+                tokenDecimals[pairToken0[p]] = records[base + ADDRESS_SIZE * 3];
+            }
+            if (records[base + ADDRESS_SIZE * 3 + 1] >= 0) {
+                tokenDecimals[pairToken1[p]] = records[base + ADDRESS_SIZE * 3 + 1];
+            }
+        }
+        final List<Integer> order = new ArrayList<>(pairCount);
+        for (int p = 0; p < pairCount; p++) {
+            order.add(p);
+        }
+        order.sort((a, b) -> _compare(pairs, a * ADDRESS_SIZE, pairs, b * ADDRESS_SIZE));
+        final int[] sortedPairs = new int[pairCount];
+        for (int p = 0; p < pairCount; p++) {
+            sortedPairs[p] = order.get(p);
+        }
+
+        final int[] tokenOffsets = new int[tokenCount + 1];
+        for (int p = 0; p < pairCount; p++) {
+            tokenOffsets[pairToken0[p] + 1]++;
+            tokenOffsets[pairToken1[p] + 1]++;
+        }
+        for (int t = 0; t < tokenCount; t++) {
+            tokenOffsets[t + 1] = tokenOffsets[t + 1] + tokenOffsets[t];
+        }
+        final int[] tokenPairs = new int[pairCount * 2];
+        final int[] next = Arrays.copyOf(tokenOffsets, tokenCount);
+        for (int p = 0; p < pairCount; p++) {
+            tokenPairs[next[pairToken0[p]]++] = p;
+            tokenPairs[next[pairToken1[p]]++] = p;
+        }
+        return new PairIndex(factory, tokens, tokenDecimals, pairs, pairToken0, pairToken1, sortedPairs, tokenOffsets, tokenPairs);
+    }
+
+    public String getFactory() {
+        return Numeric.toHexString(factory);
+    }
+
+    public int getPairCount() {
+        return pairCount;
+    }
+
+    public int getTokenCount() {
+        return tokenCount;
+    }
+
+    /**
+     * @param i 0 .. pairCount - 1, factory order
+     */
+    public String getPair(final int i) {
+        return _address(pairs, i);
+    }
+
+    public String getToken0(final int i) {
+        return _address(tokens, pairToken0[i]);
+    }
+
+    public String getToken1(final int i) {
+        return _address(tokens, pairToken1[i]);
+    }
+
+    /**
+     * @return {token0, token1}, null when the pair is not in the index
+     */
+    public String[] getTokens(final String pair) {
+        final int p = _findPair(Numeric.hexStringToByteArray(pair));
+        if (p < 0) {
+            return null;
+        }
+        return new String[]{getToken0(p), getToken1(p)};
+    }
+
+    public List<String> getPairs(final String token) {
+        final int t = _search(tokens, tokenCount, Numeric.hexStringToByteArray(token), 0);
+        if (t < 0) {
+            return Collections.emptyList();
+        }
+        final List<String> list = new ArrayList<>(tokenOffsets[t + 1] - tokenOffsets[t]);
+        for (int e = tokenOffsets[t]; e < tokenOffsets[t + 1]; e++) {
+            list.add(getPair(tokenPairs[e]));
+        }
+        return list;
+    }
+
+    /**
+     * Pair of tokenA / tokenB, null when the factory had no such pair at crawl time
+     */
+    public String getPair(final String tokenA, final String tokenB) {
+        final int a = _search(tokens, tokenCount, Numeric.hexStringToByteArray(tokenA), 0);
+        final int b = _search(tokens, tokenCount, Numeric.hexStringToByteArray(tokenB), 0);
+        if (a < 0 || b < 0 || a == b) {
+            return null;
+        }
+        //Scan the token with fewer pairs
+        final int t = tokenOffsets[a + 1] - tokenOffsets[a] <= tokenOffsets[b + 1] - tokenOffsets[b] ? a : b;
+        final int other = t == a ? b : a;
+        for (int e = tokenOffsets[t]; e < tokenOffsets[t + 1]; e++) {
+            final int p = tokenPairs[e];
+            if (pairToken0[p] == other || pairToken1[p] == other) {
+                return getPair(p);
+            }
+        }
+        return null;
+    }
+
+    public boolean containsToken(final String token) {
+        return _search(tokens, tokenCount, Numeric.hexStringToByteArray(token), 0) >= 0;
+    }
+
+    /**
+     * -1 when unknown (decimals() failed)
+     */
+    public int getDecimals(final String token) {
+        final int t = _search(tokens, tokenCount, Numeric.hexStringToByteArray(token), 0);
+        return t < 0 ? -1 : decimals[t];
+    }
+
+    private int _findPair(final byte[] key) {
+        if (key.length != ADDRESS_SIZE) {
+            return -1;
+        }
+        int low = 0;
+        int high = pairCount - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int compare = _compare(pairs, sortedPairs[middle] * ADDRESS_SIZE, key, 0);
+            if (compare < 0) {
+                low = middle + 1;
+            } else if (compare > 0) {
+                high = middle - 1;
+            } else {
+                return sortedPairs[middle];
+            }
+        }
+        return -1;
+    }
+
+    private static int _search(final byte[] sorted, final int count, final byte[] key, final int keyOffset) {
+        if (key.length < keyOffset + ADDRESS_SIZE) {
+            return -1;
+        }
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int compare = _compare(sorted, middle * ADDRESS_SIZE, key, keyOffset);
+            if (compare < 0) {
+                low = middle + 1;
+            } else if (compare > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    private static int _compare(final byte[] a, final int aOffset, final byte[] b, final int bOffset) {
+        for (int i = 0; i < ADDRESS_SIZE; i++) {
+            final int compare = (a[aOffset + i] & 0xFF) - (b[bOffset + i] & 0xFF);
+            if (compare != 0) {
+                return compare;
+            }
+        }
+        return 0;
+    }
+
+    private static boolean _isZero(final byte[] bytes, final int offset) {
+        for (int i = 0; i < ADDRESS_SIZE; i++) {
+            if (bytes[offset + i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String _address(final byte[] bytes, final int i) {
+        //Not Numeric.toHexString(bytes, offset, length, true), it ignores the offset in the loop bound
+        return Numeric.toHexString(Arrays.copyOfRange(bytes, i * ADDRESS_SIZE, (i + 1) * ADDRESS_SIZE));
+    }
+
+    /**
+     * Written to a temporary file then moved, a crash never leaves a half written index.
+     */
+    public void save(final Path path) throws IOException {
+        final int size = 4 + ADDRESS_SIZE + 4 + 4
+                + tokens.length + decimals.length + pairs.length
+                + 4 * (pairCount * 3 + tokenOffsets.length + tokenPairs.length);
+        final ByteBuffer buffer = ByteBuffer.allocate(size + 4);
+        buffer.putInt(MAGIC)
+                .put(factory)
+                .putInt(pairCount)
+                .putInt(tokenCount)
+                .put(tokens)
+                .put(decimals)
+                .put(pairs);
+        for (final int[] values : new int[][]{pairToken0, pairToken1, sortedPairs, tokenOffsets, tokenPairs}) {
+            buffer.asIntBuffer().put(values);
+            ((Buffer) buffer).position(buffer.position() + values.length * 4);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, size);
+        buffer.putInt((int) crc.getValue());
+        ((Buffer) buffer).flip();
+        final Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static PairIndex load(final Path path) throws IOException {
+        final byte[] bytes = Files.readAllBytes(path);
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, Math.max(0, bytes.length - 4));
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (bytes.length < 4 + ADDRESS_SIZE + 12 || buffer.getInt() != MAGIC || buffer.getInt(bytes.length - 4) != (int) crc.getValue()) {
+            throw new IOException("Invalid pair index " + path);
+        }
+        final byte[] factory = new byte[ADDRESS_SIZE];
+        buffer.get(factory);
+        final int pairCount = buffer.getInt();
+        final int tokenCount = buffer.getInt();
+        final byte[] tokens = new byte[tokenCount * ADDRESS_SIZE];
+        final byte[] decimals = new byte[tokenCount];
+        final byte[] pairs = new byte[pairCount * ADDRESS_SIZE];
+        buffer.get(tokens).get(decimals).get(pairs);
+        final int[][] values = {new int[pairCount], new int[pairCount], new int[pairCount], new int[tokenCount + 1], new int[pairCount * 2]};
+        for (final int[] value : values) {
+            buffer.asIntBuffer().get(value);
+            ((Buffer) buffer).position(buffer.position() + value.length * 4);
+        }
+        return new PairIndex(factory, tokens, decimals, pairs, values[0], values[1], values[2], values[3], values[4]);
+    }
+
+    @Override
+    public String toString() {
+        return "PairIndex{" + getFactory() + ", " + pairCount + " pairs, " + tokenCount + " tokens}";
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.amm;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.math.BigInteger;
+
+/**
+ * Immutable reserves of a pair at one point in time.
+ *
+ * @author jittagornp
+ */
+@Getter
+@Builder(toBuilder = true)
+@ToString
+public class PairReserves {
+
+    private final String pair;
+
+    /**
+     * Lowercase, token0 &lt; token1
+     */
+    private final String token0;
+
+    private final String token1;
+
+    private final BigInteger reserve0;
+
+    private final BigInteger reserve1;
+
+    private final long blockTimestampLast;
+
+    /**
+     * 0 when unknown (read from latest)
+     */
+    private final long blockNumber;
+
+    private final long updatedMillis;
+
+    public boolean isToken0(final String token) {
+        return token0.equalsIgnoreCase(token);
+    }
+
+    public BigInteger getReserveIn(final String tokenIn) {
+        return isToken0(tokenIn) ? reserve0 : reserve1;
+    }
+
+    public BigInteger getReserveOut(final String tokenIn) {
+        return isToken0(tokenIn) ? reserve1 : reserve0;
+    }
+}
@@ -0,0 +1,468 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.amm;
+
+import io.reactivex.Flowable;
+import io.reactivex.disposables.Disposable;
+import lombok.extern.slf4j.Slf4j;
+import org.web3j.protocol.core.methods.response.Log;
+import org.web3j.tuples.generated.Tuple3;
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Reserves of many pairs kept in memory from their Sync events, one log subscription filtered by all pair addresses.
+ * Pairs are loaded once with getReserves() after the subscription starts, a Sync seen before the load result wins.
+ * <p>
+ * Reserves are uint112, stored as two longs each in one long[] (4 longs per pair).
+ * A block is complete when a later head or a log of a later block arrives, its state is then published
+ * as an immutable {@link Snapshot}, the last {@value #SNAPSHOTS} are kept.
+ * <p>
+ * A dropped Sync (e.g. an HTTP filter that lost logs) would leave a pair wrong forever, so every pair is reloaded
+ * every {@link #setReconcileBlocks(long)} heads, and {@link #getFresh(String)} refuses (and reloads) a pair
+ * not confirmed by a Sync or a load for {@link #setMaxAgeMillis(long)}.
+ *
+ * @author jittagornp
+ */
+@Slf4j
+public class PoolStateMirror {
+
+    private static final int SNAPSHOTS = 32;
+    private static final int LONGS_PER_PAIR = 4;
+    private static final int LOG_INDEX_BITS = 20;
+    private static final long RESUBSCRIBE_MILLIS = 5_000;
+    public static final long DEFAULT_RECONCILE_BLOCKS = 20;
+    public static final long DEFAULT_MAX_AGE_MILLIS = 120_000;
+
+    private final Function<List<String>, Flowable<Log>> logSource;
+    private final BiFunction<String, Boolean, CompletableFuture<Tuple3<BigInteger, BigInteger, BigInteger>>> reservesLoader;
+    private final List<PoolStateListener> listeners = new CopyOnWriteArrayList<>();
+    private final Map<String, Integer> index = new ConcurrentHashMap<>();
+    private final Set<Integer> reloading = ConcurrentHashMap.newKeySet();
+
+    private String[] pairs = new String[16];
+    private String[] token0s = new String[16];
+    private String[] token1s = new String[16];
+    private long[] reserves = new long[16 * LONGS_PER_PAIR];
+    //block << LOG_INDEX_BITS | logIndex of the last update, 0 = not loaded
+    private long[] positions = new long[16];
+    //System.currentTimeMillis() of the last Sync or load
+    private long[] checkedMillis = new long[16];
+    private int size;
+
+    private long currentBlock;
+    private long reconciledBlock;
+    private volatile long reconcileBlocks = DEFAULT_RECONCILE_BLOCKS;
+    private volatile long maxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+    private boolean dirty = true;
+    private volatile Snapshot snapshot;
+    private final Deque<Snapshot> snapshots = new ArrayDeque<>();
+    private Disposable subscription;
+
+    /**
+     * @param logSource      pair addresses -&gt; Sync logs of those addresses
+     * @param reservesLoader (pair address, fresh) -&gt; getReserves(), fresh = not from a cache (reload after a reorg or missed events)
+     */
+    public PoolStateMirror(final Function<List<String>, Flowable<Log>> logSource, final BiFunction<String, Boolean, CompletableFuture<Tuple3<BigInteger, BigInteger, BigInteger>>> reservesLoader) {
+        this.logSource = logSource;
+        this.reservesLoader = reservesLoader;
+    }
+
+    public void addListener(final PoolStateListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(final PoolStateListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Reload every pair once every this many heads, 0 = never
+     */
+    public void setReconcileBlocks(final long reconcileBlocks) {
+        this.reconcileBlocks = reconcileBlocks;
+    }
+
+    /**
+     * {@link #getFresh(String)} refuses a pair not confirmed for longer than this
+     */
+    public void setMaxAgeMillis(final long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Takes effect on the next {@link #start()}
+     */
+    public synchronized void addPair(final String pair, final String tokenA, final String tokenB) {
+        final String key = pair.toLowerCase();
+        if (index.containsKey(key)) {
+            return;
+        }
+        if (size == pairs.length) {
+            final int capacity = size * 2;
+            pairs = Arrays.copyOf(pairs, capacity);
+            token0s = Arrays.copyOf(token0s, capacity);
+            token1s = Arrays.copyOf(token1s, capacity);
+            reserves = Arrays.copyOf(reserves, capacity * LONGS_PER_PAIR);
+            positions = Arrays.copyOf(positions, capacity);
+            checkedMillis = Arrays.copyOf(checkedMillis, capacity);
+        }
+        final String[] tokens = PairAddressResolver.sortTokens(tokenA, tokenB);
+        pairs[size] = pair;
+        token0s[size] = tokens[0];
+        token1s[size] = tokens[1];
+        index.put(key, size);
+        size = size + 1;
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    public boolean contains(final String pair) {
+        return index.containsKey(pair.toLowerCase());
+    }
+
+    /**
+     * (Re)subscribe to the Sync events of all pairs and load the pairs not loaded yet.
+     *
+     * @return completes when every pair has reserves
+     */
+    public synchronized CompletableFuture<Void> start() {
+        _dispose();
+        final List<String> addresses = new ArrayList<>(Arrays.asList(pairs).subList(0, size));
+        if (addresses.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        subscription = logSource.apply(addresses)
+                .retryWhen(errors -> errors.flatMap(error -> {
+                    log.warn("Pool state Sync subscription error : {}, resubscribe", error.getMessage());
+                    //Sync events may have been missed
+                    _loadAll(true);
+                    return Flowable.timer(RESUBSCRIBE_MILLIS, TimeUnit.MILLISECONDS);
+                }))
+                .subscribe(this::_onLog, error -> log.warn("Pool state Sync subscription error : {}", error.getMessage()));
+        log.info("Pool state mirror watching {} pairs", addresses.size());
+        return _loadAll(false);
+    }
+
+    public synchronized void stop() {
+        _dispose();
+    }
+
+    private void _dispose() {
+        if (subscription != null) {
+            subscription.dispose();
+            subscription = null;
+        }
+    }
+
+    private synchronized CompletableFuture<Void> _loadAll(final boolean force) {
+        final List<CompletableFuture<Void>> loads = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            if (force || positions[i] == 0) {
+                loads.add(_load(i, force));
+            }
+        }
+        return CompletableFuture.allOf(loads.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private CompletableFuture<Void> _load(final int i, final boolean force) {
+        return reservesLoader.apply(pairs[i], force)
+                .thenAccept(result -> {
+                    final PairReserves changed;
+                    synchronized (this) {
+                        if (!force && positions[i] != 0) {
+                            return;
+                        }
+                        //Any Sync of the current block is newer than the loaded value
+                        final long position = Math.max(1, (currentBlock << LOG_INDEX_BITS) - 1);
+                        checkedMillis[i] = System.currentTimeMillis();
+                        if (positions[i] > position) {
+                            return;
+                        }
+                        final PairReserves current = positions[i] == 0 ? null : _reserves(i);
+                        if (current != null && current.getReserve0().equals(result.component1()) && current.getReserve1().equals(result.component2())) {
+                            return;
+                        }
+                        if (current != null) {
+                            log.warn("Reserves of {} were out of date at block {} (missed Sync or reorg), reloaded", pairs[i], current.getBlockNumber());
+                        }
+                        _set(i, result.component1(), result.component2(), position);
+                        changed = _reserves(i);
+                    }
+                    _fire(changed);
+                });
+    }
+
+    private void _reload(final int i) {
+        if (!reloading.add(i)) {
+            return;
+        }
+        _load(i, true).whenComplete((none, error) -> {
+            reloading.remove(i);
+            if (error != null) {
+                log.warn("Reload reserves of {} error : {}", pairs[i], error.getMessage());
+            }
+        });
+    }
+
+    public void onNewHead(final long blockNumber) {
+        final boolean reconcile;
+        synchronized (this) {
+            _advance(blockNumber);
+            if (reconciledBlock == 0) {
+                //Pairs were just loaded by start()
+                reconciledBlock = blockNumber;
+            }
+            reconcile = reconcileBlocks > 0 && size > 0 && blockNumber - reconciledBlock >= reconcileBlocks;
+            if (reconcile) {
+                reconciledBlock = blockNumber;
+            }
+        }
+        if (reconcile) {
+            _reconcile();
+        }
+    }
+
+    private void _reconcile() {
+        final int count;
+        synchronized (this) {
+            count = size;
+        }
+        for (int i = 0; i < count; i++) {
+            _reload(i);
+        }
+    }
+
+    private void _onLog(final Log value) {
+        final Integer i = index.get(value.getAddress().toLowerCase());
+        final String data = value.getData();
+        if (i == null || value.getBlockNumber() == null || data == null || data.length() < 128) {
+            return;
+        }
+        final long block = value.getBlockNumber().longValue();
+        final long position = block << LOG_INDEX_BITS | value.getLogIndex().longValue();
+        if (value.isRemoved()) {
+            log.info("Sync of {} removed by reorg, reload", value.getAddress());
+            synchronized (this) {
+                //The reloaded value must win over the removed Sync
+                if (positions[i] >= position) {
+                    positions[i] = Math.max(1, position - 1);
+                }
+            }
+            _reload(i);
+            return;
+        }
+        final PairReserves changed;
+        synchronized (this) {
+            _advance(block);
+            if (position <= positions[i]) {
+                return;
+            }
+            final int offset = data.startsWith("0x") ? 2 : 0;
+            final int base = i * LONGS_PER_PAIR;
+            reserves[base] = _parseHex(data, offset + 48);
+            reserves[base + 1] = _parseHex(data, offset + 32);
+            reserves[base + 2] = _parseHex(data, offset + 64 + 48);
+            reserves[base + 3] = _parseHex(data, offset + 64 + 32);
+            positions[i] = position;
+            checkedMillis[i] = System.currentTimeMillis();
+            dirty = true;
+            changed = listeners.isEmpty() ? null : _reserves(i);
+        }
+        _fire(changed);
+    }
+
+    private void _fire(final PairReserves changed) {
+        if (changed == null) {
+            return;
+        }
+        for (final PoolStateListener listener : listeners) {
+            try {
+                listener.onChange(changed);
+            } catch (RuntimeException e) {
+                log.warn("Pool state listener error ", e);
+            }
+        }
+    }
+
+    private void _set(final int i, final BigInteger reserve0, final BigInteger reserve1, final long position) {
+        final int base = i * LONGS_PER_PAIR;
+        reserves[base] = reserve0.longValue();
+        reserves[base + 1] = reserve0.shiftRight(64).longValue();
+        reserves[base + 2] = reserve1.longValue();
+        reserves[base + 3] = reserve1.shiftRight(64).longValue();
+        positions[i] = position;
+        dirty = true;
+    }
+
+    private void _advance(final long block) {
+        if (block <= currentBlock) {
+            return;
+        }
+        if (currentBlock > 0) {
+            final Snapshot previous = snapshot;
+            final Snapshot next = dirty || previous == null
+                    ? new Snapshot(currentBlock, size, Arrays.copyOf(reserves, size * LONGS_PER_PAIR), Arrays.copyOf(positions, size), pairs, token0s, token1s, index)
+                    : previous.at(currentBlock);
+            snapshots.addLast(next);
+            if (snapshots.size() > SNAPSHOTS) {
+                snapshots.removeFirst();
+            }
+            snapshot = next;
+            dirty = false;
+        }
+        currentBlock = block;
+    }
+
+    /**
+     * Latest reserves, may include part of the block being processed
+     */
+    public synchronized PairReserves get(final String pair) {
+        final Integer i = index.get(pair.toLowerCase());
+        return i == null || positions[i] == 0 ? null : _reserves(i);
+    }
+
+    /**
+     * Latest reserves, null when not loaded or not confirmed by a Sync or a load for maxAgeMillis
+     * (the pair is then reloaded in the background, read it from the chain meanwhile)
+     */
+    public PairReserves getFresh(final String pair) {
+        final Integer i = index.get(pair.toLowerCase());
+        if (i == null) {
+            return null;
+        }
+        synchronized (this) {
+            if (positions[i] != 0 && System.currentTimeMillis() - checkedMillis[i] <= maxAgeMillis) {
+                return _reserves(i);
+            }
+            if (positions[i] == 0) {
+                return null;
+            }
+        }
+        _reload(i);
+        return null;
+    }
+
+    private PairReserves _reserves(final int i) {
+        final int base = i * LONGS_PER_PAIR;
+        return PairReserves.builder()
+                .pair(pairs[i])
+                .token0(token0s[i])
+                .token1(token1s[i])
+                .reserve0(_toBigInteger(reserves[base], reserves[base + 1]))
+                .reserve1(_toBigInteger(reserves[base + 2], reserves[base + 3]))
+                .blockNumber(positions[i] >>> LOG_INDEX_BITS)
+                .updatedMillis(System.currentTimeMillis())
+                .build();
+    }
+
+    /**
+     * State after the last complete block, null before the first one completes
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Null when the block is not one of the last {@value #SNAPSHOTS} complete blocks
+     */
+    public synchronized Snapshot getSnapshot(final long blockNumber) {
+        for (final Snapshot value : snapshots) {
+            if (value.blockNumber == blockNumber) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    private static long _parseHex(final String data, final int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 16; i++) {
+            value = value << 4 | Character.digit(data.charAt(i), 16);
+        }
+        return value;
+    }
+
+    private static BigInteger _toBigInteger(final long low, final long high) {
+        if (high == 0 && low >= 0) {
+            return BigInteger.valueOf(low);
+        }
+        final BigInteger unsignedLow = low >= 0 ? BigInteger.valueOf(low) : BigInteger.valueOf(low >>> 1).shiftLeft(1).or(BigInteger.valueOf(low & 1));
+        return BigInteger.valueOf(high).shiftLeft(64).or(unsignedLow);
+    }
+
+    /**
+     * Immutable reserves of all pairs at the end of one block.
+     */
+    public static class Snapshot {
+
+        private final long blockNumber;
+        private final int size;
+        private final long[] reserves;
+        private final long[] positions;
+        private final String[] pairs;
+        private final String[] token0s;
+        private final String[] token1s;
+        private final Map<String, Integer> index;
+
+        private Snapshot(final long blockNumber, final int size, final long[] reserves, final long[] positions, final String[] pairs, final String[] token0s, final String[] token1s, final Map<String, Integer> index) {
+            this.blockNumber = blockNumber;
+            this.size = size;
+            this.reserves = reserves;
+            this.positions = positions;
+            this.pairs = pairs;
+            this.token0s = token0s;
+            this.token1s = token1s;
+            this.index = index;
+        }
+
+        private Snapshot at(final long block) {
+            return new Snapshot(block, size, reserves, positions, pairs, token0s, token1s, index);
+        }
+
+        public long getBlockNumber() {
+            return blockNumber;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public List<String> getPairs() {
+            return Collections.unmodifiableList(Arrays.asList(pairs).subList(0, size));
+        }
+
+        public PairReserves get(final String pair) {
+            final Integer i = index.get(pair.toLowerCase());
+            if (i == null || i >= size || positions[i] == 0) {
+                return null;
+            }
+            final int base = i * LONGS_PER_PAIR;
+            return PairReserves.builder()
+                    .pair(pairs[i])
+                    .token0(token0s[i])
+                    .token1(token1s[i])
+                    .reserve0(_toBigInteger(reserves[base], reserves[base + 1]))
+                    .reserve1(_toBigInteger(reserves[base + 2], reserves[base + 3]))
+                    .blockNumber(blockNumber)
+                    .build();
+        }
+    }
+}
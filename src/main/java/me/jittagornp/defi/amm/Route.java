@@ -0,0 +1,44 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.amm;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.math.BigInteger;
+import java.util.List;
+
+/**
+ * @author jittagornp
+ */
+@Getter
+@Builder
+@ToString
+public class Route {
+
+    private final String router;
+
+    /**
+     * Token addresses, first is the input token, last is the output token
+     */
+    private final List<String> path;
+
+    /**
+     * Same as Router.getAmountsOut(amountIn, path)
+     */
+    private final List<BigInteger> amounts;
+
+    public BigInteger getAmountIn() {
+        return amounts.get(0);
+    }
+
+    public BigInteger getAmountOut() {
+        return amounts.get(amounts.size() - 1);
+    }
+
+    public int getHops() {
+        return path.size() - 1;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.amm;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Best output path of one router, up to maxHops pairs, searched over a {@link PairGraph}.
+ * The graph holds the known pairs (e.g. watched by the pool state mirror) plus every existing pair between
+ * the input token, the output token and the connector tokens (wrapped gas token, stablecoins, ...).
+ * Reserves come from the {@link LocalQuoteEngine}, so no RPC call per search once they are fresh or mirrored.
+ *
+ * @author jittagornp
+ */
+@Slf4j
+public class RouteFinder {
+
+    public static final int DEFAULT_MAX_HOPS = 3;
+
+    private static final long MISSING_PAIR_RETRY_MILLIS = 10 * 60_000L;
+
+    private final String router;
+    private final PairAddressResolver pairAddressResolver;
+    private final LocalQuoteEngine localQuoteEngine;
+    private final PairGraph graph = new PairGraph();
+    //token pair key -> when it was found not to exist
+    private final Map<String, Long> missingPairs = new ConcurrentHashMap<>();
+    private volatile List<String> connectors = Collections.emptyList();
+    private volatile int maxHops = DEFAULT_MAX_HOPS;
+    private volatile PairIndex pairIndex;
+
+    public RouteFinder(final String router, final PairAddressResolver pairAddressResolver, final LocalQuoteEngine localQuoteEngine) {
+        this.router = router;
+        this.pairAddressResolver = pairAddressResolver;
+        this.localQuoteEngine = localQuoteEngine;
+    }
+
+    public String getRouter() {
+        return router;
+    }
+
+    public PairGraph getGraph() {
+        return graph;
+    }
+
+    public void setConnectors(final List<String> connectors) {
+        this.connectors = new ArrayList<>(connectors);
+    }
+
+    public List<String> getConnectors() {
+        return connectors;
+    }
+
+    public void setMaxHops(final int maxHops) {
+        if (maxHops < 1) {
+            throw new IllegalArgumentException("Required maxHops > 0");
+        }
+        this.maxHops = maxHops;
+    }
+
+    /**
+     * Crawled pairs of the router's factory, token pairs not in the index are not looked up.
+     * Pairs created after the crawl are found once the index is refreshed (crawl again, it resumes).
+     */
+    public void setPairIndex(final PairIndex pairIndex) {
+        this.pairIndex = pairIndex;
+    }
+
+    public void addPair(final String pair, final String tokenA, final String tokenB) {
+        graph.addPair(pair, tokenA, tokenB);
+    }
+
+    public CompletableFuture<Route> findBestRoute(final String tokenIn, final String tokenOut, final BigInteger amountIn) {
+        return _discover(tokenIn, tokenOut)
+                .thenCompose(none -> _refreshReserves())
+                .thenCombine(localQuoteEngine.getFeeBps(router), (none, feeBps) -> graph.findBestPath(tokenIn, tokenOut, amountIn.doubleValue(), maxHops, feeBps))
+                .thenCompose(path -> {
+                    if (path == null) {
+                        throw new IllegalStateException("No route from " + tokenIn + " to " + tokenOut + " on " + router);
+                    }
+                    return localQuoteEngine.getAmountsOut(router, amountIn, path)
+                            .thenApply(amounts -> Route.builder()
+                                    .router(router)
+                                    .path(path)
+                                    .amounts(amounts)
+                                    .build());
+                });
+    }
+
+    /**
+     * Add the existing pairs between tokenIn, tokenOut and the connectors
+     */
+    private CompletableFuture<Void> _discover(final String tokenIn, final String tokenOut) {
+        final Set<String> candidates = new LinkedHashSet<>();
+        candidates.add(tokenIn.toLowerCase());
+        candidates.add(tokenOut.toLowerCase());
+        for (final String connector : connectors) {
+            candidates.add(connector.toLowerCase());
+        }
+        final List<String> tokens = new ArrayList<>(candidates);
+        final List<CompletableFuture<Void>> lookups = new ArrayList<>();
+        final long now = System.currentTimeMillis();
+        final PairIndex index = pairIndex;
+        for (int i = 0; i < tokens.size(); i++) {
+            for (int j = i + 1; j < tokens.size(); j++) {
+                final String tokenA = tokens.get(i);
+                final String tokenB = tokens.get(j);
+                final String key = String.join(":", PairAddressResolver.sortTokens(tokenA, tokenB));
+                final Long missing = missingPairs.get(key);
+                if (missing != null && now - missing < MISSING_PAIR_RETRY_MILLIS) {
+                    continue;
+                }
+                if (index != null && index.getPair(tokenA, tokenB) == null) {
+                    continue;
+                }
+                lookups.add(pairAddressResolver.getPairByRouter(router, tokenA, tokenB)
+                        .thenCompose(pair -> {
+                            if (graph.contains(pair)) {
+                                return CompletableFuture.completedFuture(null);
+                            }
+                            return localQuoteEngine.getReserves(router, tokenA, tokenB)
+                                    .thenAccept(reserves -> {
+                                        graph.addPair(pair, tokenA, tokenB);
+                                        graph.setReserves(pair, reserves.getReserve0(), reserves.getReserve1());
+                                    })
+                                    .handle((none, error) -> error == null
+                                            ? CompletableFuture.<Void>completedFuture(null)
+                                            : _onLookupError(pair, key, now, error))
+                                    .thenCompose(Function.identity());
+                        }));
+            }
+        }
+        return CompletableFuture.allOf(lookups.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Only a pair that does not exist is skipped for a while, other errors (timeout, throttling, open circuit) fail the search
+     */
+    private CompletableFuture<Void> _onLookupError(final String pair, final String key, final long now, final Throwable error) {
+        return pairAddressResolver.exists(pair)
+                .thenAccept(exists -> {
+                    if (exists) {
+                        throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+                    }
+                    log.debug("No pair {} on {}", key, router);
+                    missingPairs.put(key, now);
+                });
+    }
+
+    private CompletableFuture<Void> _refreshReserves() {
+        final List<String[]> pairs = graph.getPairs();
+        final List<CompletableFuture<Void>> refreshes = new ArrayList<>(pairs.size());
+        for (final String[] pair : pairs) {
+            refreshes.add(localQuoteEngine.getReserves(router, pair[1], pair[2])
+                    .handle((reserves, error) -> {
+                        if (reserves != null) {
+                            graph.setReserves(pair[0], reserves.getReserve0(), reserves.getReserve1());
+                        }
+                        return null;
+                    }));
+        }
+        return CompletableFuture.allOf(refreshes.toArray(new CompletableFuture<?>[0]));
+    }
+}
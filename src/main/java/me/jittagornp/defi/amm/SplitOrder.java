@@ -0,0 +1,32 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.amm;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.math.BigInteger;
+import java.util.List;
+
+/**
+ * One order split into legs, each leg is a route on a different router.
+ *
+ * @author jittagornp
+ */
+@Getter
+@Builder
+@ToString
+public class SplitOrder {
+
+    private final BigInteger amountIn;
+
+    private final List<Route> legs;
+
+    public BigInteger getAmountOut() {
+        return legs.stream()
+                .map(Route::getAmountOut)
+                .reduce(BigInteger.ZERO, BigInteger::add);
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.amm;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Split of an input amount across routers that maximizes the total output.
+ * <p>
+ * A path of constant product pools behaves like one pool, out(a) = g * a * Y / (X + g * a), so each router is folded
+ * into one virtual pool and the amounts are chosen where every used pool has the same marginal price
+ * g * X * Y / (X + g * a)^2 = lambda, solved in closed form over the set of pools worth using.
+ *
+ * @author jittagornp
+ */
+@Slf4j
+public class SplitOrderOptimizer {
+
+    /**
+     * Legs smaller than 1% of the order are not worth the gas of another transaction
+     */
+    public static final int DEFAULT_MIN_LEG_BPS = 100;
+
+    private final LocalQuoteEngine localQuoteEngine;
+    private volatile int minLegBps = DEFAULT_MIN_LEG_BPS;
+
+    public SplitOrderOptimizer(final LocalQuoteEngine localQuoteEngine) {
+        this.localQuoteEngine = localQuoteEngine;
+    }
+
+    public void setMinLegBps(final int minLegBps) {
+        this.minLegBps = minLegBps;
+    }
+
+    /**
+     * @param paths router -&gt; token path on that router, routers without the pairs are left out
+     */
+    public CompletableFuture<SplitOrder> optimize(final Map<String, List<String>> paths, final BigInteger amountIn) {
+        final List<String> routers = new ArrayList<>(paths.keySet());
+        final List<CompletableFuture<double[]>> pools = new ArrayList<>(routers.size());
+        for (final String router : routers) {
+            pools.add(_virtualPool(router, paths.get(router))
+                    .exceptionally(error -> {
+                        log.debug("Router {} left out of the split : {}", router, error.getMessage());
+                        return null;
+                    }));
+        }
+        return CompletableFuture.allOf(pools.toArray(new CompletableFuture<?>[0]))
+                .thenCompose(none -> {
+                    final List<String> usable = new ArrayList<>();
+                    final List<double[]> usablePools = new ArrayList<>();
+                    for (int i = 0; i < routers.size(); i++) {
+                        final double[] pool = pools.get(i).join();
+                        if (pool != null) {
+                            usable.add(routers.get(i));
+                            usablePools.add(pool);
+                        }
+                    }
+                    if (usable.isEmpty()) {
+                        throw new IllegalStateException("No router has a path for " + paths.values());
+                    }
+                    final BigInteger[] amounts = _round(_splitWithMinLeg(usablePools, amountIn.doubleValue()), amountIn);
+                    final List<CompletableFuture<Route>> legs = new ArrayList<>();
+                    for (int i = 0; i < usable.size(); i++) {
+                        if (amounts[i].signum() == 0) {
+                            continue;
+                        }
+                        final String router = usable.get(i);
+                        final List<String> path = paths.get(router);
+                        legs.add(localQuoteEngine.getAmountsOut(router, amounts[i], path)
+                                .thenApply(values -> Route.builder()
+                                        .router(router)
+                                        .path(path)
+                                        .amounts(values)
+                                        .build()));
+                    }
+                    return CompletableFuture.allOf(legs.toArray(new CompletableFuture<?>[0]))
+                            .thenApply(all -> SplitOrder.builder()
+                                    .amountIn(amountIn)
+                                    .legs(legs.stream().map(CompletableFuture::join).collect(Collectors.toList()))
+                                    .build());
+                });
+    }
+
+    /**
+     * {X, Y, g} of the path on the router
+     */
+    private CompletableFuture<double[]> _virtualPool(final String router, final List<String> path) {
+        final List<CompletableFuture<PairReserves>> hops = new ArrayList<>(path.size() - 1);
+        for (int i = 0; i < path.size() - 1; i++) {
+            hops.add(localQuoteEngine.getReserves(router, path.get(i), path.get(i + 1)));
+        }
+        return CompletableFuture.allOf(hops.toArray(new CompletableFuture<?>[0]))
+                .thenCombine(localQuoteEngine.getFeeBps(router), (none, feeBps) -> {
+                    final double g = (ConstantProduct.BPS - feeBps) / (double) ConstantProduct.BPS;
+                    double x = 0;
+                    double y = 0;
+                    for (int i = 0; i < hops.size(); i++) {
+                        final PairReserves hop = hops.get(i).join();
+                        final double reserveIn = hop.getReserveIn(path.get(i)).doubleValue();
+                        final double reserveOut = hop.getReserveOut(path.get(i)).doubleValue();
+                        if (i == 0) {
+                            x = reserveIn;
+                            y = reserveOut;
+                        } else {
+                            final double d = reserveIn + g * y;
+                            x = x * reserveIn / d;
+                            y = g * y * reserveOut / d;
+                        }
+                    }
+                    if (x <= 0 || y <= 0) {
+                        throw new IllegalStateException("Empty pool on " + router);
+                    }
+                    return new double[]{x, y, g};
+                });
+    }
+
+    private double[] _splitWithMinLeg(final List<double[]> pools, final double amountIn) {
+        final boolean[] excluded = new boolean[pools.size()];
+        while (true) {
+            final double[] amounts = split(pools, excluded, amountIn);
+            int smallest = -1;
+            for (int i = 0; i < amounts.length; i++) {
+                if (amounts[i] > 0 && amounts[i] < amountIn * minLegBps / ConstantProduct.BPS
+                        && (smallest < 0 || amounts[i] < amounts[smallest])) {
+                    smallest = i;
+                }
+            }
+            if (smallest < 0) {
+                return amounts;
+            }
+            excluded[smallest] = true;
+        }
+    }
+
+    /**
+     * Amount per pool, {X, Y, g} each, 0 for excluded pools and pools not worth using.
+     */
+    public static double[] split(final List<double[]> pools, final boolean[] excluded, final double amountIn) {
+        //Best marginal price (g * Y / X at a = 0) first
+        final int[] order = IntStream.range(0, pools.size())
+                .filter(i -> excluded == null || !excluded[i])
+                .boxed()
+                .sorted(Comparator.comparingDouble(i -> -_marginal(pools.get(i))))
+                .mapToInt(Integer::intValue)
+                .toArray();
+        final double[] amounts = new double[pools.size()];
+        if (order.length == 0) {
+            return amounts;
+        }
+        double sumX = 0;
+        double sumRoot = 0;
+        double inverseRootLambda = 0;
+        int active = 0;
+        while (active < order.length) {
+            final double[] pool = pools.get(order[active]);
+            final double nextSumX = sumX + pool[0] / pool[2];
+            final double nextSumRoot = sumRoot + Math.sqrt(pool[0] * pool[1] / pool[2]);
+            final double nextInverseRootLambda = (amountIn + nextSumX) / nextSumRoot;
+            //The pool only gets a positive amount when its price at 0 beats the common marginal price
+            if (active > 0 && _marginal(pool) * nextInverseRootLambda * nextInverseRootLambda <= 1) {
+                break;
+            }
+            sumX = nextSumX;
+            sumRoot = nextSumRoot;
+            inverseRootLambda = nextInverseRootLambda;
+            active = active + 1;
+        }
+        for (int k = 0; k < active; k++) {
+            final double[] pool = pools.get(order[k]);
+            amounts[order[k]] = Math.max(0, Math.sqrt(pool[0] * pool[1] / pool[2]) * inverseRootLambda - pool[0] / pool[2]);
+        }
+        return amounts;
+    }
+
+    private static double _marginal(final double[] pool) {
+        return pool[2] * pool[1] / pool[0];
+    }
+
+    /**
+     * Integer amounts that add up to amountIn exactly, the rounding remainder goes to the largest leg
+     */
+    private static BigInteger[] _round(final double[] amounts, final BigInteger amountIn) {
+        final double total = Arrays.stream(amounts).sum();
+        final BigInteger[] result = new BigInteger[amounts.length];
+        BigInteger sum = BigInteger.ZERO;
+        int largest = 0;
+        for (int i = 0; i < amounts.length; i++) {
+            result[i] = new BigDecimal(amounts[i] / total).multiply(new BigDecimal(amountIn)).toBigInteger();
+            sum = sum.add(result[i]);
+            if (amounts[i] > amounts[largest]) {
+                largest = i;
+            }
+        }
+        result[largest] = result[largest].add(amountIn.subtract(sum));
+        return result;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.cache;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * eth_call results keyed by (block, to, calldata), "latest" calls are pinned to the current head.
+ * A new head starts a new generation and drops the previous one, without a known head nothing is cached.
+ *
+ * @author jittagornp
+ */
+public class BlockCache {
+
+    private static final int MAXIMUM_SIZE_PER_BLOCK = 10_000;
+
+    private static class Generation {
+
+        private final long block;
+        private final Map<String, CompletableFuture<?>> values = new ConcurrentHashMap<>();
+
+        private Generation(final long block) {
+            this.block = block;
+        }
+    }
+
+    private volatile Generation generation = new Generation(0);
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * Current head, 0 when unknown.
+     */
+    public long getHead() {
+        return generation.block;
+    }
+
+    /**
+     * Older or repeated heads (e.g. from a slower source) are ignored.
+     */
+    public synchronized void onNewHead(final long blockNumber) {
+        if (blockNumber <= generation.block) {
+            return;
+        }
+        _drop(new Generation(blockNumber));
+    }
+
+    /**
+     * Forget the head and stop caching until the next {@link #onNewHead(long)}.
+     */
+    public synchronized void clear() {
+        _drop(new Generation(0));
+    }
+
+    private void _drop(final Generation next) {
+        evictionCount.addAndGet(generation.values.size());
+        generation = next;
+    }
+
+    public <T> CompletableFuture<T> get(final String to, final String data, final Supplier<CompletableFuture<T>> supplier) {
+        final Generation current = generation;
+        if (current.block <= 0) {
+            return supplier.get();
+        }
+        final String key = to.toLowerCase() + ":" + data;
+        //The same (to, calldata) decodes to the same type
+        @SuppressWarnings("unchecked")
+        final CompletableFuture<T> cached = (CompletableFuture<T>) current.values.get(key);
+        if (cached != null) {
+            hitCount.incrementAndGet();
+            return _copy(cached);
+        }
+        missCount.incrementAndGet();
+        if (current.values.size() >= MAXIMUM_SIZE_PER_BLOCK) {
+            return supplier.get();
+        }
+        final CompletableFuture<T> created = new CompletableFuture<>();
+        @SuppressWarnings("unchecked")
+        final CompletableFuture<T> existing = (CompletableFuture<T>) current.values.putIfAbsent(key, created);
+        if (existing != null) {
+            return _copy(existing);
+        }
+        try {
+            supplier.get().whenComplete((value, error) -> {
+                if (error != null) {
+                    current.values.remove(key, created);
+                    created.completeExceptionally(error);
+                } else {
+                    created.complete(value);
+                }
+            });
+        } catch (RuntimeException e) {
+            current.values.remove(key, created);
+            created.completeExceptionally(e);
+        }
+        return _copy(created);
+    }
+
+    private static <T> CompletableFuture<T> _copy(final CompletableFuture<T> future) {
+        return future.thenApply(Function.identity());
+    }
+
+    public CacheStats stats() {
+        return CacheStats.builder()
+                .name("block")
+                .size(generation.values.size())
+                .hitCount(hitCount.get())
+                .missCount(missCount.get())
+                .evictionCount(evictionCount.get())
+                .build();
+    }
+
+    @Override
+    public String toString() {
+        return stats().toString();
+    }
+}
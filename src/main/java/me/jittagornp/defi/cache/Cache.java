@@ -0,0 +1,252 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.cache;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Thread-safe bounded cache with W-TinyLFU eviction : new entries land in a small LRU window,
+ * entries leaving the window only enter the segmented LRU main space when their sketch frequency
+ * beats the main space victim, so one pass over thousands of tokens does not flush the hot entries.
+ * Expired entries are dropped when they are read or reach the eviction end of their queue.
+ *
+ * @author jittagornp
+ */
+public class Cache<K, V> {
+
+    private enum Queue {
+        WINDOW,
+        PROBATION,
+        PROTECTED
+    }
+
+    private static class Node<K, V> {
+
+        private final K key;
+        private V value;
+        private long writeMillis;
+        private Queue queue;
+
+        private Node(final K key, final V value, final long writeMillis) {
+            this.key = key;
+            this.value = value;
+            this.writeMillis = writeMillis;
+            this.queue = Queue.WINDOW;
+        }
+    }
+
+    private final String name;
+    private final int maximumSize;
+    private final long expireAfterWriteMillis;
+    private final int windowMaximumSize;
+    private final int protectedMaximumSize;
+
+    private final Map<K, Node<K, V>> data = new HashMap<>();
+    //Insertion ordered, head is the least recently used
+    private final LinkedHashMap<K, Node<K, V>> window = new LinkedHashMap<>();
+    private final LinkedHashMap<K, Node<K, V>> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<K, Node<K, V>> protectedSpace = new LinkedHashMap<>();
+    private final FrequencySketch sketch;
+
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    /**
+     * @param expireAfterWriteMillis 0 to never expire
+     */
+    public Cache(final String name, final int maximumSize, final long expireAfterWriteMillis) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("Required maximumSize > 0");
+        }
+        this.name = name;
+        this.maximumSize = maximumSize;
+        this.expireAfterWriteMillis = expireAfterWriteMillis;
+        this.windowMaximumSize = Math.max(1, maximumSize / 100);
+        this.protectedMaximumSize = (maximumSize - windowMaximumSize) * 8 / 10;
+        this.sketch = new FrequencySketch(maximumSize);
+    }
+
+    public static <K, V> Cache<K, V> of(final String name, final int maximumSize) {
+        return new Cache<>(name, maximumSize, 0);
+    }
+
+    public static <K, V> Cache<K, V> of(final String name, final int maximumSize, final long expireAfterWriteMillis) {
+        return new Cache<>(name, maximumSize, expireAfterWriteMillis);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized V getIfPresent(final K key) {
+        sketch.increment(key);
+        final Node<K, V> node = data.get(key);
+        if (node == null) {
+            missCount = missCount + 1;
+            return null;
+        }
+        if (_isExpired(node, System.currentTimeMillis())) {
+            _remove(node);
+            evictionCount = evictionCount + 1;
+            missCount = missCount + 1;
+            return null;
+        }
+        hitCount = hitCount + 1;
+        _onAccess(node);
+        return node.value;
+    }
+
+    /**
+     * The loader runs outside the lock, when two threads load the same key the first stored value wins.
+     */
+    public V get(final K key, final Function<K, V> loader) {
+        final V value = getIfPresent(key);
+        if (value != null) {
+            return value;
+        }
+        final V loaded = loader.apply(key);
+        if (loaded == null) {
+            return null;
+        }
+        return putIfAbsent(key, loaded);
+    }
+
+    /**
+     * @return the value in the cache after the call
+     */
+    public synchronized V putIfAbsent(final K key, final V value) {
+        final Node<K, V> node = data.get(key);
+        if (node != null && !_isExpired(node, System.currentTimeMillis())) {
+            return node.value;
+        }
+        _put(key, value);
+        return value;
+    }
+
+    public synchronized void put(final K key, final V value) {
+        _put(key, value);
+    }
+
+    private void _put(final K key, final V value) {
+        final long now = System.currentTimeMillis();
+        final Node<K, V> existing = data.get(key);
+        if (existing != null) {
+            existing.value = value;
+            existing.writeMillis = now;
+            _onAccess(existing);
+            return;
+        }
+        final Node<K, V> node = new Node<>(key, value, now);
+        data.put(key, node);
+        window.put(key, node);
+        if (window.size() > windowMaximumSize) {
+            final Node<K, V> candidate = _head(window);
+            window.remove(candidate.key);
+            candidate.queue = Queue.PROBATION;
+            probation.put(candidate.key, candidate);
+            if (data.size() > maximumSize) {
+                _evict(candidate);
+            }
+        } else if (data.size() > maximumSize) {
+            _evict(null);
+        }
+    }
+
+    private void _evict(final Node<K, V> candidate) {
+        final Node<K, V> victim = probation.isEmpty()
+                ? (protectedSpace.isEmpty() ? _head(window) : _head(protectedSpace))
+                : _head(probation);
+        final boolean admit = candidate == null
+                || candidate == victim
+                || _isExpired(victim, System.currentTimeMillis())
+                || sketch.frequency(candidate.key) > sketch.frequency(victim.key);
+        final Node<K, V> evicted = admit ? victim : candidate;
+        _remove(evicted);
+        evictionCount = evictionCount + 1;
+    }
+
+    private void _onAccess(final Node<K, V> node) {
+        switch (node.queue) {
+            case WINDOW:
+                window.remove(node.key);
+                window.put(node.key, node);
+                break;
+            case PROBATION:
+                probation.remove(node.key);
+                node.queue = Queue.PROTECTED;
+                protectedSpace.put(node.key, node);
+                if (protectedSpace.size() > protectedMaximumSize) {
+                    final Node<K, V> demoted = _head(protectedSpace);
+                    protectedSpace.remove(demoted.key);
+                    demoted.queue = Queue.PROBATION;
+                    probation.put(demoted.key, demoted);
+                }
+                break;
+            default:
+                protectedSpace.remove(node.key);
+                protectedSpace.put(node.key, node);
+        }
+    }
+
+    private boolean _isExpired(final Node<K, V> node, final long now) {
+        return expireAfterWriteMillis > 0 && now - node.writeMillis >= expireAfterWriteMillis;
+    }
+
+    private LinkedHashMap<K, Node<K, V>> _queue(final Node<K, V> node) {
+        switch (node.queue) {
+            case WINDOW:
+                return window;
+            case PROBATION:
+                return probation;
+            default:
+                return protectedSpace;
+        }
+    }
+
+    private void _remove(final Node<K, V> node) {
+        data.remove(node.key);
+        _queue(node).remove(node.key);
+    }
+
+    private static <K, V> Node<K, V> _head(final LinkedHashMap<K, Node<K, V>> queue) {
+        return queue.values().iterator().next();
+    }
+
+    public synchronized void invalidate(final K key) {
+        final Node<K, V> node = data.get(key);
+        if (node != null) {
+            _remove(node);
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        data.clear();
+        window.clear();
+        probation.clear();
+        protectedSpace.clear();
+    }
+
+    public synchronized int size() {
+        return data.size();
+    }
+
+    public synchronized CacheStats stats() {
+        return CacheStats.builder()
+                .name(name)
+                .size(data.size())
+                .hitCount(hitCount)
+                .missCount(missCount)
+                .evictionCount(evictionCount)
+                .build();
+    }
+
+    @Override
+    public String toString() {
+        return stats().toString();
+    }
+}
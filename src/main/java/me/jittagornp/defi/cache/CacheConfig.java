@@ -0,0 +1,33 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.cache;
+
+import lombok.Builder;
+import lombok.Getter;
+
+/**
+ * Size / TTL of the DeFiSDK cache regions, TTL 0 means never expire.
+ *
+ * @author jittagornp
+ */
+@Getter
+@Builder
+public class CacheConfig {
+
+    @Builder.Default
+    private int contractMaximumSize = 10_000;
+
+    @Builder.Default
+    private long contractExpireAfterWriteMillis = 0;
+
+    @Builder.Default
+    private int tokenMetadataMaximumSize = 100_000;
+
+    @Builder.Default
+    private long tokenMetadataExpireAfterWriteMillis = 0;
+
+    public static CacheConfig defaultConfig() {
+        return CacheConfig.builder().build();
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.cache;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Snapshot of cache counters.
+ *
+ * @author jittagornp
+ */
+@Getter
+@Builder
+@ToString
+public class CacheStats {
+
+    private final String name;
+
+    private final long size;
+
+    private final long hitCount;
+
+    private final long missCount;
+
+    /**
+     * Entries removed by the size bound or by TTL
+     */
+    private final long evictionCount;
+
+    public double getHitRate() {
+        final long requests = hitCount + missCount;
+        return requests == 0 ? 1.0 : (double) hitCount / requests;
+    }
+}
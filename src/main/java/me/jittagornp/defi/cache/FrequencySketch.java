@@ -0,0 +1,70 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.cache;
+
+/**
+ * Count-Min sketch of 4 bit counters (4 rows), halved every sample period so old popularity fades.
+ *
+ * @author jittagornp
+ */
+class FrequencySketch {
+
+    private static final int ROWS = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x97cb3127, 0xb3c2f1a5, 0x3c6ef372, 0xa54ff53a};
+
+    private final byte[] table;
+    private final int mask;
+    private final int samplePeriod;
+    private int additions;
+
+    FrequencySketch(final int maximumSize) {
+        final int width = Integer.highestOneBit(Math.max(16, Math.min(1 << 24, maximumSize)) - 1) << 1;
+        this.table = new byte[width * ROWS];
+        this.mask = width - 1;
+        this.samplePeriod = Math.max(10, 10 * maximumSize);
+    }
+
+    private int _index(final int hash, final int row) {
+        int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+        h ^= h >>> 16;
+        return row * (mask + 1) + (h & mask);
+    }
+
+    private static int _spread(final Object key) {
+        final int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    int frequency(final Object key) {
+        final int hash = _spread(key);
+        int min = MAX_COUNT;
+        for (int row = 0; row < ROWS; row++) {
+            min = Math.min(min, table[_index(hash, row)]);
+        }
+        return min;
+    }
+
+    void increment(final Object key) {
+        final int hash = _spread(key);
+        boolean added = false;
+        for (int row = 0; row < ROWS; row++) {
+            final int index = _index(hash, row);
+            if (table[index] < MAX_COUNT) {
+                table[index]++;
+                added = true;
+            }
+        }
+        if (added && ++additions >= samplePeriod) {
+            _reset();
+        }
+    }
+
+    private void _reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (byte) (table[i] >>> 1);
+        }
+        additions = additions >>> 1;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.cache;
+
+import lombok.extern.slf4j.Slf4j;
+import org.web3j.utils.Numeric;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Immutable token metadata (decimals, name, symbol) keyed by chain ID + token address,
+ * persisted as an append only log of checksummed records.
+ * <p>
+ * The file is memory-mapped and replayed on open, a torn or corrupted tail (crash while appending)
+ * is truncated at the first record whose checksum does not match.
+ * <p>
+ * Record : int length, int crc32(payload), payload = long chainId, 20 bytes address, byte field, short size, UTF-8 value
+ *
+ * @author jittagornp
+ */
+@Slf4j
+public class TokenMetadataStore implements Closeable {
+
+    private static final int MAGIC = 0x44465431; //DFT1
+    private static final int HEADER_SIZE = 4;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int ADDRESS_SIZE = 20;
+    private static final int MAX_VALUE_SIZE = 1024;
+
+    public enum Field {
+        DECIMALS,
+        NAME,
+        SYMBOL
+    }
+
+    private final Path path;
+    private final FileChannel channel;
+    private final Map<String, String> values = new ConcurrentHashMap<>();
+
+    private TokenMetadataStore(final Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        _load();
+    }
+
+    public static TokenMetadataStore open(final Path path) throws IOException {
+        final Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        return new TokenMetadataStore(path);
+    }
+
+    /**
+     * ~/.java-defi-sdk/token-metadata.db
+     */
+    public static TokenMetadataStore openDefault() throws IOException {
+        return open(Paths.get(System.getProperty("user.home"), ".java-defi-sdk", "token-metadata.db"));
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public int size() {
+        return values.size();
+    }
+
+    private static String _key(final long chainId, final String address, final Field field) {
+        return chainId + ":" + address.toLowerCase() + ":" + field.ordinal();
+    }
+
+    public String get(final long chainId, final String address, final Field field) {
+        return values.get(_key(chainId, address, field));
+    }
+
+    /**
+     * Append when the value is new, a failed write only skips persistence.
+     */
+    public void put(final long chainId, final String address, final Field field, final String value) {
+        final String key = _key(chainId, address, field);
+        if (value == null || value.equals(values.get(key))) {
+            return;
+        }
+        final byte[] addressBytes = Numeric.hexStringToByteArray(address);
+        final byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        if (addressBytes.length != ADDRESS_SIZE || valueBytes.length > MAX_VALUE_SIZE) {
+            return;
+        }
+        if (values.putIfAbsent(key, value) != null) {
+            return;
+        }
+        final ByteBuffer payload = ByteBuffer.allocate(8 + ADDRESS_SIZE + 1 + 2 + valueBytes.length);
+        payload.putLong(chainId)
+                .put(addressBytes)
+                .put((byte) field.ordinal())
+                .putShort((short) valueBytes.length)
+                .put(valueBytes);
+        ((Buffer) payload).flip();
+        final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.remaining());
+        record.putInt(payload.remaining())
+                .putInt(_crc(payload.duplicate()))
+                .put(payload);
+        ((Buffer) record).flip();
+        try {
+            synchronized (this) {
+                long position = channel.size();
+                while (record.hasRemaining()) {
+                    position = position + channel.write(record, position);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Append token metadata error : {}", e.getMessage());
+        }
+    }
+
+    private synchronized void _load() throws IOException {
+        final long size = channel.size();
+        if (size < HEADER_SIZE) {
+            _reset();
+            return;
+        }
+        final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        if (buffer.getInt() != MAGIC) {
+            log.warn("Unknown token metadata file {}, start a new one", path);
+            _reset();
+            return;
+        }
+        long valid = HEADER_SIZE;
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            final int length = buffer.getInt();
+            final int crc = buffer.getInt();
+            if (length < 8 + ADDRESS_SIZE + 1 + 2 || length > buffer.remaining()) {
+                break;
+            }
+            final ByteBuffer payload = buffer.slice();
+            ((Buffer) payload).limit(length);
+            if (_crc(payload.duplicate()) != crc || !_apply(payload)) {
+                break;
+            }
+            ((Buffer) buffer).position(buffer.position() + length);
+            valid = buffer.position();
+        }
+        if (valid < size) {
+            log.warn("Truncate token metadata file {} at {} of {} bytes", path, valid, size);
+            channel.truncate(valid);
+        }
+        log.info("Loaded {} token metadata from {}", values.size(), path);
+    }
+
+    private boolean _apply(final ByteBuffer payload) {
+        final long chainId = payload.getLong();
+        final byte[] address = new byte[ADDRESS_SIZE];
+        payload.get(address);
+        final int field = payload.get();
+        final int valueSize = payload.getShort() & 0xFFFF;
+        if (field < 0 || field >= Field.values().length || valueSize != payload.remaining()) {
+            return false;
+        }
+        final byte[] value = new byte[valueSize];
+        payload.get(value);
+        values.put(
+                _key(chainId, Numeric.toHexString(address), Field.values()[field]),
+                new String(value, StandardCharsets.UTF_8)
+        );
+        return true;
+    }
+
+    private void _reset() throws IOException {
+        channel.truncate(0);
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC);
+        ((Buffer) header).flip();
+        channel.write(header, 0);
+    }
+
+    private static int _crc(final ByteBuffer payload) {
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.force(false);
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return "TokenMetadataStore{" + path + ", " + values.size() + " values}";
+    }
+}
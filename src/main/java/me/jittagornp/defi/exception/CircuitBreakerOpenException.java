@@ -0,0 +1,20 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.exception;
+
+import java.io.IOException;
+
+/**
+ * The request was rejected without being sent, the circuit breaker of the endpoint(s) is open.
+ *
+ * @author jittagornp
+ */
+public class CircuitBreakerOpenException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public CircuitBreakerOpenException(final String message) {
+        super(message);
+    }
+}
@@ -16,4 +16,8 @@ public class ResponseErrorException extends RuntimeException {
         super(error.getMessage());
         this.error = error;
     }
+
+    public Response.Error getError() {
+        return error;
+    }
 }
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.multicall;
+
+import lombok.extern.slf4j.Slf4j;
+import me.jittagornp.defi.exception.ResponseErrorException;
+import me.jittagornp.defi.smartcontract.Multicall;
+import org.web3j.abi.datatypes.Type;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.DefaultBlockParameter;
+import org.web3j.protocol.core.DefaultBlockParameterName;
+import org.web3j.protocol.core.RemoteFunctionCall;
+import org.web3j.protocol.core.Response;
+import org.web3j.protocol.core.methods.request.Transaction;
+import org.web3j.protocol.core.methods.response.EthBlockNumber;
+import org.web3j.utils.Numeric;
+
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+/**
+ * Pack many contract reads into one Multicall3 aggregate3 eth_call.
+ *
+ * @author jittagornp
+ */
+@Slf4j
+public class MulticallAggregator {
+
+    /**
+     * A call of the aggregate reverted or returned nothing
+     */
+    public static final int ERROR_CODE_CALL_FAILED = -32015;
+    //geth / erigon / bsc "out of gas", nethermind "OutOfGas"
+    private static final List<String> OUT_OF_GAS_MESSAGES = Arrays.asList("out of gas", "outofgas");
+
+    private final Web3j web3j;
+    private final Multicall multicall;
+    private final long windowMillis;
+    private final int maxCallsPerBatch;
+    private final ScheduledExecutorService scheduler;
+
+    private final Object lock = new Object();
+    private List<PendingCall> pending = new ArrayList<>();
+    private ScheduledFuture<?> flushTask;
+
+    public MulticallAggregator(final Web3j web3j, final Multicall multicall) {
+        this(web3j, multicall, 5, 300);
+    }
+
+    public MulticallAggregator(final Web3j web3j, final Multicall multicall, final long windowMillis, final int maxCallsPerBatch) {
+        if (maxCallsPerBatch < 1) {
+            throw new IllegalArgumentException("Required maxCallsPerBatch >= 1");
+        }
+        this.web3j = web3j;
+        this.multicall = multicall;
+        this.windowMillis = windowMillis;
+        this.maxCallsPerBatch = maxCallsPerBatch;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "multicall-" + UUID.randomUUID().toString().substring(0, 5));
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public String getContractAddress() {
+        return multicall.getContractAddress();
+    }
+
+    public Multicall getMulticall() {
+        return multicall;
+    }
+
+    /**
+     * Latest block number, pass it to {@link #callAll(List, List, DefaultBlockParameter)} so every chunk reads the same block
+     */
+    public CompletableFuture<BigInteger> getBlockNumber() {
+        return web3j.ethBlockNumber()
+                .sendAsync()
+                .thenApply(EthBlockNumber::getBlockNumber);
+    }
+
+    //web3j decodes return values into a raw List<Type>, here and below
+    @SuppressWarnings("rawtypes")
+    public CompletableFuture<List<Type>> call(final String target, final RemoteFunctionCall<?> functionCall) {
+        final CompletableFuture<List<Type>> future = new CompletableFuture<>();
+        List<PendingCall> full = null;
+        synchronized (lock) {
+            pending.add(new PendingCall(target, functionCall, future));
+            if (pending.size() >= maxCallsPerBatch) {
+                full = _drain();
+            } else if (flushTask == null) {
+                flushTask = scheduler.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (full != null) {
+            _aggregate(full, DefaultBlockParameterName.LATEST);
+        }
+        return future;
+    }
+
+    /**
+     * Execute the given calls now, in one aggregate3 (split if needed) at the given block.
+     */
+    @SuppressWarnings("rawtypes")
+    public CompletableFuture<List<List<Type>>> callAll(final List<String> targets, final List<RemoteFunctionCall<?>> functionCalls, final DefaultBlockParameter block) {
+        if (targets.size() != functionCalls.size()) {
+            throw new IllegalArgumentException("Required targets.size() == functionCalls.size()");
+        }
+        final List<PendingCall> calls = new ArrayList<>(targets.size());
+        for (int i = 0; i < targets.size(); i++) {
+            calls.add(new PendingCall(targets.get(i), functionCalls.get(i), new CompletableFuture<>()));
+        }
+        for (int from = 0; from < calls.size(); from += maxCallsPerBatch) {
+            _aggregate(calls.subList(from, Math.min(calls.size(), from + maxCallsPerBatch)), block);
+        }
+        final List<CompletableFuture<List<Type>>> futures = calls.stream()
+                .map(call -> call.future)
+                .collect(Collectors.toList());
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                .handle((none, error) -> futures.stream()
+                        .map(future -> future.isCompletedExceptionally() ? null : future.join())
+                        .collect(Collectors.toList())
+                );
+    }
+
+    public void flush() {
+        final List<PendingCall> calls;
+        synchronized (lock) {
+            calls = _drain();
+        }
+        if (!calls.isEmpty()) {
+            _aggregate(calls, DefaultBlockParameterName.LATEST);
+        }
+    }
+
+    private List<PendingCall> _drain() {
+        final List<PendingCall> calls = pending;
+        pending = new ArrayList<>();
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+        return calls;
+    }
+
+    private void _aggregate(final List<PendingCall> calls, final DefaultBlockParameter block) {
+        final List<Multicall.Call3> call3s = calls.stream()
+                .map(call -> new Multicall.Call3(call.target, true, Numeric.hexStringToByteArray(call.functionCall.encodeFunctionCall())))
+                .collect(Collectors.toList());
+        final RemoteFunctionCall<?> aggregate3 = multicall.aggregate3(call3s);
+        log.debug("aggregate3 {} calls", calls.size());
+        web3j.ethCall(Transaction.createEthCallTransaction(null, multicall.getContractAddress(), aggregate3.encodeFunctionCall()), block)
+                .sendAsync()
+                .whenComplete((resp, error) -> {
+                    if (error != null) {
+                        calls.forEach(call -> call.future.completeExceptionally(error));
+                        return;
+                    }
+                    if (resp.hasError() || resp.isReverted()) {
+                        if (calls.size() > 1 && _isOutOfGas(resp.hasError() ? resp.getError().getMessage() : resp.getRevertReason())) {
+                            final int half = calls.size() / 2;
+                            log.debug("aggregate3 out of gas, split {} calls", calls.size());
+                            _aggregate(calls.subList(0, half), block);
+                            _aggregate(calls.subList(half, calls.size()), block);
+                            return;
+                        }
+                        final Response.Error err = resp.hasError()
+                                ? resp.getError()
+                                : new Response.Error(ERROR_CODE_CALL_FAILED, resp.getRevertReason());
+                        calls.forEach(call -> call.future.completeExceptionally(new ResponseErrorException(err)));
+                        return;
+                    }
+                    try {
+                        _complete(calls, (List<?>) aggregate3.decodeFunctionResponse(resp.getValue()).get(0).getValue());
+                    } catch (RuntimeException e) {
+                        calls.forEach(call -> call.future.completeExceptionally(e));
+                    }
+                });
+    }
+
+    private void _complete(final List<PendingCall> calls, final List<?> results) {
+        for (int i = 0; i < calls.size(); i++) {
+            final PendingCall call = calls.get(i);
+            final Multicall.Result result = i < results.size() ? (Multicall.Result) results.get(i) : null;
+            if (result == null || !result.success || result.returnData.length == 0) {
+                call.future.completeExceptionally(new ResponseErrorException(
+                        new Response.Error(ERROR_CODE_CALL_FAILED, "Multicall call failed : " + call.target)
+                ));
+                continue;
+            }
+            try {
+                call.future.complete(call.functionCall.decodeFunctionResponse(Numeric.toHexString(result.returnData)));
+            } catch (RuntimeException e) {
+                call.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Only an out of gas aggregate is worth splitting, other gas errors (allowance, intrinsic gas) fail the same way when halved
+     */
+    private boolean _isOutOfGas(final String message) {
+        if (message == null) {
+            return false;
+        }
+        final String lowerCase = message.toLowerCase();
+        return OUT_OF_GAS_MESSAGES.stream().anyMatch(lowerCase::contains);
+    }
+
+    //The caller names the decoded type, as web3j's generated wrappers do
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public static <T> T singleValue(final List<Type> values) {
+        return (T) values.get(0).getValue();
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public static <T> List<T> listValue(final List<Type> values) {
+        return ((List<Type>) values.get(0).getValue()).stream()
+                .map(value -> (T) value.getValue())
+                .collect(Collectors.toList());
+    }
+
+    public void close() {
+        flush();
+        scheduler.shutdown();
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static class PendingCall {
+
+        private final String target;
+
+        private final RemoteFunctionCall<?> functionCall;
+
+        private final CompletableFuture<List<Type>> future;
+
+        private PendingCall(final String target, final RemoteFunctionCall<?> functionCall, final CompletableFuture<List<Type>> future) {
+            this.target = target;
+            this.functionCall = functionCall;
+            this.future = future;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.oracle;
+
+import lombok.extern.slf4j.Slf4j;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.DefaultBlockParameter;
+import org.web3j.protocol.core.methods.response.EthBlock;
+import org.web3j.protocol.core.methods.response.EthGasPrice;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gas price tiers from the transactions of recent blocks, refreshed in the background
+ * on every new head or interval so reading a price never waits on the network.
+ * <p>
+ * Each block contributes its 30th / 60th / 90th percentile gas price, a tier is the median of that percentile over the recent blocks.
+ * Falls back to eth_gasPrice while blocks carry no priced transaction.
+ *
+ * @author jittagornp
+ */
+@Slf4j
+public class GasPriceOracle {
+
+    private static final int BLOCKS = 20;
+    private static final int INITIAL_BLOCKS = 5;
+    private static final double[] PERCENTILES = {0.3, 0.6, 0.9};
+
+    public enum Tier {
+        SAFE,
+        CURRENT,
+        FAST
+    }
+
+    private final Web3j web3j;
+    private final long refreshMillis;
+    private final BigInteger[][] blockPercentiles = new BigInteger[BLOCKS][];
+    private int blocks;
+    private int next;
+    private volatile long lastBlock;
+
+    private ScheduledExecutorService scheduler;
+    private volatile BigInteger[] tiers;
+    private volatile long updatedMillis;
+
+    public GasPriceOracle(final Web3j web3j) {
+        this(web3j, 3_000);
+    }
+
+    public GasPriceOracle(final Web3j web3j, final long refreshMillis) {
+        this.web3j = web3j;
+        this.refreshMillis = refreshMillis;
+    }
+
+    /**
+     * Start the background refresh, no-op when already started.
+     */
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "gas-oracle-" + UUID.randomUUID().toString().substring(0, 5));
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::refresh, 0, refreshMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Refresh now instead of waiting for the interval.
+     */
+    public synchronized void onNewHead(final long blockNumber) {
+        if (scheduler != null && blockNumber > lastBlock) {
+            scheduler.execute(this::refresh);
+        }
+    }
+
+    /**
+     * Wei, null until the first refresh or when the last refresh is too old.
+     */
+    public BigInteger getGasPrice(final Tier tier) {
+        final BigInteger[] current = tiers;
+        if (current == null || System.currentTimeMillis() - updatedMillis > Math.max(60_000, refreshMillis * 10)) {
+            return null;
+        }
+        return current[tier.ordinal()];
+    }
+
+    public long getUpdatedMillis() {
+        return updatedMillis;
+    }
+
+    /**
+     * Runs on the oracle thread only.
+     */
+    private void refresh() {
+        try {
+            final long head = web3j.ethBlockNumber().send().getBlockNumber().longValue();
+            if (head <= lastBlock) {
+                return;
+            }
+            final long from = lastBlock == 0 ? head - INITIAL_BLOCKS + 1 : Math.max(lastBlock + 1, head - BLOCKS + 1);
+            for (long number = from; number <= head; number++) {
+                final EthBlock block = web3j.ethGetBlockByNumber(DefaultBlockParameter.valueOf(BigInteger.valueOf(number)), true).send();
+                if (!block.hasError() && block.getBlock() != null) {
+                    _add(block.getBlock());
+                }
+            }
+            lastBlock = head;
+            _update();
+        } catch (Exception e) {
+            log.warn("Gas price oracle refresh error : {}", e.getMessage());
+        }
+    }
+
+    private void _add(final EthBlock.Block block) {
+        final List<BigInteger> prices = new ArrayList<>();
+        for (final EthBlock.TransactionResult<?> result : block.getTransactions()) {
+            if (result instanceof EthBlock.TransactionObject) {
+                final BigInteger price = ((EthBlock.TransactionObject) result).getGasPrice();
+                //Skip system transactions (zero gas price)
+                if (price != null && price.signum() > 0) {
+                    prices.add(price);
+                }
+            }
+        }
+        if (prices.isEmpty()) {
+            return;
+        }
+        Collections.sort(prices);
+        final BigInteger[] values = new BigInteger[PERCENTILES.length];
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            values[i] = prices.get(Math.min(prices.size() - 1, (int) (PERCENTILES[i] * prices.size())));
+        }
+        blockPercentiles[next] = values;
+        next = (next + 1) % BLOCKS;
+        blocks = Math.min(BLOCKS, blocks + 1);
+    }
+
+    private void _update() throws Exception {
+        final BigInteger[] values = new BigInteger[Tier.values().length];
+        if (blocks == 0) {
+            final EthGasPrice gasPrice = web3j.ethGasPrice().send();
+            if (gasPrice.hasError()) {
+                return;
+            }
+            Arrays.fill(values, gasPrice.getGasPrice());
+        } else {
+            for (int i = 0; i < values.length; i++) {
+                final BigInteger[] samples = new BigInteger[blocks];
+                for (int b = 0; b < blocks; b++) {
+                    samples[b] = blockPercentiles[b][i];
+                }
+                Arrays.sort(samples);
+                values[i] = samples[blocks / 2];
+            }
+            //Keep tiers ordered when a single block skews one percentile
+            values[Tier.CURRENT.ordinal()] = values[Tier.CURRENT.ordinal()].max(values[Tier.SAFE.ordinal()]);
+            values[Tier.FAST.ordinal()] = values[Tier.FAST.ordinal()].max(values[Tier.CURRENT.ordinal()]);
+        }
+        tiers = values;
+        updatedMillis = System.currentTimeMillis();
+        log.debug("Gas price block {} : safe {}, current {}, fast {}", lastBlock, values[0], values[1], values[2]);
+    }
+}
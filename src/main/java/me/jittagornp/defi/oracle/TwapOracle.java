@@ -0,0 +1,277 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.oracle;
+
+import lombok.extern.slf4j.Slf4j;
+import me.jittagornp.defi.amm.PairAddressResolver;
+import me.jittagornp.defi.multicall.MulticallAggregator;
+import me.jittagornp.defi.smartcontract.Pairs;
+import org.web3j.abi.datatypes.Type;
+import org.web3j.protocol.core.DefaultBlockParameter;
+import org.web3j.protocol.core.RemoteFunctionCall;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Time weighted average prices of Uniswap V2 pairs from price0CumulativeLast / price1CumulativeLast,
+ * sampled in the background so a TWAP read never waits on the network.
+ * <p>
+ * Every sample is one multicall : the cumulative prices and reserves of all pairs plus the block timestamp,
+ * the cumulative prices are brought forward to that timestamp like UniswapV2OracleLibrary.currentCumulativePrices.
+ * Each pair keeps a ring of primitive longs (timestamp + two uint256 as 4 limbs each) indexed by timestamp / sampleSeconds,
+ * so the sample at the start of a window is found directly.
+ *
+ * @author jittagornp
+ */
+@Slf4j
+public class TwapOracle {
+
+    public static final long DEFAULT_SAMPLE_SECONDS = 60;
+    public static final long DEFAULT_MAX_WINDOW_SECONDS = 2 * 60 * 60;
+
+    private static final int LONGS_PER_SAMPLE = 9;
+    private static final int PRICE0 = 1;
+    private static final int PRICE1 = 5;
+    private static final int RESOLUTION = 112;
+    //Exact bucket first, then a neighbour when a sample was missed or landed late
+    private static final long[] BUCKET_OFFSETS = {0, -1, 1};
+    private static final long SAMPLE_TIMEOUT_MILLIS = 30_000;
+    private static final BigInteger MASK_256 = BigInteger.ONE.shiftLeft(256).subtract(BigInteger.ONE);
+
+    private final MulticallAggregator multicall;
+    private final Function<String, Pairs> pairLoader;
+    private final long sampleSeconds;
+    private final int capacity;
+    private final Map<String, Integer> index = new ConcurrentHashMap<>();
+
+    private final List<Pairs> contracts = new ArrayList<>();
+    private String[] token0s = new String[16];
+    private long[][] rings = new long[16][];
+    //Slot of the newest sample, -1 = none
+    private int[] latest = new int[16];
+    private int size;
+
+    private ScheduledExecutorService scheduler;
+
+    public TwapOracle(final MulticallAggregator multicall, final Function<String, Pairs> pairLoader) {
+        this(multicall, pairLoader, DEFAULT_SAMPLE_SECONDS, DEFAULT_MAX_WINDOW_SECONDS);
+    }
+
+    /**
+     * @param pairLoader       pair address -&gt; Pairs contract
+     * @param maxWindowSeconds longest window {@link #getTwap(String, long)} can answer
+     */
+    public TwapOracle(final MulticallAggregator multicall, final Function<String, Pairs> pairLoader, final long sampleSeconds, final long maxWindowSeconds) {
+        if (sampleSeconds < 1 || maxWindowSeconds < sampleSeconds) {
+            throw new IllegalArgumentException("Required 0 < sampleSeconds <= maxWindowSeconds");
+        }
+        this.multicall = multicall;
+        this.pairLoader = pairLoader;
+        this.sampleSeconds = sampleSeconds;
+        this.capacity = (int) (maxWindowSeconds / sampleSeconds) + 2;
+    }
+
+    public long getSampleSeconds() {
+        return sampleSeconds;
+    }
+
+    public synchronized void addPair(final String pair, final String tokenA, final String tokenB) {
+        final String key = pair.toLowerCase();
+        if (index.containsKey(key)) {
+            return;
+        }
+        if (size == token0s.length) {
+            token0s = Arrays.copyOf(token0s, size * 2);
+            rings = Arrays.copyOf(rings, size * 2);
+            latest = Arrays.copyOf(latest, size * 2);
+        }
+        contracts.add(pairLoader.apply(pair));
+        token0s[size] = PairAddressResolver.sortTokens(tokenA, tokenB)[0];
+        rings[size] = new long[capacity * LONGS_PER_SAMPLE];
+        latest[size] = -1;
+        index.put(key, size);
+        size = size + 1;
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Start sampling, no-op when already started.
+     */
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "twap-oracle-" + UUID.randomUUID().toString().substring(0, 5));
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::sample, 0, sampleSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Average price of token0 in token1 (raw units, not decimals adjusted) over the last windowSeconds,
+     * NaN until the window is covered by samples.
+     */
+    public double getTwap(final String pair, final long windowSeconds) {
+        return _getTwap(pair, windowSeconds, PRICE0);
+    }
+
+    /**
+     * Average price of baseToken in the other token of the pair (raw units)
+     */
+    public double getTwap(final String pair, final String baseToken, final long windowSeconds) {
+        final Integer i = index.get(pair.toLowerCase());
+        if (i == null) {
+            return Double.NaN;
+        }
+        return _getTwap(pair, windowSeconds, baseToken.equalsIgnoreCase(token0s[i]) ? PRICE0 : PRICE1);
+    }
+
+    private synchronized double _getTwap(final String pair, final long windowSeconds, final int price) {
+        final Integer i = index.get(pair.toLowerCase());
+        if (i == null || latest[i] < 0 || windowSeconds < 1) {
+            return Double.NaN;
+        }
+        final long[] ring = rings[i];
+        final int newest = latest[i] * LONGS_PER_SAMPLE;
+        final long newestTimestamp = ring[newest];
+        final long bucket = Math.floorDiv(newestTimestamp - windowSeconds, sampleSeconds);
+        for (final long offset : BUCKET_OFFSETS) {
+            final long candidate = bucket + offset;
+            final int base = (int) Math.floorMod(candidate, (long) capacity) * LONGS_PER_SAMPLE;
+            final long timestamp = ring[base];
+            if (timestamp != 0 && timestamp < newestTimestamp && Math.floorDiv(timestamp, sampleSeconds) == candidate) {
+                return _average(ring, base + price, newest + price, newestTimestamp - timestamp);
+            }
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * (cumulative[to] - cumulative[from]) mod 2^256 / seconds / 2^112
+     */
+    private static double _average(final long[] ring, final int from, final int to, final long seconds) {
+        double value = 0;
+        long borrow = 0;
+        for (int limb = 0; limb < 4; limb++) {
+            final long a = ring[to + limb];
+            final long b = ring[from + limb];
+            final long difference = a - b;
+            final long result = difference - borrow;
+            borrow = (Long.compareUnsigned(a, b) < 0 || Long.compareUnsigned(difference, borrow) < 0) ? 1 : 0;
+            value = value + Math.scalb(_unsignedToDouble(result), 64 * limb);
+        }
+        return Math.scalb(value / seconds, -RESOLUTION);
+    }
+
+    private static double _unsignedToDouble(final long value) {
+        return value >= 0 ? value : ((value >>> 1) | (value & 1)) * 2.0;
+    }
+
+    /**
+     * Take a sample now (one multicall for all pairs), blocks until it is recorded.
+     */
+    //Multicall results are web3j's raw List<Type>
+    @SuppressWarnings("rawtypes")
+    public void sample() {
+        final List<Pairs> pairs;
+        synchronized (this) {
+            pairs = new ArrayList<>(contracts);
+        }
+        if (pairs.isEmpty()) {
+            return;
+        }
+        try {
+            final List<String> targets = new ArrayList<>(pairs.size() * 3 + 1);
+            final List<RemoteFunctionCall<?>> calls = new ArrayList<>(pairs.size() * 3 + 1);
+            targets.add(multicall.getContractAddress());
+            calls.add(multicall.getMulticall().getCurrentBlockTimestamp());
+            for (final Pairs contract : pairs) {
+                targets.add(contract.getContractAddress());
+                calls.add(contract.price0CumulativeLast());
+                targets.add(contract.getContractAddress());
+                calls.add(contract.price1CumulativeLast());
+                targets.add(contract.getContractAddress());
+                calls.add(contract.getReserves());
+            }
+            //More pairs than one aggregate3 takes are split, all chunks must read the same block
+            final BigInteger block = multicall.getBlockNumber()
+                    .get(SAMPLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            final List<List<Type>> results = multicall.callAll(targets, calls, DefaultBlockParameter.valueOf(block))
+                    .get(SAMPLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            if (results.get(0) == null) {
+                log.warn("TWAP oracle sample error : no block timestamp");
+                return;
+            }
+            final long timestamp = MulticallAggregator.<BigInteger>singleValue(results.get(0)).longValue();
+            synchronized (this) {
+                for (int i = 0; i < pairs.size(); i++) {
+                    final List<Type> price0 = results.get(1 + i * 3);
+                    final List<Type> price1 = results.get(2 + i * 3);
+                    final List<Type> reserves = results.get(3 + i * 3);
+                    if (price0 == null || price1 == null || reserves == null) {
+                        log.debug("TWAP oracle skip {}", pairs.get(i).getContractAddress());
+                        continue;
+                    }
+                    _record(
+                            i,
+                            timestamp,
+                            MulticallAggregator.singleValue(price0),
+                            MulticallAggregator.singleValue(price1),
+                            (BigInteger) reserves.get(0).getValue(),
+                            (BigInteger) reserves.get(1).getValue(),
+                            ((BigInteger) reserves.get(2).getValue()).longValue()
+                    );
+                }
+            }
+        } catch (Exception e) {
+            log.warn("TWAP oracle sample error : {}", e.getMessage());
+        }
+    }
+
+    private void _record(final int i, final long timestamp, final BigInteger price0Cumulative, final BigInteger price1Cumulative, final BigInteger reserve0, final BigInteger reserve1, final long blockTimestampLast) {
+        BigInteger price0 = price0Cumulative;
+        BigInteger price1 = price1Cumulative;
+        //A pair updated after the timestamp was read (should not happen at one block) : its cumulative prices are at blockTimestampLast
+        final long elapsed = timestamp - blockTimestampLast;
+        final long at = Math.max(timestamp, blockTimestampLast);
+        if (elapsed < 0) {
+            log.debug("TWAP oracle {} updated after the sample timestamp, no bring-forward", contracts.get(i).getContractAddress());
+        } else if (elapsed > 0 && reserve0.signum() > 0 && reserve1.signum() > 0) {
+            final BigInteger seconds = BigInteger.valueOf(elapsed);
+            price0 = price0.add(reserve1.shiftLeft(RESOLUTION).divide(reserve0).multiply(seconds)).and(MASK_256);
+            price1 = price1.add(reserve0.shiftLeft(RESOLUTION).divide(reserve1).multiply(seconds)).and(MASK_256);
+        }
+        final int slot = (int) Math.floorMod(Math.floorDiv(at, sampleSeconds), (long) capacity);
+        final long[] ring = rings[i];
+        final int base = slot * LONGS_PER_SAMPLE;
+        ring[base] = at;
+        for (int limb = 0; limb < 4; limb++) {
+            ring[base + PRICE0 + limb] = price0.shiftRight(64 * limb).longValue();
+            ring[base + PRICE1 + limb] = price1.shiftRight(64 * limb).longValue();
+        }
+        latest[i] = slot;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.rpc;
+
+import io.reactivex.Flowable;
+import lombok.extern.slf4j.Slf4j;
+import org.web3j.protocol.Web3jService;
+import org.web3j.protocol.core.BatchRequest;
+import org.web3j.protocol.core.BatchResponse;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.Response;
+import org.web3j.protocol.websocket.events.Notification;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Coalesce read calls (eth_call) issued within a short window into one JSON-RPC batch.
+ *
+ * @author jittagornp
+ */
+@Slf4j
+public class BatchingWeb3jService implements Web3jService {
+
+    private static final Set<String> BATCHABLE_METHODS = Collections.singleton("eth_call");
+
+    private final Web3jService delegate;
+    private final long windowMillis;
+    private final int maxBatchSize;
+    private final ScheduledExecutorService scheduler;
+
+    private final Object lock = new Object();
+    private List<PendingRequest<?>> pending = new ArrayList<>();
+    private ScheduledFuture<?> flushTask;
+
+    public BatchingWeb3jService(final Web3jService delegate) {
+        this(delegate, 5, 100);
+    }
+
+    public BatchingWeb3jService(final Web3jService delegate, final long windowMillis, final int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Required maxBatchSize >= 1");
+        }
+        this.delegate = delegate;
+        this.windowMillis = windowMillis;
+        this.maxBatchSize = maxBatchSize;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "rpc-batch-" + UUID.randomUUID().toString().substring(0, 5));
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    //Web3jService declares raw Request / Response
+    @Override
+    @SuppressWarnings("rawtypes")
+    public <T extends Response> T send(final Request request, final Class<T> responseType) throws IOException {
+        if (!isBatchable(request)) {
+            return delegate.send(request, responseType);
+        }
+        try {
+            return sendAsync(request, responseType).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for batch response", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public <T extends Response> CompletableFuture<T> sendAsync(final Request request, final Class<T> responseType) {
+        if (!isBatchable(request)) {
+            return delegate.sendAsync(request, responseType);
+        }
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        List<PendingRequest<?>> full = null;
+        synchronized (lock) {
+            pending.add(new PendingRequest<>(request, responseType, future));
+            if (pending.size() >= maxBatchSize) {
+                full = _drain();
+            } else if (flushTask == null) {
+                flushTask = scheduler.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (full != null) {
+            _dispatch(full);
+        }
+        return future;
+    }
+
+    public void flush() {
+        final List<PendingRequest<?>> requests;
+        synchronized (lock) {
+            requests = _drain();
+        }
+        _dispatch(requests);
+    }
+
+    private List<PendingRequest<?>> _drain() {
+        final List<PendingRequest<?>> requests = pending;
+        pending = new ArrayList<>();
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+        return requests;
+    }
+
+    private void _dispatch(final List<PendingRequest<?>> requests) {
+        if (requests.isEmpty()) {
+            return;
+        }
+        if (requests.size() == 1) {
+            final PendingRequest<?> single = requests.get(0);
+            delegate.sendAsync(single.request, single.request.getResponseType())
+                    .whenComplete((response, error) -> {
+                        if (error != null) {
+                            single.future.completeExceptionally(error);
+                        } else {
+                            single.complete(response);
+                        }
+                    });
+            return;
+        }
+        final BatchRequest batch = new BatchRequest(delegate);
+        final Map<Long, PendingRequest<?>> byId = new HashMap<>();
+        for (final PendingRequest<?> pendingRequest : requests) {
+            batch.add(pendingRequest.request);
+            byId.put(pendingRequest.request.getId(), pendingRequest);
+        }
+        log.debug("Send batch of {} requests", requests.size());
+        delegate.sendBatchAsync(batch)
+                .whenComplete((batchResponse, error) -> {
+                    if (error != null) {
+                        log.warn("Send batch error ", error);
+                        requests.forEach(pendingRequest -> pendingRequest.future.completeExceptionally(error));
+                        return;
+                    }
+                    _complete(batchResponse, byId);
+                });
+    }
+
+    private void _complete(final BatchResponse batchResponse, final Map<Long, PendingRequest<?>> byId) {
+        //JSON-RPC batch responses may arrive in any order, match them by id
+        for (final Response<?> response : batchResponse.getResponses()) {
+            final PendingRequest<?> pendingRequest = byId.remove(response.getId());
+            if (pendingRequest != null) {
+                pendingRequest.complete(response);
+            }
+        }
+        byId.values().forEach(pendingRequest -> pendingRequest.future.completeExceptionally(
+                new IOException("No batch response for request id " + pendingRequest.request.getId())
+        ));
+    }
+
+    private boolean isBatchable(final Request<?, ?> request) {
+        return BATCHABLE_METHODS.contains(request.getMethod());
+    }
+
+    @Override
+    public BatchResponse sendBatch(final BatchRequest batchRequest) throws IOException {
+        return delegate.sendBatch(batchRequest);
+    }
+
+    @Override
+    public CompletableFuture<BatchResponse> sendBatchAsync(final BatchRequest batchRequest) {
+        return delegate.sendBatchAsync(batchRequest);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public <T extends Notification<?>> Flowable<T> subscribe(final Request request, final String unsubscribeMethod, final Class<T> responseType) {
+        return delegate.subscribe(request, unsubscribeMethod, responseType);
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        scheduler.shutdown();
+        delegate.close();
+    }
+
+    private static class PendingRequest<T> {
+
+        private final Request<?, ? extends Response<?>> request;
+
+        private final Class<T> responseType;
+
+        private final CompletableFuture<T> future;
+
+        //BatchRequest.add wants Request<?, ? extends Response<?>>, Web3jService hands a raw Request
+        @SuppressWarnings("unchecked")
+        private PendingRequest(final Request<?, ?> request, final Class<T> responseType, final CompletableFuture<T> future) {
+            this.request = (Request<?, ? extends Response<?>>) request;
+            this.responseType = responseType;
+            this.future = future;
+        }
+
+        private void complete(final Object response) {
+            future.complete(responseType.cast(response));
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.rpc;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Closed -> open on repeated failures, open -> half-open after an exponential backoff,
+ * half-open lets one probe through and closes on its success or reopens on its failure.
+ *
+ * @author jittagornp
+ */
+@Slf4j
+public class CircuitBreaker {
+
+    private static final double OPEN_ERROR_RATE = 0.5;
+    private static final int OPEN_MIN_SAMPLES = 5;
+    private static final int OPEN_CONSECUTIVE_FAILURES = 3;
+    private static final long OPEN_BASE_MILLIS = 5_000;
+    private static final long OPEN_MAX_MILLIS = 5 * 60_000;
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final RpcEndpoint endpoint;
+    private final List<CircuitBreakerListener> listeners = new CopyOnWriteArrayList<>();
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private int openings;
+    private long openUntilMillis;
+    private boolean probeInFlight;
+
+    public CircuitBreaker(final RpcEndpoint endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    public void addListener(final CircuitBreakerListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(final CircuitBreakerListener listener) {
+        listeners.remove(listener);
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized long getOpenUntilMillis() {
+        return openUntilMillis;
+    }
+
+    /**
+     * Whether {@link #tryAcquire()} would succeed now, without taking the half-open probe.
+     */
+    public synchronized boolean isCallPermitted() {
+        switch (state) {
+            case OPEN:
+                return System.currentTimeMillis() >= openUntilMillis;
+            case HALF_OPEN:
+                return !probeInFlight;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Take permission to send, every permitted call must end with
+     * {@link #onSuccess()}, {@link #onFailure(double, long)} or {@link #release()}.
+     */
+    public boolean tryAcquire() {
+        synchronized (this) {
+            switch (state) {
+                case CLOSED:
+                    return true;
+                case HALF_OPEN:
+                    if (probeInFlight) {
+                        return false;
+                    }
+                    probeInFlight = true;
+                    return true;
+                default:
+                    if (System.currentTimeMillis() < openUntilMillis) {
+                        return false;
+                    }
+                    state = State.HALF_OPEN;
+                    probeInFlight = true;
+            }
+        }
+        _fire(State.OPEN, State.HALF_OPEN);
+        return true;
+    }
+
+    /**
+     * Permitted call ended without an answer (cancelled before sending).
+     */
+    public synchronized void release() {
+        if (state == State.HALF_OPEN) {
+            probeInFlight = false;
+        }
+    }
+
+    public void onSuccess() {
+        synchronized (this) {
+            consecutiveFailures = 0;
+            if (state != State.HALF_OPEN) {
+                return;
+            }
+            state = State.CLOSED;
+            probeInFlight = false;
+            openings = 0;
+        }
+        _fire(State.HALF_OPEN, State.CLOSED);
+    }
+
+    /**
+     * @param errorRate EWMA error rate of the endpoint
+     * @param samples   number of answers recorded by the endpoint
+     */
+    public void onFailure(final double errorRate, final long samples) {
+        final State from;
+        synchronized (this) {
+            from = state;
+            if (state == State.OPEN) {
+                return;
+            }
+            consecutiveFailures = consecutiveFailures + 1;
+            final boolean open = state == State.HALF_OPEN
+                    || consecutiveFailures >= OPEN_CONSECUTIVE_FAILURES
+                    || (samples >= OPEN_MIN_SAMPLES && errorRate >= OPEN_ERROR_RATE);
+            if (!open) {
+                return;
+            }
+            final long backoff = Math.min(OPEN_MAX_MILLIS, OPEN_BASE_MILLIS << Math.min(openings, 10));
+            state = State.OPEN;
+            openUntilMillis = System.currentTimeMillis() + backoff;
+            openings = openings + 1;
+            consecutiveFailures = 0;
+            probeInFlight = false;
+        }
+        _fire(from, State.OPEN);
+    }
+
+    private void _fire(final State from, final State to) {
+        log.info("Circuit breaker {} : {} -> {}", endpoint.getUrl(), from, to);
+        for (final CircuitBreakerListener listener : listeners) {
+            try {
+                listener.onStateChange(endpoint, from, to);
+            } catch (RuntimeException e) {
+                log.warn("Circuit breaker listener error ", e);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getState().name();
+    }
+}
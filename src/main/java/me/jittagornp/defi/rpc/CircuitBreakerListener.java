@@ -0,0 +1,14 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.rpc;
+
+/**
+ * @author jittagornp
+ */
+@FunctionalInterface
+public interface CircuitBreakerListener {
+
+    void onStateChange(final RpcEndpoint endpoint, final CircuitBreaker.State from, final CircuitBreaker.State to);
+
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.rpc;
+
+import lombok.Builder;
+import lombok.Getter;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * When to send a second copy of an idempotent read to another endpoint.
+ *
+ * @author jittagornp
+ */
+@Getter
+@Builder
+public class HedgingPolicy {
+
+    public static final Set<String> HEDGEABLE_METHODS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "eth_call",
+            "eth_getBalance",
+            "eth_gasPrice",
+            "eth_getTransactionReceipt"
+    )));
+
+    @Builder.Default
+    private double percentile = 0.95;
+
+    @Builder.Default
+    private long minDelayMillis = 20;
+
+    @Builder.Default
+    private long maxDelayMillis = 2_000;
+
+    public static HedgingPolicy defaultPolicy() {
+        return HedgingPolicy.builder().build();
+    }
+
+    public boolean isHedgeable(final String method) {
+        return HEDGEABLE_METHODS.contains(method);
+    }
+
+    public long delayMillis(final RpcEndpoint endpoint) {
+        final double latency = endpoint.getLatencyPercentileMillis(percentile);
+        if (latency < 0) {
+            return maxDelayMillis;
+        }
+        return Math.max(minDelayMillis, Math.min(maxDelayMillis, (long) Math.ceil(latency)));
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.rpc;
+
+import lombok.Builder;
+import lombok.Getter;
+
+/**
+ * Tuning of the HTTP client shared by RPC endpoints.
+ *
+ * @author jittagornp
+ */
+@Getter
+@Builder
+public class HttpClientConfig {
+
+    @Builder.Default
+    private int maxRequests = 256;
+
+    @Builder.Default
+    private int maxConnectionsPerHost = 32;
+
+    @Builder.Default
+    private boolean http2 = true;
+
+    @Builder.Default
+    private int maxIdleConnections = 32;
+
+    @Builder.Default
+    private long keepAliveMillis = 5 * 60_000L;
+
+    @Builder.Default
+    private long connectTimeoutMillis = 10_000L;
+
+    @Builder.Default
+    private long readTimeoutMillis = 30_000L;
+
+    /**
+     * Gzip request bodies (Content-Encoding: gzip), only for nodes that accept it.
+     * Responses are always requested with Accept-Encoding: gzip.
+     */
+    @Builder.Default
+    private boolean gzipRequests = false;
+
+    /**
+     * Client side rate limit of each endpoint, null to disable.
+     */
+    @Builder.Default
+    private RateLimitPolicy rateLimitPolicy = RateLimitPolicy.defaultPolicy();
+
+    public static HttpClientConfig defaultConfig() {
+        return HttpClientConfig.builder().build();
+    }
+}
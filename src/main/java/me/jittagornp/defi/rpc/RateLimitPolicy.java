@@ -0,0 +1,80 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.rpc;
+
+import lombok.Builder;
+import lombok.Getter;
+
+/**
+ * AIMD token bucket settings, applied per endpoint and per method class of the endpoint.
+ *
+ * @author jittagornp
+ */
+@Getter
+@Builder
+public class RateLimitPolicy {
+
+    /**
+     * Requests per second
+     */
+    @Builder.Default
+    private double initialRate = 50;
+
+    @Builder.Default
+    private double minRate = 1;
+
+    @Builder.Default
+    private double maxRate = 1_000;
+
+    /**
+     * Bucket capacity in seconds of the current rate
+     */
+    @Builder.Default
+    private double burstSeconds = 1;
+
+    /**
+     * Requests per second added back every second of successful traffic
+     */
+    @Builder.Default
+    private double additiveIncrease = 2;
+
+    @Builder.Default
+    private double multiplicativeDecrease = 0.5;
+
+    /**
+     * One decrease per cooldown, a burst of 429 answers to the same window only halves once
+     */
+    @Builder.Default
+    private long decreaseCooldownMillis = 1_000;
+
+    /**
+     * Requeue a throttled request up to this many times before surfacing the error
+     */
+    @Builder.Default
+    private int maxThrottleRetries = 8;
+
+    public static RateLimitPolicy defaultPolicy() {
+        return RateLimitPolicy.builder().build();
+    }
+
+    /**
+     * Methods sharing a quota on public nodes.
+     */
+    public String methodClass(final String method) {
+        switch (method) {
+            case "eth_call":
+            case "eth_estimateGas":
+                return "call";
+            case "eth_getLogs":
+            case "eth_getFilterLogs":
+            case "eth_getFilterChanges":
+                return "logs";
+            case "eth_sendRawTransaction":
+            case "eth_sendTransaction":
+                return "transaction";
+            default:
+                return "default";
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.rpc;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket whose rate shrinks on throttling and grows back additively (AIMD).
+ * Callers reserve permits and wait the returned delay, so requests queue instead of failing.
+ *
+ * @author jittagornp
+ */
+public class RateLimiter {
+
+    private final RateLimitPolicy policy;
+    private double rate;
+    private double tokens;
+    private long lastRefillNanos;
+    private long lastDecreaseNanos;
+
+    public RateLimiter(final RateLimitPolicy policy) {
+        this.policy = policy;
+        this.rate = policy.getInitialRate();
+        this.tokens = _capacity();
+        this.lastRefillNanos = System.nanoTime();
+        this.lastDecreaseNanos = lastRefillNanos - TimeUnit.MILLISECONDS.toNanos(policy.getDecreaseCooldownMillis());
+    }
+
+    private double _capacity() {
+        return Math.max(1, rate * policy.getBurstSeconds());
+    }
+
+    private void _refill(final long now) {
+        final double elapsedSeconds = (now - lastRefillNanos) / 1e9;
+        tokens = Math.min(_capacity(), tokens + elapsedSeconds * rate);
+        lastRefillNanos = now;
+    }
+
+    /**
+     * Take permits, the caller must wait the returned nanos before sending.
+     */
+    public synchronized long reserve(final int permits) {
+        _refill(System.nanoTime());
+        tokens = tokens - permits;
+        if (tokens >= 0) {
+            return 0;
+        }
+        return (long) (-tokens / rate * 1e9);
+    }
+
+    public synchronized void onSuccess(final int permits) {
+        rate = Math.min(policy.getMaxRate(), rate + policy.getAdditiveIncrease() * permits / rate);
+    }
+
+    public synchronized void onThrottled() {
+        final long now = System.nanoTime();
+        if (now - lastDecreaseNanos < TimeUnit.MILLISECONDS.toNanos(policy.getDecreaseCooldownMillis())) {
+            return;
+        }
+        _refill(now);
+        rate = Math.max(policy.getMinRate(), rate * policy.getMultiplicativeDecrease());
+        tokens = Math.min(tokens, 0);
+        lastDecreaseNanos = now;
+    }
+
+    /**
+     * Current requests per second
+     */
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%.1f req/s", getRate());
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.rpc;
+
+import lombok.Getter;
+import org.web3j.protocol.Web3jService;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One RPC endpoint with its EWMA latency / error rate health, circuit breaker and adaptive rate limits.
+ *
+ * @author jittagornp
+ */
+public class RpcEndpoint {
+
+    private static final double ALPHA = 0.2;
+    private static final double ERROR_PENALTY = 10;
+    private static final int LATENCY_WINDOW = 128;
+
+    @Getter
+    private final String url;
+
+    @Getter
+    private final Web3jService service;
+
+    private double latencyMillis;
+    private double errorRate;
+    private long samples;
+    private final double[] latencyWindow = new double[LATENCY_WINDOW];
+
+    private final RateLimitPolicy rateLimitPolicy;
+    private final RateLimiter rateLimiter;
+    private final Map<String, RateLimiter> methodRateLimiters = new ConcurrentHashMap<>();
+    private final CircuitBreaker circuitBreaker = new CircuitBreaker(this);
+
+    public RpcEndpoint(final String url, final Web3jService service) {
+        this(url, service, RateLimitPolicy.defaultPolicy());
+    }
+
+    /**
+     * @param rateLimitPolicy null to disable client side rate limiting
+     */
+    public RpcEndpoint(final String url, final Web3jService service, final RateLimitPolicy rateLimitPolicy) {
+        this.url = url;
+        this.service = service;
+        this.rateLimitPolicy = rateLimitPolicy;
+        this.rateLimiter = rateLimitPolicy == null ? null : new RateLimiter(rateLimitPolicy);
+    }
+
+    public RateLimitPolicy getRateLimitPolicy() {
+        return rateLimitPolicy;
+    }
+
+    /**
+     * Endpoint wide limiter, null when rate limiting is disabled.
+     */
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Limiter of the method class, null when rate limiting is disabled.
+     */
+    public RateLimiter getRateLimiter(final String method) {
+        if (rateLimitPolicy == null) {
+            return null;
+        }
+        return _classRateLimiter(rateLimitPolicy.methodClass(method));
+    }
+
+    private RateLimiter _classRateLimiter(final String methodClass) {
+        return methodRateLimiters.computeIfAbsent(methodClass, key -> new RateLimiter(rateLimitPolicy));
+    }
+
+    /**
+     * Reserve one permit per request on the endpoint and method class buckets, returns nanos to wait before sending.
+     */
+    public long acquire(final List<String> methods) {
+        if (rateLimitPolicy == null) {
+            return 0;
+        }
+        long waitNanos = rateLimiter.reserve(methods.size());
+        for (final Map.Entry<String, Integer> entry : _countByClass(methods).entrySet()) {
+            waitNanos = Math.max(waitNanos, _classRateLimiter(entry.getKey()).reserve(entry.getValue()));
+        }
+        return waitNanos;
+    }
+
+    public void onRateLimitSuccess(final List<String> methods) {
+        if (rateLimitPolicy == null) {
+            return;
+        }
+        rateLimiter.onSuccess(methods.size());
+        _countByClass(methods).forEach((methodClass, permits) -> _classRateLimiter(methodClass).onSuccess(permits));
+    }
+
+    /**
+     * @param endpointWide HTTP 429 throttles the whole endpoint, a JSON-RPC "limit exceeded" only the method class
+     */
+    public void onThrottled(final List<String> methods, final boolean endpointWide) {
+        if (rateLimitPolicy == null) {
+            return;
+        }
+        if (endpointWide) {
+            rateLimiter.onThrottled();
+            return;
+        }
+        _countByClass(methods).keySet().forEach(methodClass -> _classRateLimiter(methodClass).onThrottled());
+    }
+
+    private Map<String, Integer> _countByClass(final List<String> methods) {
+        final Map<String, Integer> counts = new HashMap<>();
+        for (final String method : methods) {
+            counts.merge(rateLimitPolicy.methodClass(method), 1, Integer::sum);
+        }
+        return counts;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Record the answer of a call permitted by the circuit breaker.
+     */
+    public void record(final long latencyNanos, final boolean failed) {
+        final double rate;
+        final long count;
+        synchronized (this) {
+            final double millis = TimeUnit.NANOSECONDS.toMicros(latencyNanos) / 1000.0;
+            if (samples == 0) {
+                latencyMillis = millis;
+                errorRate = failed ? 1 : 0;
+            } else {
+                latencyMillis = ALPHA * millis + (1 - ALPHA) * latencyMillis;
+                errorRate = ALPHA * (failed ? 1 : 0) + (1 - ALPHA) * errorRate;
+            }
+            latencyWindow[(int) (samples % LATENCY_WINDOW)] = millis;
+            samples = samples + 1;
+            rate = errorRate;
+            count = samples;
+        }
+        if (failed) {
+            circuitBreaker.onFailure(rate, count);
+        } else {
+            circuitBreaker.onSuccess();
+        }
+    }
+
+    public boolean isAvailable() {
+        return circuitBreaker.isCallPermitted();
+    }
+
+    /**
+     * Lower is healthier, endpoints without samples score 0 so they get probed first.
+     */
+    public synchronized double score() {
+        return latencyMillis * (1 + ERROR_PENALTY * errorRate);
+    }
+
+    /**
+     * Latency percentile (0.0 - 1.0) over the recent window, -1 when there is no sample yet.
+     */
+    public synchronized double getLatencyPercentileMillis(final double percentile) {
+        final int size = (int) Math.min(samples, LATENCY_WINDOW);
+        if (size == 0) {
+            return -1;
+        }
+        final double[] sorted = Arrays.copyOf(latencyWindow, size);
+        Arrays.sort(sorted);
+        final int index = (int) Math.ceil(percentile * size) - 1;
+        return sorted[Math.max(0, Math.min(size - 1, index))];
+    }
+
+    public synchronized double getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    public synchronized double getErrorRate() {
+        return errorRate;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (latency %.1f ms, error rate %.2f, circuit %s)", url, getLatencyMillis(), getErrorRate(), circuitBreaker);
+    }
+}
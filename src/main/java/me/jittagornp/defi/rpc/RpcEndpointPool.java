@@ -0,0 +1,590 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.rpc;
+
+import io.reactivex.Flowable;
+import lombok.extern.slf4j.Slf4j;
+import me.jittagornp.defi.exception.CircuitBreakerOpenException;
+import org.web3j.protocol.Web3jService;
+import org.web3j.protocol.core.BatchRequest;
+import org.web3j.protocol.core.BatchResponse;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.Response;
+import org.web3j.protocol.exceptions.ClientConnectionException;
+import org.web3j.protocol.http.HttpService;
+import org.web3j.protocol.websocket.events.Notification;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Route each request to the healthiest endpoint and fail over to the next one on transport errors.
+ * Endpoints with an open circuit breaker are skipped, when all are open requests fail fast with {@link CircuitBreakerOpenException}.
+ * Requests wait for the endpoint rate limiter, throttled answers (HTTP 429, "limit exceeded") are requeued.
+ * Stateful methods (filters, transactions and their nonces) stay on one pinned endpoint, moved only when it fails,
+ * a filter is then reinstalled on the new endpoint by web3j's filter polling ("filter not found").
+ *
+ * @author jittagornp
+ */
+@Slf4j
+public class RpcEndpointPool implements Web3jService {
+
+    private static final Set<String> NON_RETRYABLE_METHODS = new HashSet<>(Arrays.asList(
+            "eth_sendRawTransaction",
+            "eth_sendTransaction"
+    ));
+
+    //A filter lives on the node that installed it, a pending nonce is only right where the transactions were sent
+    private static final Set<String> PINNED_METHODS = new HashSet<>(Arrays.asList(
+            "eth_newFilter",
+            "eth_newBlockFilter",
+            "eth_newPendingTransactionFilter",
+            "eth_getFilterChanges",
+            "eth_getFilterLogs",
+            "eth_uninstallFilter",
+            "eth_sendRawTransaction",
+            "eth_sendTransaction",
+            "eth_getTransactionCount"
+    ));
+
+    private final List<RpcEndpoint> endpoints;
+    private final RpcMetrics metrics = new RpcMetrics();
+    private final ScheduledExecutorService scheduler;
+    private volatile HedgingPolicy hedgingPolicy;
+    private RpcEndpoint pinned;
+
+    public RpcEndpointPool(final List<RpcEndpoint> endpoints) {
+        if (endpoints == null || endpoints.isEmpty()) {
+            throw new IllegalArgumentException("Required endpoints");
+        }
+        this.endpoints = Collections.unmodifiableList(new ArrayList<>(endpoints));
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "rpc-pool-" + UUID.randomUUID().toString().substring(0, 5));
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static RpcEndpointPool of(final List<String> urls) {
+        return of(urls, HttpService::new);
+    }
+
+    public static RpcEndpointPool of(final List<String> urls, final Function<String, Web3jService> serviceFactory) {
+        return new RpcEndpointPool(urls.stream()
+                .map(url -> new RpcEndpoint(url, serviceFactory.apply(url)))
+                .collect(Collectors.toList())
+        );
+    }
+
+    public List<RpcEndpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    public RpcMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Opt-in hedging of idempotent reads, null to disable.
+     */
+    public RpcEndpointPool setHedgingPolicy(final HedgingPolicy hedgingPolicy) {
+        this.hedgingPolicy = hedgingPolicy;
+        return this;
+    }
+
+    public HedgingPolicy getHedgingPolicy() {
+        return hedgingPolicy;
+    }
+
+    /**
+     * Called on every circuit breaker state change of the endpoints in this pool.
+     */
+    public RpcEndpointPool addCircuitBreakerListener(final CircuitBreakerListener listener) {
+        endpoints.forEach(endpoint -> endpoint.getCircuitBreaker().addListener(listener));
+        return this;
+    }
+
+    public RpcEndpointPool removeCircuitBreakerListener(final CircuitBreakerListener listener) {
+        endpoints.forEach(endpoint -> endpoint.getCircuitBreaker().removeListener(listener));
+        return this;
+    }
+
+    /**
+     * At least one endpoint accepts requests.
+     */
+    public boolean isAvailable() {
+        return endpoints.stream().anyMatch(RpcEndpoint::isAvailable);
+    }
+
+    /**
+     * Healthiest endpoint whose circuit breaker permits a call, null when none.
+     */
+    protected RpcEndpoint select(final Set<RpcEndpoint> excludes) {
+        RpcEndpoint best = null;
+        for (final RpcEndpoint endpoint : endpoints) {
+            if (excludes.contains(endpoint) || !endpoint.isAvailable()) {
+                continue;
+            }
+            if (best == null || endpoint.score() < best.score()) {
+                best = endpoint;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Endpoint of the stateful methods, the pinned one while it is available and not excluded, else a newly pinned one.
+     */
+    protected synchronized RpcEndpoint pin(final Set<RpcEndpoint> excludes) {
+        if (pinned != null && pinned.isAvailable() && !excludes.contains(pinned)) {
+            return pinned;
+        }
+        final RpcEndpoint next = select(excludes);
+        if (next != null && next != pinned) {
+            log.info("Pin RPC filters / transactions to {}{}", next.getUrl(), pinned == null ? "" : ", was " + pinned.getUrl());
+            pinned = next;
+        }
+        return next;
+    }
+
+    public synchronized RpcEndpoint getPinnedEndpoint() {
+        return pinned;
+    }
+
+    private boolean _isPinned(final List<String> methods) {
+        return methods.stream().anyMatch(PINNED_METHODS::contains);
+    }
+
+    private Function<Set<RpcEndpoint>, RpcEndpoint> _selector(final List<String> methods) {
+        return _isPinned(methods) ? this::pin : this::select;
+    }
+
+    private CircuitBreakerOpenException _allOpen() {
+        return new CircuitBreakerOpenException("Circuit breaker open on all RPC endpoints " + endpoints);
+    }
+
+    private static boolean _isRejected(final Throwable error) {
+        Throwable cause = error;
+        while (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause instanceof CircuitBreakerOpenException;
+    }
+
+    private boolean _canRetry(final List<String> methods) {
+        return methods.stream().noneMatch(NON_RETRYABLE_METHODS::contains);
+    }
+
+    private boolean _canHedge(final List<String> methods) {
+        final HedgingPolicy policy = hedgingPolicy;
+        return policy != null
+                && endpoints.size() > 1
+                && !methods.isEmpty()
+                && !_isPinned(methods)
+                && methods.stream().allMatch(policy::isHedgeable);
+    }
+
+    private List<String> _methods(final BatchRequest batchRequest) {
+        return batchRequest.getRequests().stream()
+                .map(Request::getMethod)
+                .collect(Collectors.toList());
+    }
+
+    //Web3jService declares raw Request / Response
+    @Override
+    @SuppressWarnings("rawtypes")
+    public <T extends Response> T send(final Request request, final Class<T> responseType) throws IOException {
+        final List<String> methods = Collections.singletonList(request.getMethod());
+        if (_canHedge(methods)) {
+            return _join(sendAsync(request, responseType));
+        }
+        return _sendWithFailover(methods, endpoint -> endpoint.getService().send(request, responseType));
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public <T extends Response> CompletableFuture<T> sendAsync(final Request request, final Class<T> responseType) {
+        return _sendAsync(Collections.singletonList(request.getMethod()), endpoint -> endpoint.getService().sendAsync(request, responseType));
+    }
+
+    @Override
+    public BatchResponse sendBatch(final BatchRequest batchRequest) throws IOException {
+        final List<String> methods = _methods(batchRequest);
+        if (_canHedge(methods)) {
+            return _join(sendBatchAsync(batchRequest));
+        }
+        return _sendWithFailover(methods, endpoint -> endpoint.getService().sendBatch(batchRequest));
+    }
+
+    @Override
+    public CompletableFuture<BatchResponse> sendBatchAsync(final BatchRequest batchRequest) {
+        return _sendAsync(_methods(batchRequest), endpoint -> endpoint.getService().sendBatchAsync(batchRequest));
+    }
+
+    private <T> CompletableFuture<T> _sendAsync(final List<String> methods, final Function<RpcEndpoint, CompletableFuture<T>> sender) {
+        if (_canHedge(methods)) {
+            return _sendAsyncHedged(methods, sender);
+        }
+        return _sendAsyncWithFailover(methods, sender, new HashSet<>(), _selector(methods));
+    }
+
+    private <T> T _join(final CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for response", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private <T> T _sendWithFailover(final List<String> methods, final IOFunction<RpcEndpoint, T> sender) throws IOException {
+        final Function<Set<RpcEndpoint>, RpcEndpoint> selector = _selector(methods);
+        final Set<RpcEndpoint> tried = new HashSet<>();
+        while (true) {
+            final RpcEndpoint endpoint = selector.apply(tried);
+            if (endpoint == null) {
+                throw _allOpen();
+            }
+            tried.add(endpoint);
+            try {
+                return _attemptSync(endpoint, methods, sender);
+            } catch (CircuitBreakerOpenException e) {
+                //Not sent, reroute
+            } catch (IOException | RuntimeException e) {
+                if (!_canRetry(methods) || selector.apply(tried) == null) {
+                    throw e;
+                }
+                metrics.incrementFailovers();
+                log.warn("RPC {} failed, fail over to next endpoint : {}", endpoint.getUrl(), e.getMessage());
+            }
+        }
+    }
+
+    private <T> T _attemptSync(final RpcEndpoint endpoint, final List<String> methods, final IOFunction<RpcEndpoint, T> sender) throws IOException {
+        if (!endpoint.getCircuitBreaker().tryAcquire()) {
+            throw new CircuitBreakerOpenException("Circuit breaker open on " + endpoint.getUrl());
+        }
+        int throttled = 0;
+        while (true) {
+            try {
+                _sleep(endpoint.acquire(methods));
+            } catch (IOException e) {
+                endpoint.getCircuitBreaker().release();
+                throw e;
+            }
+            metrics.incrementRequests();
+            final long start = System.nanoTime();
+            final T response;
+            try {
+                response = sender.apply(endpoint);
+            } catch (IOException | RuntimeException e) {
+                if (_isThrottledException(e) && throttled < _maxThrottleRetries(endpoint)) {
+                    throttled = throttled + 1;
+                    _onThrottled(endpoint, methods, true);
+                    continue;
+                }
+                endpoint.record(System.nanoTime() - start, true);
+                throw e;
+            }
+            if (_isThrottledResponse(response) && throttled < _maxThrottleRetries(endpoint)) {
+                throttled = throttled + 1;
+                _onThrottled(endpoint, methods, false);
+                continue;
+            }
+            endpoint.record(System.nanoTime() - start, false);
+            endpoint.onRateLimitSuccess(methods);
+            return response;
+        }
+    }
+
+    private <T> CompletableFuture<T> _attemptAsync(final RpcEndpoint endpoint, final List<String> methods, final Function<RpcEndpoint, CompletableFuture<T>> sender) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        if (!endpoint.getCircuitBreaker().tryAcquire()) {
+            result.completeExceptionally(new CircuitBreakerOpenException("Circuit breaker open on " + endpoint.getUrl()));
+            return result;
+        }
+        _attemptWhenPermitted(endpoint, methods, sender, result, 0);
+        return result;
+    }
+
+    private <T> void _attemptWhenPermitted(final RpcEndpoint endpoint, final List<String> methods, final Function<RpcEndpoint, CompletableFuture<T>> sender, final CompletableFuture<T> result, final int throttled) {
+        final long waitNanos = endpoint.acquire(methods);
+        if (waitNanos <= 0) {
+            _attemptNow(endpoint, methods, sender, result, throttled);
+            return;
+        }
+        scheduler.schedule(() -> _attemptNow(endpoint, methods, sender, result, throttled), waitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private <T> void _attemptNow(final RpcEndpoint endpoint, final List<String> methods, final Function<RpcEndpoint, CompletableFuture<T>> sender, final CompletableFuture<T> result, final int throttled) {
+        //Cancelled hedge while queued
+        if (result.isDone()) {
+            endpoint.getCircuitBreaker().release();
+            return;
+        }
+        metrics.incrementRequests();
+        final long start = System.nanoTime();
+        final CompletableFuture<T> future;
+        try {
+            future = sender.apply(endpoint);
+        } catch (RuntimeException e) {
+            endpoint.record(System.nanoTime() - start, true);
+            result.completeExceptionally(e);
+            return;
+        }
+        future.whenComplete((response, error) -> {
+            final boolean isThrottled = error == null ? _isThrottledResponse(response) : _isThrottledException(error);
+            if (isThrottled && throttled < _maxThrottleRetries(endpoint)) {
+                _onThrottled(endpoint, methods, error != null);
+                _attemptWhenPermitted(endpoint, methods, sender, result, throttled + 1);
+                return;
+            }
+            endpoint.record(System.nanoTime() - start, error != null);
+            if (error != null) {
+                result.completeExceptionally(error);
+                return;
+            }
+            endpoint.onRateLimitSuccess(methods);
+            result.complete(response);
+        });
+    }
+
+    private void _onThrottled(final RpcEndpoint endpoint, final List<String> methods, final boolean endpointWide) {
+        endpoint.onThrottled(methods, endpointWide);
+        metrics.incrementThrottled();
+        log.debug("RPC {} throttled {}, requeue at {}", endpoint.getUrl(), methods, endpoint.getRateLimiter());
+    }
+
+    private int _maxThrottleRetries(final RpcEndpoint endpoint) {
+        final RateLimitPolicy policy = endpoint.getRateLimitPolicy();
+        return policy == null ? 0 : policy.getMaxThrottleRetries();
+    }
+
+    private static void _sleep(final long nanos) throws IOException {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for rate limit", e);
+        }
+    }
+
+    private static boolean _isThrottledResponse(final Object response) {
+        if (response instanceof Response) {
+            return _isThrottledError(((Response<?>) response).getError());
+        }
+        if (response instanceof BatchResponse) {
+            return ((BatchResponse) response).getResponses()
+                    .stream()
+                    .anyMatch(item -> _isThrottledError(item.getError()));
+        }
+        return false;
+    }
+
+    private static boolean _isThrottledError(final Response.Error error) {
+        if (error == null || error.getMessage() == null) {
+            return false;
+        }
+        final String message = error.getMessage().toLowerCase();
+        return message.contains("limit exceeded")
+                || message.contains("rate limit")
+                || message.contains("too many requests");
+    }
+
+    private static boolean _isThrottledException(final Throwable error) {
+        Throwable cause = error;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        //web3j HttpService : "Invalid response received: 429; ..."
+        return cause instanceof ClientConnectionException
+                && cause.getMessage() != null
+                && cause.getMessage().startsWith("Invalid response received: 429");
+    }
+
+    private <T> CompletableFuture<T> _sendAsyncWithFailover(final List<String> methods, final Function<RpcEndpoint, CompletableFuture<T>> sender, final Set<RpcEndpoint> tried, final Function<Set<RpcEndpoint>, RpcEndpoint> selector) {
+        final RpcEndpoint endpoint = selector.apply(tried);
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        if (endpoint == null) {
+            result.completeExceptionally(_allOpen());
+            return result;
+        }
+        tried.add(endpoint);
+        _attemptAsync(endpoint, methods, sender).whenComplete((response, error) -> {
+            if (error == null) {
+                result.complete(response);
+                return;
+            }
+            final boolean rejected = _isRejected(error);
+            if ((!rejected && !_canRetry(methods)) || selector.apply(tried) == null) {
+                result.completeExceptionally(rejected ? _allOpen() : error);
+                return;
+            }
+            if (!rejected) {
+                metrics.incrementFailovers();
+                log.warn("RPC {} failed, fail over to next endpoint : {}", endpoint.getUrl(), error.getMessage());
+            }
+            _complete(result, _sendAsyncWithFailover(methods, sender, tried, selector));
+        });
+        return result;
+    }
+
+    private <T> CompletableFuture<T> _sendAsyncHedged(final List<String> methods, final Function<RpcEndpoint, CompletableFuture<T>> sender) {
+        final RpcEndpoint primary = select(Collections.emptySet());
+        if (primary == null) {
+            final CompletableFuture<T> result = new CompletableFuture<>();
+            result.completeExceptionally(_allOpen());
+            return result;
+        }
+        final long delayMillis = hedgingPolicy.delayMillis(primary);
+        final HedgedCall<T> call = new HedgedCall<>(methods, sender);
+        call.launch(primary, false);
+        call.setHedge(scheduler.schedule(() -> {
+            final RpcEndpoint secondary = select(call.tried());
+            if (secondary != null && call.launch(secondary, true)) {
+                metrics.incrementHedgedRequests();
+                log.debug("Hedge {} to {} after {} ms", methods, secondary.getUrl(), delayMillis);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS));
+        return call.result;
+    }
+
+    private static <T> void _complete(final CompletableFuture<T> target, final CompletableFuture<T> source) {
+        source.whenComplete((response, error) -> {
+            if (error != null) {
+                target.completeExceptionally(error);
+            } else {
+                target.complete(response);
+            }
+        });
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public <T extends Notification<?>> Flowable<T> subscribe(final Request request, final String unsubscribeMethod, final Class<T> responseType) {
+        final RpcEndpoint endpoint = select(Collections.emptySet());
+        return (endpoint == null ? endpoints.get(0) : endpoint).getService().subscribe(request, unsubscribeMethod, responseType);
+    }
+
+    @Override
+    public void close() throws IOException {
+        scheduler.shutdown();
+        for (final RpcEndpoint endpoint : endpoints) {
+            endpoint.getService().close();
+        }
+    }
+
+    /**
+     * The first successful answer wins, the other attempt is cancelled.
+     */
+    private class HedgedCall<T> {
+
+        private final List<String> methods;
+        private final Function<RpcEndpoint, CompletableFuture<T>> sender;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private final Set<RpcEndpoint> tried = new HashSet<>();
+        private final List<CompletableFuture<T>> attempts = new ArrayList<>();
+        private ScheduledFuture<?> hedge;
+        private int running;
+        private boolean failedOver;
+
+        private HedgedCall(final List<String> methods, final Function<RpcEndpoint, CompletableFuture<T>> sender) {
+            this.methods = methods;
+            this.sender = sender;
+            result.whenComplete((response, error) -> {
+                final ScheduledFuture<?> timer;
+                final List<CompletableFuture<T>> losers;
+                synchronized (this) {
+                    timer = hedge;
+                    losers = new ArrayList<>(attempts);
+                }
+                if (timer != null) {
+                    timer.cancel(false);
+                }
+                losers.forEach(attempt -> attempt.cancel(false));
+            });
+        }
+
+        private synchronized void setHedge(final ScheduledFuture<?> hedge) {
+            this.hedge = hedge;
+            if (failedOver || result.isDone()) {
+                hedge.cancel(false);
+            }
+        }
+
+        private synchronized Set<RpcEndpoint> tried() {
+            return new HashSet<>(tried);
+        }
+
+        private boolean launch(final RpcEndpoint endpoint, final boolean isHedge) {
+            final CompletableFuture<T> attempt;
+            synchronized (this) {
+                if (result.isDone() || failedOver || tried.contains(endpoint)) {
+                    return false;
+                }
+                tried.add(endpoint);
+                running = running + 1;
+                attempt = _attemptAsync(endpoint, methods, sender);
+                attempts.add(attempt);
+            }
+            attempt.whenComplete((response, error) -> {
+                if (error == null) {
+                    if (result.complete(response) && isHedge) {
+                        metrics.incrementHedgeWins();
+                    }
+                    return;
+                }
+                if (error instanceof CancellationException) {
+                    return;
+                }
+                _onFailure(endpoint, error);
+            });
+            return true;
+        }
+
+        private void _onFailure(final RpcEndpoint endpoint, final Throwable error) {
+            final Set<RpcEndpoint> excludes;
+            synchronized (this) {
+                running = running - 1;
+                if (running > 0 || result.isDone()) {
+                    return;
+                }
+                failedOver = true;
+                if (hedge != null) {
+                    hedge.cancel(false);
+                }
+                excludes = new HashSet<>(tried);
+            }
+            if (select(excludes) == null) {
+                result.completeExceptionally(error);
+                return;
+            }
+            metrics.incrementFailovers();
+            log.warn("RPC {} failed, fail over to next endpoint : {}", endpoint.getUrl(), error.getMessage());
+            _complete(result, _sendAsyncWithFailover(methods, sender, excludes, RpcEndpointPool.this::select));
+        }
+    }
+
+    @FunctionalInterface
+    private interface IOFunction<T, R> {
+
+        R apply(T value) throws IOException;
+
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.rpc;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the RPC transport.
+ *
+ * @author jittagornp
+ */
+public class RpcMetrics {
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failovers = new AtomicLong();
+    private final AtomicLong hedgedRequests = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+
+    void incrementRequests() {
+        requests.incrementAndGet();
+    }
+
+    void incrementFailovers() {
+        failovers.incrementAndGet();
+    }
+
+    void incrementHedgedRequests() {
+        hedgedRequests.incrementAndGet();
+    }
+
+    void incrementHedgeWins() {
+        hedgeWins.incrementAndGet();
+    }
+
+    void incrementThrottled() {
+        throttled.incrementAndGet();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getFailovers() {
+        return failovers.get();
+    }
+
+    /**
+     * Requests that were also sent to a second endpoint.
+     */
+    public long getHedgedRequests() {
+        return hedgedRequests.get();
+    }
+
+    /**
+     * Hedged requests where the second endpoint answered first.
+     */
+    public long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    /**
+     * Answers throttled by the node (HTTP 429, "limit exceeded") and requeued.
+     */
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    @Override
+    public String toString() {
+        return "RpcMetrics{" +
+                "requests=" + getRequests() +
+                ", failovers=" + getFailovers() +
+                ", hedgedRequests=" + getHedgedRequests() +
+                ", hedgeWins=" + getHedgeWins() +
+                ", throttled=" + getThrottled() +
+                '}';
+    }
+}
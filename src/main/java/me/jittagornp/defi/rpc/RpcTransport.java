@@ -0,0 +1,142 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.rpc;
+
+import okhttp3.*;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+import org.web3j.protocol.Web3jService;
+import org.web3j.protocol.http.HttpService;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * One configured OkHttp client (dispatcher + connection pool) and the RPC stack built on it,
+ * shared by every DeFiSDK instance that uses the same transport.
+ *
+ * @author jittagornp
+ */
+public class RpcTransport {
+
+    private static class SharedHolder {
+        private static final RpcTransport INSTANCE = new RpcTransport(HttpClientConfig.defaultConfig());
+    }
+
+    private final HttpClientConfig config;
+    private final OkHttpClient client;
+    private final Map<String, RpcEndpoint> endpoints = new ConcurrentHashMap<>();
+    private final Map<List<String>, RpcEndpointPool> pools = new ConcurrentHashMap<>();
+    private final Map<List<String>, Web3jService> services = new ConcurrentHashMap<>();
+
+    public RpcTransport(final HttpClientConfig config) {
+        this.config = config;
+        this.client = _buildClient(config);
+    }
+
+    /**
+     * Process wide transport with the default config.
+     */
+    public static RpcTransport shared() {
+        return SharedHolder.INSTANCE;
+    }
+
+    private static OkHttpClient _buildClient(final HttpClientConfig config) {
+        final Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(config.getMaxRequests());
+        dispatcher.setMaxRequestsPerHost(config.getMaxConnectionsPerHost());
+        final OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(config.getMaxIdleConnections(), config.getKeepAliveMillis(), TimeUnit.MILLISECONDS))
+                .connectTimeout(config.getConnectTimeoutMillis(), TimeUnit.MILLISECONDS)
+                .readTimeout(config.getReadTimeoutMillis(), TimeUnit.MILLISECONDS)
+                .protocols(config.isHttp2()
+                        ? Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1)
+                        : Collections.singletonList(Protocol.HTTP_1_1));
+        if (config.isGzipRequests()) {
+            builder.addInterceptor(new GzipRequestInterceptor());
+        }
+        return builder.build();
+    }
+
+    public HttpClientConfig getConfig() {
+        return config;
+    }
+
+    public OkHttpClient getClient() {
+        return client;
+    }
+
+    public RpcEndpoint getEndpoint(final String url) {
+        return endpoints.computeIfAbsent(url, key -> new RpcEndpoint(key, new HttpService(key, client), config.getRateLimitPolicy()));
+    }
+
+    public RpcEndpointPool getPool(final List<String> urls) {
+        return pools.computeIfAbsent(_key(urls), key -> new RpcEndpointPool(key.stream()
+                .map(this::getEndpoint)
+                .collect(Collectors.toList())
+        ));
+    }
+
+    /**
+     * Batching service over the endpoint pool of these URLs.
+     */
+    public Web3jService getService(final List<String> urls) {
+        return services.computeIfAbsent(_key(urls), key -> new BatchingWeb3jService(getPool(key)));
+    }
+
+    private List<String> _key(final List<String> urls) {
+        return Collections.unmodifiableList(new ArrayList<>(urls));
+    }
+
+    public void close() throws IOException {
+        for (final Web3jService service : services.values()) {
+            service.close();
+        }
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+    }
+
+    private static class GzipRequestInterceptor implements Interceptor {
+
+        @Override
+        public okhttp3.Response intercept(final Chain chain) throws IOException {
+            final Request request = chain.request();
+            if (request.body() == null || request.header("Content-Encoding") != null) {
+                return chain.proceed(request);
+            }
+            final RequestBody body = request.body();
+            final Request compressed = request.newBuilder()
+                    .header("Content-Encoding", "gzip")
+                    .method(request.method(), new RequestBody() {
+                        @Override
+                        public MediaType contentType() {
+                            return body.contentType();
+                        }
+
+                        @Override
+                        public long contentLength() {
+                            return -1;
+                        }
+
+                        @Override
+                        public void writeTo(final BufferedSink sink) throws IOException {
+                            try (BufferedSink gzipSink = Okio.buffer(new GzipSink(sink))) {
+                                body.writeTo(gzipSink);
+                            }
+                        }
+                    })
+                    .build();
+            return chain.proceed(compressed);
+        }
+    }
+}
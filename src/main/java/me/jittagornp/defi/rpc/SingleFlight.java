@@ -0,0 +1,70 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.rpc;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Concurrent identical calls share one pending future, the key is released once it completes.
+ *
+ * @author jittagornp
+ */
+public class SingleFlight<K> {
+
+    private final Map<K, CompletableFuture<?>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong shared = new AtomicLong();
+
+    /**
+     * Key of a JSON-RPC call, block tag such as "latest" or a block number.
+     */
+    public static String callKey(final String method, final String to, final String data, final String blockTag) {
+        return method + ":" + (to == null ? "" : to.toLowerCase()) + ":" + (data == null ? "" : data) + "@" + blockTag;
+    }
+
+    public <V> CompletableFuture<V> execute(final K key, final Supplier<CompletableFuture<V>> supplier) {
+        final CompletableFuture<V> created = new CompletableFuture<>();
+        //Calls with the same key return the same type
+        @SuppressWarnings("unchecked")
+        final CompletableFuture<V> existing = (CompletableFuture<V>) inFlight.putIfAbsent(key, created);
+        if (existing != null) {
+            shared.incrementAndGet();
+            return _copy(existing);
+        }
+        try {
+            supplier.get().whenComplete((value, error) -> {
+                inFlight.remove(key, created);
+                if (error != null) {
+                    created.completeExceptionally(error);
+                } else {
+                    created.complete(value);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.remove(key, created);
+            created.completeExceptionally(e);
+        }
+        return _copy(created);
+    }
+
+    //A caller completing / cancelling its future must not affect the others
+    private static <V> CompletableFuture<V> _copy(final CompletableFuture<V> future) {
+        return future.thenApply(Function.identity());
+    }
+
+    /**
+     * Calls answered by an already pending future.
+     */
+    public long getShared() {
+        return shared.get();
+    }
+
+    public int getInFlight() {
+        return inFlight.size();
+    }
+}
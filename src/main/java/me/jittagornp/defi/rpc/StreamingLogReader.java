@@ -0,0 +1,182 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.rpc;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import me.jittagornp.defi.exception.CircuitBreakerOpenException;
+import me.jittagornp.defi.exception.ResponseErrorException;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.RequestBody;
+import okhttp3.ResponseBody;
+import org.web3j.protocol.ObjectMapperFactory;
+import org.web3j.protocol.core.DefaultBlockParameter;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.Response;
+import org.web3j.protocol.core.methods.request.EthFilter;
+import org.web3j.protocol.core.methods.response.EthLog;
+import org.web3j.protocol.core.methods.response.Log;
+import org.web3j.protocol.exceptions.ClientConnectionException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * eth_getLogs (single or JSON-RPC batch) decoded straight from the HTTP stream,
+ * each log is handed to the consumer as soon as it is parsed so the response is never held in memory.
+ *
+ * @author jittagornp
+ */
+public class StreamingLogReader {
+
+    //Public BSC nodes reject wider eth_getLogs ranges
+    public static final int BLOCK_RANGE = 5_000;
+    public static final int BATCH_SIZE = 4;
+
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    private final OkHttpClient client;
+    private final RpcEndpointPool pool;
+    private final ObjectMapper mapper = ObjectMapperFactory.getObjectMapper();
+
+    public StreamingLogReader(final OkHttpClient client, final RpcEndpointPool pool) {
+        this.client = client;
+        this.pool = pool;
+    }
+
+    public long getLogs(final EthFilter filter, final Consumer<Log> consumer) throws IOException {
+        return getLogs(Collections.singletonList(filter), consumer);
+    }
+
+    /**
+     * Logs of the block range, split into chunks of {@value #BLOCK_RANGE} blocks, {@value #BATCH_SIZE} chunks per batch.
+     *
+     * @param filter filter of one chunk, from its fromBlock / toBlock
+     * @return number of logs
+     */
+    public long getLogs(final BigInteger fromBlock, final BigInteger toBlock, final BiFunction<DefaultBlockParameter, DefaultBlockParameter, EthFilter> filter, final Consumer<Log> consumer) throws IOException {
+        final BigInteger range = BigInteger.valueOf(BLOCK_RANGE);
+        long count = 0;
+        BigInteger from = fromBlock;
+        while (from.compareTo(toBlock) <= 0) {
+            final List<EthFilter> filters = new ArrayList<>();
+            while (from.compareTo(toBlock) <= 0 && filters.size() < BATCH_SIZE) {
+                final BigInteger to = from.add(range).subtract(BigInteger.ONE).min(toBlock);
+                filters.add(filter.apply(DefaultBlockParameter.valueOf(from), DefaultBlockParameter.valueOf(to)));
+                from = to.add(BigInteger.ONE);
+            }
+            count = count + getLogs(filters, consumer);
+        }
+        return count;
+    }
+
+    /**
+     * One request per filter, sent as a single batch.
+     * Logs already handed to the consumer stay delivered when a later response in the batch is an error.
+     *
+     * @return number of logs
+     */
+    public long getLogs(final List<EthFilter> filters, final Consumer<Log> consumer) throws IOException {
+        final List<Request<?, EthLog>> requests = filters.stream()
+                .map(filter -> new Request<>("eth_getLogs", Collections.singletonList(filter), null, EthLog.class))
+                .collect(Collectors.toList());
+        final byte[] payload = requests.size() == 1
+                ? mapper.writeValueAsBytes(requests.get(0))
+                : mapper.writeValueAsBytes(requests);
+        final List<String> methods = Collections.nCopies(requests.size(), "eth_getLogs");
+        final RpcEndpoint endpoint = pool.select(Collections.emptySet());
+        if (endpoint == null || !endpoint.getCircuitBreaker().tryAcquire()) {
+            throw new CircuitBreakerOpenException("Circuit breaker open on all RPC endpoints " + pool.getEndpoints());
+        }
+        try {
+            _sleep(endpoint.acquire(methods));
+        } catch (IOException e) {
+            endpoint.getCircuitBreaker().release();
+            throw e;
+        }
+        final okhttp3.Request httpRequest = new okhttp3.Request.Builder()
+                .url(endpoint.getUrl())
+                .post(RequestBody.create(payload, JSON))
+                .build();
+        final long start = System.nanoTime();
+        try (okhttp3.Response httpResponse = client.newCall(httpRequest).execute()) {
+            final ResponseBody body = httpResponse.body();
+            if (!httpResponse.isSuccessful()) {
+                throw new ClientConnectionException("Invalid response received: " + httpResponse.code() + "; " + (body == null ? "" : body.string()));
+            }
+            if (body == null) {
+                throw new IOException("Empty response body");
+            }
+            final long count = _read(body.byteStream(), consumer);
+            endpoint.record(System.nanoTime() - start, false);
+            endpoint.onRateLimitSuccess(methods);
+            return count;
+        } catch (ResponseErrorException e) {
+            //The node answered, only the request was rejected
+            endpoint.record(System.nanoTime() - start, false);
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            endpoint.record(System.nanoTime() - start, true);
+            throw e;
+        }
+    }
+
+    private long _read(final InputStream input, final Consumer<Log> consumer) throws IOException {
+        long count = 0;
+        try (JsonParser parser = mapper.getFactory().createParser(input)) {
+            final JsonToken token = parser.nextToken();
+            if (token == JsonToken.START_OBJECT) {
+                return _readResponse(parser, consumer);
+            }
+            if (token != JsonToken.START_ARRAY) {
+                throw new IOException("Unexpected JSON-RPC response : " + token);
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                count = count + _readResponse(parser, consumer);
+            }
+        }
+        return count;
+    }
+
+    private long _readResponse(final JsonParser parser, final Consumer<Log> consumer) throws IOException {
+        long count = 0;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            final JsonToken value = parser.nextToken();
+            if ("result".equals(field) && value == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    consumer.accept(mapper.readValue(parser, Log.class));
+                    count = count + 1;
+                }
+            } else if ("error".equals(field) && value == JsonToken.START_OBJECT) {
+                throw new ResponseErrorException(mapper.readValue(parser, Response.Error.class));
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return count;
+    }
+
+    private static void _sleep(final long nanos) throws IOException {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for rate limit", e);
+        }
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.rpc;
+
+import io.reactivex.BackpressureStrategy;
+import io.reactivex.Flowable;
+import io.reactivex.FlowableEmitter;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.schedulers.Schedulers;
+import lombok.extern.slf4j.Slf4j;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.DefaultBlockParameter;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.methods.request.EthFilter;
+import org.web3j.protocol.core.methods.response.EthBlock;
+import org.web3j.protocol.core.methods.response.EthSubscribe;
+import org.web3j.protocol.core.methods.response.Log;
+import org.web3j.protocol.websocket.WebSocketService;
+import org.web3j.protocol.websocket.events.NewHead;
+import org.web3j.protocol.websocket.events.Notification;
+import org.web3j.utils.Numeric;
+
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * eth_subscribe (newHeads, logs) over one WebSocket connection, reconnect and resubscribe without gaps.
+ * Missed heads / logs while disconnected are backfilled through the request/response {@link Web3j},
+ * logs from the last head seen before the disconnect, in chunks of {@value StreamingLogReader#BLOCK_RANGE} blocks.
+ *
+ * @author jittagornp
+ */
+@Slf4j
+public class WebSocketSubscriber {
+
+    private static final long RECONNECT_MIN_MILLIS = 1_000;
+    private static final long RECONNECT_MAX_MILLIS = 30_000;
+    private static final int BACKFILL_MAX_BLOCKS = 1_000;
+    private static final int DEDUPLICATE_LOGS = 10_000;
+
+    private final String url;
+    private final Web3j web3j;
+    private final StreamingLogReader logReader;
+    private final ScheduledExecutorService scheduler;
+    private final List<Subscription<?>> subscriptions = new CopyOnWriteArrayList<>();
+
+    private final Object lock = new Object();
+    private WebSocketService service;
+    private Web3j wsWeb3j;
+    private Disposable headTracker;
+    //Highest head seen on the current / last connection, where the next backfill starts
+    private volatile long lastHead;
+    private int reconnectAttempts;
+    private boolean closed;
+
+    public WebSocketSubscriber(final String url, final Web3j web3j, final StreamingLogReader logReader) {
+        this.url = url;
+        this.web3j = web3j;
+        this.logReader = logReader;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "ws-" + UUID.randomUUID().toString().substring(0, 5));
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public Flowable<EthBlock.Block> newHeadFlowable() {
+        return Flowable.create(emitter -> _register(new HeadSubscription(emitter)), BackpressureStrategy.BUFFER);
+    }
+
+    /**
+     * Heads with their transaction hashes, as web3j blockFlowable(false) delivers them.
+     * newHeads carries the header only, the hashes are read with eth_getBlockByHash(hash, false) through the request/response {@link Web3j}.
+     */
+    public Flowable<EthBlock.Block> blockFlowable() {
+        return newHeadFlowable()
+                .concatMap(head -> !head.getTransactions().isEmpty()
+                        ? Flowable.just(head)
+                        : web3j.ethGetBlockByHash(head.getHash(), false)
+                        .flowable()
+                        .subscribeOn(Schedulers.io())
+                        .map(resp -> resp.hasError() || resp.getBlock() == null ? _warnHeaderOnly(head, resp.hasError() ? resp.getError().getMessage() : "not found") : resp.getBlock())
+                        .onErrorReturn(error -> _warnHeaderOnly(head, error.getMessage())));
+    }
+
+    private EthBlock.Block _warnHeaderOnly(final EthBlock.Block head, final String message) {
+        log.warn("Get block {} error, header only : {}", head.getNumber(), message);
+        return head;
+    }
+
+    public Flowable<Log> logFlowable(final List<String> addresses, final List<String> topics) {
+        return Flowable.create(emitter -> _register(new LogSubscription(emitter, addresses, topics)), BackpressureStrategy.BUFFER);
+    }
+
+    private void _register(final Subscription<?> subscription) {
+        subscription.emitter.setCancellable(() -> {
+            subscriptions.remove(subscription);
+            subscription.dispose();
+        });
+        subscriptions.add(subscription);
+        final Web3j current;
+        synchronized (lock) {
+            if (wsWeb3j == null) {
+                _connect();
+                return;
+            }
+            current = wsWeb3j;
+        }
+        subscription.subscribe(current, 0);
+    }
+
+    private void _connect() {
+        synchronized (lock) {
+            if (closed || wsWeb3j != null) {
+                return;
+            }
+            final long resumeFromBlock = lastHead;
+            try {
+                final long block = web3j.ethBlockNumber().send().getBlockNumber().longValue();
+                final WebSocketService ws = new WebSocketService(url, false);
+                ws.connect(
+                        message -> {
+                        },
+                        error -> log.warn("WebSocket {} error : {}", url, error.getMessage()),
+                        () -> _onDisconnect(ws)
+                );
+                service = ws;
+                wsWeb3j = Web3j.build(ws);
+                lastHead = Math.max(lastHead, block);
+                headTracker = wsWeb3j.newHeadsNotifications()
+                        .subscribe(
+                                notification -> lastHead = Math.max(lastHead, Numeric.toBigInt(notification.getParams().getResult().getNumber()).longValue()),
+                                error -> {
+                                }
+                        );
+                reconnectAttempts = 0;
+                log.info("WebSocket {} connected at block {}", url, block);
+                for (final Subscription<?> subscription : subscriptions) {
+                    subscription.subscribe(wsWeb3j, resumeFromBlock);
+                }
+            } catch (Exception e) {
+                log.warn("WebSocket {} connect error : {}", url, e.getMessage());
+                _scheduleReconnect();
+            }
+        }
+    }
+
+    private void _onDisconnect(final WebSocketService ws) {
+        synchronized (lock) {
+            if (closed || ws != service) {
+                return;
+            }
+            log.warn("WebSocket {} disconnected", url);
+            service = null;
+            wsWeb3j = null;
+            _disposeHeadTracker();
+            subscriptions.forEach(Subscription::dispose);
+            ws.close();
+            _scheduleReconnect();
+        }
+    }
+
+    private void _scheduleReconnect() {
+        final long delay = Math.min(RECONNECT_MAX_MILLIS, RECONNECT_MIN_MILLIS << Math.min(reconnectAttempts, 10));
+        reconnectAttempts = reconnectAttempts + 1;
+        scheduler.schedule(this::_connect, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void _disposeHeadTracker() {
+        if (headTracker != null) {
+            headTracker.dispose();
+            headTracker = null;
+        }
+    }
+
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            _disposeHeadTracker();
+            subscriptions.forEach(Subscription::dispose);
+            if (service != null) {
+                service.close();
+            }
+            service = null;
+            wsWeb3j = null;
+        }
+        scheduler.shutdown();
+    }
+
+    private abstract class Subscription<T> {
+
+        protected final FlowableEmitter<T> emitter;
+        private Disposable disposable;
+
+        protected Subscription(final FlowableEmitter<T> emitter) {
+            this.emitter = emitter;
+        }
+
+        protected abstract Disposable open(final Web3j ws, final WebSocketService service, final Consumer<Throwable> onError);
+
+        protected abstract void backfill(final long fromBlock);
+
+        private synchronized void subscribe(final Web3j ws, final long resumeFromBlock) {
+            dispose();
+            final WebSocketService current = service;
+            disposable = open(ws, current, error -> {
+                log.warn("WebSocket {} subscription error : {}", url, error.getMessage());
+                _onDisconnect(current);
+            });
+            if (resumeFromBlock > 0) {
+                scheduler.execute(() -> backfill(resumeFromBlock));
+            }
+        }
+
+        private synchronized void dispose() {
+            if (disposable != null) {
+                disposable.dispose();
+                disposable = null;
+            }
+        }
+    }
+
+    private class HeadSubscription extends Subscription<EthBlock.Block> {
+
+        private long lastNumber;
+        private String lastHash;
+
+        private HeadSubscription(final FlowableEmitter<EthBlock.Block> emitter) {
+            super(emitter);
+        }
+
+        @Override
+        protected Disposable open(final Web3j ws, final WebSocketService service, final Consumer<Throwable> onError) {
+            return ws.newHeadsNotifications()
+                    .subscribe(
+                            notification -> _onHead(_toBlock(notification.getParams().getResult())),
+                            onError::accept
+                    );
+        }
+
+        @Override
+        protected void backfill(final long fromBlock) {
+            //Gaps are filled when the next head arrives
+        }
+
+        private synchronized void _onHead(final EthBlock.Block block) {
+            final long number = block.getNumber().longValue();
+            if (lastNumber > 0 && number > lastNumber + 1) {
+                final long from = Math.max(lastNumber + 1, number - BACKFILL_MAX_BLOCKS);
+                for (long n = from; n < number; n++) {
+                    try {
+                        final EthBlock missed = web3j.ethGetBlockByNumber(DefaultBlockParameter.valueOf(BigInteger.valueOf(n)), false).send();
+                        if (!missed.hasError() && missed.getBlock() != null) {
+                            emitter.onNext(missed.getBlock());
+                        }
+                    } catch (Exception e) {
+                        log.warn("Backfill block {} error : {}", n, e.getMessage());
+                    }
+                }
+            }
+            if (number > lastNumber || !Objects.equals(block.getHash(), lastHash)) {
+                emitter.onNext(block);
+            }
+            lastNumber = Math.max(lastNumber, number);
+            lastHash = block.getHash();
+        }
+
+        private EthBlock.Block _toBlock(final NewHead head) {
+            final EthBlock.Block block = new EthBlock.Block();
+            block.setNumber(head.getNumber());
+            block.setHash(head.getHash());
+            block.setParentHash(head.getParentHash());
+            block.setNonce(head.getNonce());
+            block.setSha3Uncles(head.getSha3Uncles());
+            block.setLogsBloom(head.getLogsBloom());
+            block.setTransactionsRoot(head.getTransactionRoot());
+            block.setStateRoot(head.getStateRoot());
+            block.setReceiptsRoot(head.getReceiptRoot());
+            block.setMiner(head.getMiner());
+            block.setDifficulty(head.getDifficulty());
+            block.setExtraData(head.getExtraData());
+            block.setGasLimit(head.getGasLimit());
+            block.setGasUsed(head.getGasUsed());
+            block.setTimestamp(head.getTimestamp());
+            block.setTransactions(Collections.emptyList());
+            block.setUncles(Collections.emptyList());
+            return block;
+        }
+    }
+
+    private class LogSubscription extends Subscription<Log> {
+
+        private final List<String> addresses;
+        private final List<String> topics;
+        private final Set<String> seen = Collections.newSetFromMap(new LinkedHashMap<String, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Boolean> eldest) {
+                return size() > DEDUPLICATE_LOGS;
+            }
+        });
+        private long lastBlock;
+
+        private LogSubscription(final FlowableEmitter<Log> emitter, final List<String> addresses, final List<String> topics) {
+            super(emitter);
+            this.addresses = addresses;
+            this.topics = topics;
+        }
+
+        /**
+         * As Web3j.logsNotifications, but decoded into the response {@link Log} so the reorg flag "removed" is kept
+         */
+        @Override
+        protected Disposable open(final Web3j ws, final WebSocketService service, final Consumer<Throwable> onError) {
+            final Map<String, Object> params = new HashMap<>();
+            if (!addresses.isEmpty()) {
+                params.put("address", addresses);
+            }
+            if (!topics.isEmpty()) {
+                params.put("topics", topics);
+            }
+            return service.subscribe(
+                    new Request<>("eth_subscribe", Arrays.asList("logs", params), service, EthSubscribe.class),
+                    "eth_unsubscribe",
+                    LogsNotification.class
+            ).subscribe(
+                    notification -> _onLog(notification.getParams().getResult()),
+                    onError::accept
+            );
+        }
+
+        @Override
+        protected void backfill(final long fromBlock) {
+            final long from = Math.max(fromBlock, lastBlock);
+            try {
+                final BigInteger to = web3j.ethBlockNumber().send().getBlockNumber();
+                logReader.getLogs(BigInteger.valueOf(from), to, (fromParameter, toParameter) -> {
+                    final EthFilter filter = new EthFilter(fromParameter, toParameter, addresses);
+                    topics.forEach(filter::addSingleTopic);
+                    return filter;
+                }, this::_onLog);
+            } catch (Exception e) {
+                log.warn("Backfill logs from block {} error : {}", from, e.getMessage());
+            }
+        }
+
+        private synchronized void _onLog(final Log value) {
+            //A log removed by reorg comes again with removed = true
+            if (!seen.add(value.getTransactionHash() + ":" + value.getLogIndexRaw() + ":" + value.isRemoved())) {
+                return;
+            }
+            if (value.getBlockNumberRaw() != null) {
+                lastBlock = Math.max(lastBlock, value.getBlockNumber().longValue());
+            }
+            emitter.onNext(value);
+        }
+    }
+
+    static class LogsNotification extends Notification<Log> {
+
+    }
+}
@@ -0,0 +1,164 @@
+package me.jittagornp.defi.smartcontract;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import org.web3j.abi.TypeReference;
+import org.web3j.abi.datatypes.Address;
+import org.web3j.abi.datatypes.Bool;
+import org.web3j.abi.datatypes.DynamicArray;
+import org.web3j.abi.datatypes.DynamicBytes;
+import org.web3j.abi.datatypes.DynamicStruct;
+import org.web3j.abi.datatypes.Function;
+import org.web3j.abi.datatypes.Type;
+import org.web3j.abi.datatypes.generated.Uint256;
+import org.web3j.crypto.Credentials;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.RemoteFunctionCall;
+import org.web3j.tx.Contract;
+import org.web3j.tx.TransactionManager;
+import org.web3j.tx.gas.ContractGasProvider;
+
+/**
+ * <p>Auto generated code.
+ * <p><strong>Do not modify!</strong>
+ * <p>Please use the <a href="https://docs.web3j.io/command_line.html">web3j command line tools</a>,
+ * or the org.web3j.codegen.SolidityFunctionWrapperGenerator in the
+ * <a href="https://github.com/web3j/web3j/tree/master/codegen">codegen module</a> to update.
+ *
+ * <p>Generated with web3j version 1.4.1.
+ */
+@SuppressWarnings("rawtypes")
+public class Multicall extends Contract {
+    public static final String BINARY = "Bin file was not provided";
+
+    public static final String FUNC_AGGREGATE3 = "aggregate3";
+
+    public static final String FUNC_GETBLOCKNUMBER = "getBlockNumber";
+
+    public static final String FUNC_GETCHAINID = "getChainId";
+
+    public static final String FUNC_GETCURRENTBLOCKTIMESTAMP = "getCurrentBlockTimestamp";
+
+    public static final String FUNC_GETETHBALANCE = "getEthBalance";
+
+    @Deprecated
+    protected Multicall(String contractAddress, Web3j web3j, Credentials credentials, BigInteger gasPrice, BigInteger gasLimit) {
+        super(BINARY, contractAddress, web3j, credentials, gasPrice, gasLimit);
+    }
+
+    protected Multicall(String contractAddress, Web3j web3j, Credentials credentials, ContractGasProvider contractGasProvider) {
+        super(BINARY, contractAddress, web3j, credentials, contractGasProvider);
+    }
+
+    @Deprecated
+    protected Multicall(String contractAddress, Web3j web3j, TransactionManager transactionManager, BigInteger gasPrice, BigInteger gasLimit) {
+        super(BINARY, contractAddress, web3j, transactionManager, gasPrice, gasLimit);
+    }
+
+    protected Multicall(String contractAddress, Web3j web3j, TransactionManager transactionManager, ContractGasProvider contractGasProvider) {
+        super(BINARY, contractAddress, web3j, transactionManager, contractGasProvider);
+    }
+
+    public RemoteFunctionCall<List> aggregate3(List<Call3> calls) {
+        final Function function = new Function(FUNC_AGGREGATE3,
+                Arrays.<Type>asList(new org.web3j.abi.datatypes.DynamicArray<Call3>(Call3.class, calls)),
+                Arrays.<TypeReference<?>>asList(new TypeReference<DynamicArray<Result>>() {}));
+        return new RemoteFunctionCall<List>(function,
+                new Callable<List>() {
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public List call() throws Exception {
+                        List<Type> result = (List<Type>) executeCallSingleValueReturn(function, List.class);
+                        return convertToNative(result);
+                    }
+                });
+    }
+
+    public RemoteFunctionCall<BigInteger> getBlockNumber() {
+        final Function function = new Function(FUNC_GETBLOCKNUMBER,
+                Arrays.<Type>asList(),
+                Arrays.<TypeReference<?>>asList(new TypeReference<Uint256>() {}));
+        return executeRemoteCallSingleValueReturn(function, BigInteger.class);
+    }
+
+    public RemoteFunctionCall<BigInteger> getChainId() {
+        final Function function = new Function(FUNC_GETCHAINID,
+                Arrays.<Type>asList(),
+                Arrays.<TypeReference<?>>asList(new TypeReference<Uint256>() {}));
+        return executeRemoteCallSingleValueReturn(function, BigInteger.class);
+    }
+
+    public RemoteFunctionCall<BigInteger> getCurrentBlockTimestamp() {
+        final Function function = new Function(FUNC_GETCURRENTBLOCKTIMESTAMP,
+                Arrays.<Type>asList(),
+                Arrays.<TypeReference<?>>asList(new TypeReference<Uint256>() {}));
+        return executeRemoteCallSingleValueReturn(function, BigInteger.class);
+    }
+
+    public RemoteFunctionCall<BigInteger> getEthBalance(String addr) {
+        final Function function = new Function(FUNC_GETETHBALANCE,
+                Arrays.<Type>asList(new org.web3j.abi.datatypes.Address(160, addr)),
+                Arrays.<TypeReference<?>>asList(new TypeReference<Uint256>() {}));
+        return executeRemoteCallSingleValueReturn(function, BigInteger.class);
+    }
+
+    @Deprecated
+    public static Multicall load(String contractAddress, Web3j web3j, Credentials credentials, BigInteger gasPrice, BigInteger gasLimit) {
+        return new Multicall(contractAddress, web3j, credentials, gasPrice, gasLimit);
+    }
+
+    @Deprecated
+    public static Multicall load(String contractAddress, Web3j web3j, TransactionManager transactionManager, BigInteger gasPrice, BigInteger gasLimit) {
+        return new Multicall(contractAddress, web3j, transactionManager, gasPrice, gasLimit);
+    }
+
+    public static Multicall load(String contractAddress, Web3j web3j, Credentials credentials, ContractGasProvider contractGasProvider) {
+        return new Multicall(contractAddress, web3j, credentials, contractGasProvider);
+    }
+
+    public static Multicall load(String contractAddress, Web3j web3j, TransactionManager transactionManager, ContractGasProvider contractGasProvider) {
+        return new Multicall(contractAddress, web3j, transactionManager, contractGasProvider);
+    }
+
+    public static class Call3 extends DynamicStruct {
+        public String target;
+
+        public Boolean allowFailure;
+
+        public byte[] callData;
+
+        public Call3(String target, Boolean allowFailure, byte[] callData) {
+            super(new org.web3j.abi.datatypes.Address(target),new org.web3j.abi.datatypes.Bool(allowFailure),new org.web3j.abi.datatypes.DynamicBytes(callData));
+            this.target = target;
+            this.allowFailure = allowFailure;
+            this.callData = callData;
+        }
+
+        public Call3(Address target, Bool allowFailure, DynamicBytes callData) {
+            super(target,allowFailure,callData);
+            this.target = target.getValue();
+            this.allowFailure = allowFailure.getValue();
+            this.callData = callData.getValue();
+        }
+    }
+
+    public static class Result extends DynamicStruct {
+        public Boolean success;
+
+        public byte[] returnData;
+
+        public Result(Boolean success, byte[] returnData) {
+            super(new org.web3j.abi.datatypes.Bool(success),new org.web3j.abi.datatypes.DynamicBytes(returnData));
+            this.success = success;
+            this.returnData = returnData;
+        }
+
+        public Result(Bool success, DynamicBytes returnData) {
+            super(success,returnData);
+            this.success = success.getValue();
+            this.returnData = returnData.getValue();
+        }
+    }
+}
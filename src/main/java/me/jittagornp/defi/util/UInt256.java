@@ -0,0 +1,472 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.util;
+
+import java.math.BigInteger;
+
+/**
+ * Mutable unsigned 256-bit integer (Solidity uint256) in four long limbs, for hot math loops
+ * that would otherwise allocate a BigInteger per operation.
+ * <p>
+ * Operations write the result into this instance and return it, an overflow, underflow or division by zero
+ * throws {@link ArithmeticException} and leaves the value unchanged. Arguments may be this instance.
+ * Division works in a scratch array allocated on first use, so reuse instances in loops. Not thread-safe.
+ *
+ * @author jittagornp
+ */
+public final class UInt256 implements Comparable<UInt256> {
+
+    public static final BigInteger MAX_VALUE = BigInteger.ONE.shiftLeft(256).subtract(BigInteger.ONE);
+
+    private static final long MASK_32 = 0xFFFFFFFFL;
+
+    //Scratch layout : dividend / 512-bit product (9 limbs), divisor (4), quotient (8), operand copies (4 + 4)
+    private static final int U = 0;
+    private static final int V = 9;
+    private static final int Q = 13;
+    private static final int A = 21;
+    private static final int B = 25;
+    private static final int WORK_SIZE = 29;
+
+    //Least significant first
+    private long u0;
+    private long u1;
+    private long u2;
+    private long u3;
+    private long[] work;
+
+    public UInt256() {
+
+    }
+
+    public static UInt256 valueOf(final long value) {
+        return new UInt256().set(value);
+    }
+
+    public static UInt256 valueOf(final BigInteger value) {
+        return new UInt256().set(value);
+    }
+
+    public UInt256 copy() {
+        return new UInt256().set(this);
+    }
+
+    public UInt256 set(final UInt256 value) {
+        return _set(value.u0, value.u1, value.u2, value.u3);
+    }
+
+    public UInt256 set(final long value) {
+        if (value < 0) {
+            throw new ArithmeticException("uint256 underflow : " + value);
+        }
+        return _set(value, 0, 0, 0);
+    }
+
+    public UInt256 set(final BigInteger value) {
+        if (value.signum() < 0 || value.bitLength() > 256) {
+            throw new ArithmeticException("Out of uint256 range : " + value);
+        }
+        if (value.bitLength() < 64) {
+            return _set(value.longValue(), 0, 0, 0);
+        }
+        return _set(
+                value.longValue(),
+                value.shiftRight(64).longValue(),
+                value.shiftRight(128).longValue(),
+                value.shiftRight(192).longValue()
+        );
+    }
+
+    private UInt256 _set(final long r0, final long r1, final long r2, final long r3) {
+        u0 = r0;
+        u1 = r1;
+        u2 = r2;
+        u3 = r3;
+        return this;
+    }
+
+    public boolean isZero() {
+        return (u0 | u1 | u2 | u3) == 0;
+    }
+
+    public UInt256 add(final UInt256 value) {
+        final long r0 = u0 + value.u0;
+        long carry = _carry(r0, u0);
+        final long s1 = u1 + value.u1;
+        final long r1 = s1 + carry;
+        carry = _carry(s1, u1) | _carry(r1, s1);
+        final long s2 = u2 + value.u2;
+        final long r2 = s2 + carry;
+        carry = _carry(s2, u2) | _carry(r2, s2);
+        final long s3 = u3 + value.u3;
+        final long r3 = s3 + carry;
+        carry = _carry(s3, u3) | _carry(r3, s3);
+        if (carry != 0) {
+            throw new ArithmeticException("uint256 overflow");
+        }
+        return _set(r0, r1, r2, r3);
+    }
+
+    public UInt256 sub(final UInt256 value) {
+        final long r0 = u0 - value.u0;
+        long borrow = _carry(u0, value.u0);
+        final long d1 = u1 - value.u1;
+        final long r1 = d1 - borrow;
+        borrow = _carry(u1, value.u1) | _carry(d1, borrow);
+        final long d2 = u2 - value.u2;
+        final long r2 = d2 - borrow;
+        borrow = _carry(u2, value.u2) | _carry(d2, borrow);
+        final long d3 = u3 - value.u3;
+        final long r3 = d3 - borrow;
+        borrow = _carry(u3, value.u3) | _carry(d3, borrow);
+        if (borrow != 0) {
+            throw new ArithmeticException("uint256 underflow");
+        }
+        return _set(r0, r1, r2, r3);
+    }
+
+    /**
+     * Multiply by a small factor (e.g. fee or basis points) without the scratch array
+     */
+    public UInt256 mul(final long value) {
+        if (value < 0) {
+            throw new ArithmeticException("uint256 underflow : " + value);
+        }
+        final long r0 = u0 * value;
+        long carry = _multiplyHigh(u0, value);
+        final long p1 = u1 * value;
+        final long r1 = p1 + carry;
+        carry = _multiplyHigh(u1, value) + _carry(r1, p1);
+        final long p2 = u2 * value;
+        final long r2 = p2 + carry;
+        carry = _multiplyHigh(u2, value) + _carry(r2, p2);
+        final long p3 = u3 * value;
+        final long r3 = p3 + carry;
+        carry = _multiplyHigh(u3, value) + _carry(r3, p3);
+        if (carry != 0) {
+            throw new ArithmeticException("uint256 overflow");
+        }
+        return _set(r0, r1, r2, r3);
+    }
+
+    public UInt256 mul(final UInt256 value) {
+        final long[] w = _work();
+        _multiply(w, value);
+        if ((w[U + 4] | w[U + 5] | w[U + 6] | w[U + 7]) != 0) {
+            throw new ArithmeticException("uint256 overflow");
+        }
+        return _set(w[U], w[U + 1], w[U + 2], w[U + 3]);
+    }
+
+    /**
+     * Floor division
+     */
+    public UInt256 div(final UInt256 value) {
+        final long[] w = _work();
+        w[U] = u0;
+        w[U + 1] = u1;
+        w[U + 2] = u2;
+        w[U + 3] = u3;
+        _divide(w, 4, value);
+        return _set(w[Q], w[Q + 1], w[Q + 2], w[Q + 3]);
+    }
+
+    /**
+     * this * multiplier / divisor (floor) with a 512-bit intermediate product, like FullMath.mulDiv,
+     * only the quotient has to fit in 256 bits.
+     */
+    public UInt256 mulDiv(final UInt256 multiplier, final UInt256 divisor) {
+        final long[] w = _work();
+        final long d0 = divisor.u0;
+        final long d1 = divisor.u1;
+        final long d2 = divisor.u2;
+        final long d3 = divisor.u3;
+        final int length = _multiply(w, multiplier);
+        w[B] = d0;
+        w[B + 1] = d1;
+        w[B + 2] = d2;
+        w[B + 3] = d3;
+        _divide(w, length, null);
+        if ((w[Q + 4] | w[Q + 5] | w[Q + 6] | w[Q + 7]) != 0) {
+            throw new ArithmeticException("uint256 overflow");
+        }
+        return _set(w[Q], w[Q + 1], w[Q + 2], w[Q + 3]);
+    }
+
+    private long[] _work() {
+        if (work == null) {
+            work = new long[WORK_SIZE];
+        }
+        return work;
+    }
+
+    /**
+     * Full 512-bit product of this and value into w[U .. U + 7]
+     *
+     * @return limbs that may be non zero
+     */
+    private int _multiply(final long[] w, final UInt256 value) {
+        w[A] = u0;
+        w[A + 1] = u1;
+        w[A + 2] = u2;
+        w[A + 3] = u3;
+        w[B] = value.u0;
+        w[B + 1] = value.u1;
+        w[B + 2] = value.u2;
+        w[B + 3] = value.u3;
+        final int sizeA = _size(w, A);
+        final int sizeB = _size(w, B);
+        for (int i = 0; i < 8; i++) {
+            w[U + i] = 0;
+        }
+        for (int i = 0; i < sizeA; i++) {
+            final long a = w[A + i];
+            if (a == 0) {
+                continue;
+            }
+            long carry = 0;
+            for (int j = 0; j < sizeB; j++) {
+                final long b = w[B + j];
+                final long low = a * b;
+                final long sum = w[U + i + j] + low;
+                final long result = sum + carry;
+                carry = _multiplyHigh(a, b) + _carry(sum, low) + _carry(result, sum);
+                w[U + i + j] = result;
+            }
+            w[U + i + sizeB] = carry;
+        }
+        return sizeA + sizeB;
+    }
+
+    private static int _size(final long[] w, final int offset) {
+        int size = 4;
+        while (size > 0 && w[offset + size - 1] == 0) {
+            size--;
+        }
+        return size;
+    }
+
+    /**
+     * Knuth algorithm D in base 2^64, dividend w[U .. U + length - 1], quotient into w[Q .. Q + 7]
+     *
+     * @param divisor null when already copied to w[B .. B + 3]
+     */
+    private static void _divide(final long[] w, final int length, final UInt256 divisor) {
+        if (divisor != null) {
+            w[B] = divisor.u0;
+            w[B + 1] = divisor.u1;
+            w[B + 2] = divisor.u2;
+            w[B + 3] = divisor.u3;
+        }
+        final int n = _size(w, B);
+        if (n == 0) {
+            throw new ArithmeticException("Division by zero");
+        }
+        for (int i = 0; i < 8; i++) {
+            w[Q + i] = 0;
+        }
+        int size = length;
+        while (size > 0 && w[U + size - 1] == 0) {
+            size--;
+        }
+        if (size < n) {
+            return;
+        }
+        if (n == 1) {
+            final long d = w[B];
+            long remainder = 0;
+            for (int i = size - 1; i >= 0; i--) {
+                final long q = _divideUnsigned128(remainder, w[U + i], d);
+                remainder = w[U + i] - q * d;
+                w[Q + i] = q;
+            }
+            return;
+        }
+        //Normalize so the top divisor limb has its high bit set
+        final int shift = Long.numberOfLeadingZeros(w[B + n - 1]);
+        for (int i = n - 1; i > 0; i--) {
+            w[V + i] = shift == 0 ? w[B + i] : (w[B + i] << shift) | (w[B + i - 1] >>> (64 - shift));
+        }
+        w[V] = w[B] << shift;
+        w[U + size] = shift == 0 ? 0 : w[U + size - 1] >>> (64 - shift);
+        for (int i = size - 1; i > 0; i--) {
+            w[U + i] = shift == 0 ? w[U + i] : (w[U + i] << shift) | (w[U + i - 1] >>> (64 - shift));
+        }
+        w[U] = w[U] << shift;
+
+        final long vTop = w[V + n - 1];
+        final long vNext = w[V + n - 2];
+        for (int j = size - n; j >= 0; j--) {
+            final long uTop = w[U + j + n];
+            final long uNext = w[U + j + n - 1];
+            long qhat;
+            long rhat;
+            boolean rhatOverflow = false;
+            if (uTop == vTop) {
+                qhat = -1L;
+                rhat = uNext + vTop;
+                rhatOverflow = _carry(rhat, uNext) != 0;
+            } else {
+                qhat = _divideUnsigned128(uTop, uNext, vTop);
+                rhat = uNext - qhat * vTop;
+            }
+            //At most two corrections : qhat * vNext > rhat : u[j + n - 2]
+            while (!rhatOverflow) {
+                final long productHigh = _multiplyHigh(qhat, vNext);
+                final long productLow = qhat * vNext;
+                final int compareHigh = Long.compareUnsigned(productHigh, rhat);
+                if (compareHigh < 0 || (compareHigh == 0 && Long.compareUnsigned(productLow, w[U + j + n - 2]) <= 0)) {
+                    break;
+                }
+                qhat = qhat - 1;
+                final long next = rhat + vTop;
+                rhatOverflow = _carry(next, rhat) != 0;
+                rhat = next;
+            }
+            //u[j .. j + n] -= qhat * v
+            long carry = 0;
+            long borrow = 0;
+            for (int i = 0; i < n; i++) {
+                final long low = qhat * w[V + i];
+                final long product = low + carry;
+                carry = _multiplyHigh(qhat, w[V + i]) + _carry(product, low);
+                final long u = w[U + i + j];
+                final long difference = u - product;
+                w[U + i + j] = difference - borrow;
+                borrow = _carry(u, product) | _carry(difference, borrow);
+            }
+            final long u = w[U + j + n];
+            final long difference = u - carry;
+            w[U + j + n] = difference - borrow;
+            borrow = _carry(u, carry) | _carry(difference, borrow);
+            if (borrow != 0) {
+                //qhat was one too large, add v back
+                qhat = qhat - 1;
+                long addCarry = 0;
+                for (int i = 0; i < n; i++) {
+                    final long sum = w[U + i + j] + w[V + i];
+                    final long result = sum + addCarry;
+                    addCarry = _carry(sum, w[V + i]) | _carry(result, sum);
+                    w[U + i + j] = result;
+                }
+                w[U + j + n] = w[U + j + n] + addCarry;
+            }
+            w[Q + j] = qhat;
+        }
+    }
+
+    /**
+     * 1 when the unsigned sum wrapped around (sum &lt; operand), also the borrow of a - b as _carry(a, b)
+     */
+    private static long _carry(final long sum, final long operand) {
+        return Long.compareUnsigned(sum, operand) < 0 ? 1 : 0;
+    }
+
+    /**
+     * High 64 bits of the unsigned 128-bit product
+     */
+    private static long _multiplyHigh(final long x, final long y) {
+        final long x0 = x & MASK_32;
+        final long x1 = x >>> 32;
+        final long y0 = y & MASK_32;
+        final long y1 = y >>> 32;
+        final long p01 = x0 * y1;
+        final long p10 = x1 * y0;
+        final long middle = ((x0 * y0) >>> 32) + (p01 & MASK_32) + (p10 & MASK_32);
+        return x1 * y1 + (p01 >>> 32) + (p10 >>> 32) + (middle >>> 32);
+    }
+
+    /**
+     * Unsigned (high : low) / divisor, requires high &lt; divisor (Hacker's Delight divlu)
+     */
+    private static long _divideUnsigned128(final long high, final long low, final long divisor) {
+        if (high == 0) {
+            return Long.divideUnsigned(low, divisor);
+        }
+        final long base = 1L << 32;
+        final int shift = Long.numberOfLeadingZeros(divisor);
+        final long v = divisor << shift;
+        final long vn1 = v >>> 32;
+        final long vn0 = v & MASK_32;
+        final long un32 = shift == 0 ? high : (high << shift) | (low >>> (64 - shift));
+        final long un10 = low << shift;
+        final long un1 = un10 >>> 32;
+        final long un0 = un10 & MASK_32;
+
+        long q1 = Long.divideUnsigned(un32, vn1);
+        long rhat = un32 - q1 * vn1;
+        while (q1 >= base || Long.compareUnsigned(q1 * vn0, base * rhat + un1) > 0) {
+            q1 = q1 - 1;
+            rhat = rhat + vn1;
+            if (rhat >= base) {
+                break;
+            }
+        }
+        final long un21 = un32 * base + un1 - q1 * v;
+        long q0 = Long.divideUnsigned(un21, vn1);
+        rhat = un21 - q0 * vn1;
+        while (q0 >= base || Long.compareUnsigned(q0 * vn0, base * rhat + un0) > 0) {
+            q0 = q0 - 1;
+            rhat = rhat + vn1;
+            if (rhat >= base) {
+                break;
+            }
+        }
+        return q1 * base + q0;
+    }
+
+    public BigInteger toBigInteger() {
+        if ((u1 | u2 | u3) == 0 && u0 >= 0) {
+            return BigInteger.valueOf(u0);
+        }
+        final byte[] bytes = new byte[33];
+        _putLong(bytes, 1, u3);
+        _putLong(bytes, 9, u2);
+        _putLong(bytes, 17, u1);
+        _putLong(bytes, 25, u0);
+        return new BigInteger(bytes);
+    }
+
+    private static void _putLong(final byte[] bytes, final int offset, final long value) {
+        for (int i = 0; i < 8; i++) {
+            bytes[offset + i] = (byte) (value >>> (56 - 8 * i));
+        }
+    }
+
+    @Override
+    public int compareTo(final UInt256 other) {
+        if (u3 != other.u3) {
+            return Long.compareUnsigned(u3, other.u3);
+        }
+        if (u2 != other.u2) {
+            return Long.compareUnsigned(u2, other.u2);
+        }
+        if (u1 != other.u1) {
+            return Long.compareUnsigned(u1, other.u1);
+        }
+        return Long.compareUnsigned(u0, other.u0);
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof UInt256)) {
+            return false;
+        }
+        final UInt256 value = (UInt256) other;
+        return u0 == value.u0 && u1 == value.u1 && u2 == value.u2 && u3 == value.u3;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(u0) * 31 * 31 * 31 + Long.hashCode(u1) * 31 * 31 + Long.hashCode(u2) * 31 + Long.hashCode(u3);
+    }
+
+    @Override
+    public String toString() {
+        return toBigInteger().toString();
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi.util;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * Token amount (wei) &lt;-&gt; decimal conversion by scale shifting, no string round trip and no power of ten computed per call.
+ * Values that fit in a long are converted with primitive arithmetic.
+ * <p>
+ * {@link #fromWei(BigInteger, int)} returns the same value and scale as value / 10^decimals with an exact BigDecimal divide,
+ * {@link #toWei(BigDecimal, int)} truncates toward zero like BigDecimal.toBigInteger().
+ *
+ * @author jittagornp
+ */
+public final class WeiConverter {
+
+    /**
+     * uint256 max has 78 digits
+     */
+    public static final int MAX_DECIMALS = 77;
+
+    private static final BigInteger[] BIG_TEN_POWERS = new BigInteger[MAX_DECIMALS + 1];
+    private static final long[] LONG_TEN_POWERS = new long[19];
+
+    static {
+        BIG_TEN_POWERS[0] = BigInteger.ONE;
+        for (int i = 1; i <= MAX_DECIMALS; i++) {
+            BIG_TEN_POWERS[i] = BIG_TEN_POWERS[i - 1].multiply(BigInteger.TEN);
+        }
+        LONG_TEN_POWERS[0] = 1;
+        for (int i = 1; i < LONG_TEN_POWERS.length; i++) {
+            LONG_TEN_POWERS[i] = LONG_TEN_POWERS[i - 1] * 10;
+        }
+    }
+
+    private WeiConverter() {
+
+    }
+
+    /**
+     * 10^n, cached for 0..{@value #MAX_DECIMALS}
+     */
+    public static BigInteger pow10(final int n) {
+        if (n >= 0 && n <= MAX_DECIMALS) {
+            return BIG_TEN_POWERS[n];
+        }
+        return BigInteger.TEN.pow(n);
+    }
+
+    public static BigDecimal fromWei(final BigInteger value, final int decimals) {
+        if (decimals < 0) {
+            return new BigDecimal(value.multiply(pow10(-decimals)));
+        }
+        if (value.bitLength() < 64) {
+            long unscaled = value.longValue();
+            int scale = decimals;
+            while (scale > 0 && unscaled % 10 == 0) {
+                unscaled = unscaled / 10;
+                scale = scale - 1;
+            }
+            return BigDecimal.valueOf(unscaled, scale);
+        }
+        final BigDecimal result = new BigDecimal(value, decimals).stripTrailingZeros();
+        return result.scale() < 0 ? result.setScale(0) : result;
+    }
+
+    public static BigInteger toWei(final BigDecimal value, final int decimals) {
+        //value = unscaled * 10^-scale, wei = unscaled * 10^(decimals - scale)
+        final int shift = decimals - value.scale();
+        if (value.precision() < 19) {
+            final long unscaled = value.unscaledValue().longValue();
+            if (shift <= 0) {
+                return BigInteger.valueOf(-shift < LONG_TEN_POWERS.length ? unscaled / LONG_TEN_POWERS[-shift] : 0);
+            }
+            if (shift < LONG_TEN_POWERS.length && Math.abs(unscaled) <= Long.MAX_VALUE / LONG_TEN_POWERS[shift]) {
+                return BigInteger.valueOf(unscaled * LONG_TEN_POWERS[shift]);
+            }
+        }
+        if (shift >= 0) {
+            return value.unscaledValue().multiply(pow10(shift));
+        }
+        if (-shift <= MAX_DECIMALS) {
+            return value.unscaledValue().divide(BIG_TEN_POWERS[-shift]);
+        }
+        return value.scaleByPowerOfTen(decimals).toBigInteger();
+    }
+}
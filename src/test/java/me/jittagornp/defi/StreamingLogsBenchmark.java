@@ -0,0 +1,165 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi;
+
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+import me.jittagornp.defi.rpc.RpcEndpointPool;
+import me.jittagornp.defi.rpc.StreamingLogReader;
+import me.jittagornp.defi.smartcontract.ERC20;
+import okhttp3.OkHttpClient;
+import org.web3j.abi.EventEncoder;
+import org.web3j.abi.EventValues;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.DefaultBlockParameterName;
+import org.web3j.protocol.core.methods.request.EthFilter;
+import org.web3j.protocol.core.methods.response.EthLog;
+import org.web3j.protocol.core.methods.response.Log;
+import org.web3j.protocol.http.HttpService;
+import org.web3j.tx.Contract;
+import org.web3j.utils.Numeric;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Peak heap and throughput of eth_getLogs decoding, web3j (whole document) vs {@link StreamingLogReader}.
+ * Serves a synthetic Transfer log response from a local HTTP server.
+ * <p>
+ * Run with a fixed heap for comparable numbers, e.g. -Xmx2g
+ *
+ * @author jittagornp
+ */
+@Slf4j
+public class StreamingLogsBenchmark {
+
+    private static final int LOGS = 200_000;
+    private static final int ROUNDS = 3;
+    private static final String TOKEN = "0xe9e7cea3dedca5984780bafc599bd69add087d56";
+
+    public static void main(String[] args) throws Exception {
+        final File file = _generate(LOGS);
+        final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            try (InputStream input = exchange.getRequestBody()) {
+                while (input.read() >= 0) {
+                    //drain
+                }
+            }
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, file.length());
+            try (OutputStream output = exchange.getResponseBody()) {
+                Files.copy(file.toPath(), output);
+            }
+        });
+        server.start();
+        final String url = "http://127.0.0.1:" + server.getAddress().getPort();
+        log.info("Response size {} MB, {} logs", file.length() / (1024 * 1024), LOGS);
+
+        final OkHttpClient client = new OkHttpClient.Builder()
+                .readTimeout(5, TimeUnit.MINUTES)
+                .build();
+        final Web3j web3j = Web3j.build(new HttpService(url, client));
+        final StreamingLogReader reader = new StreamingLogReader(client, RpcEndpointPool.of(Collections.singletonList(url)));
+        final EthFilter filter = new EthFilter(DefaultBlockParameterName.EARLIEST, DefaultBlockParameterName.LATEST, TOKEN);
+
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                _measure("web3j", consumer -> {
+                    final EthLog ethLog = web3j.ethGetLogs(filter).send();
+                    for (final EthLog.LogResult<?> result : ethLog.getLogs()) {
+                        consumer.accept((Log) result.get());
+                    }
+                });
+                _measure("streaming", consumer -> reader.getLogs(filter, consumer));
+            }
+        } finally {
+            server.stop(0);
+            file.delete();
+        }
+    }
+
+    private static void _measure(final String name, final Run run) throws Exception {
+        System.gc();
+        final Runtime runtime = Runtime.getRuntime();
+        final long baseline = runtime.totalMemory() - runtime.freeMemory();
+        final AtomicLong peak = new AtomicLong(baseline);
+        final Thread sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                peak.accumulateAndGet(runtime.totalMemory() - runtime.freeMemory(), Math::max);
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        sampler.setDaemon(true);
+        sampler.start();
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong total = new AtomicLong();
+        final long start = System.nanoTime();
+        run.run(value -> {
+            final EventValues eventValues = Contract.staticExtractEventParameters(ERC20.TRANSFER_EVENT, value);
+            final DeFi.TransferEvent event = DeFi.TransferEvent.builder()
+                    .token(value.getAddress())
+                    .from((String) eventValues.getIndexedValues().get(0).getValue())
+                    .to((String) eventValues.getIndexedValues().get(1).getValue())
+                    .value((BigInteger) eventValues.getNonIndexedValues().get(0).getValue())
+                    .log(value)
+                    .build();
+            count.incrementAndGet();
+            total.addAndGet(event.getValue().longValue());
+        });
+        final long elapsedNanos = System.nanoTime() - start;
+        sampler.interrupt();
+        sampler.join();
+        log.info("{} : {} events, {} ms, {} events/s, peak heap +{} MB",
+                name,
+                count.get(),
+                TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+                (long) (count.get() / (elapsedNanos / 1e9)),
+                (peak.get() - baseline) / (1024 * 1024)
+        );
+    }
+
+    private static File _generate(final int logs) throws IOException {
+        final File file = File.createTempFile("eth_getLogs", ".json");
+        final String topic = EventEncoder.encode(ERC20.TRANSFER_EVENT);
+        try (Writer writer = new BufferedWriter(new FileWriter(file))) {
+            writer.write("{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":[");
+            for (int i = 0; i < logs; i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                final String from = Numeric.toHexStringWithPrefixZeroPadded(BigInteger.valueOf(i), 64);
+                final String to = Numeric.toHexStringWithPrefixZeroPadded(BigInteger.valueOf(i + 1), 64);
+                writer.write("{\"address\":\"" + TOKEN + "\""
+                        + ",\"topics\":[\"" + topic + "\",\"" + from + "\",\"" + to + "\"]"
+                        + ",\"data\":\"" + Numeric.toHexStringWithPrefixZeroPadded(BigInteger.valueOf(i), 64) + "\""
+                        + ",\"blockNumber\":\"" + Numeric.toHexStringWithPrefix(BigInteger.valueOf(10_000_000 + i / 100)) + "\""
+                        + ",\"transactionHash\":\"" + Numeric.toHexStringWithPrefixZeroPadded(BigInteger.valueOf(i), 64) + "\""
+                        + ",\"transactionIndex\":\"0x0\""
+                        + ",\"blockHash\":\"" + Numeric.toHexStringWithPrefixZeroPadded(BigInteger.valueOf(i / 100), 64) + "\""
+                        + ",\"logIndex\":\"" + Numeric.toHexStringWithPrefix(BigInteger.valueOf(i % 100)) + "\""
+                        + ",\"removed\":false}");
+            }
+            writer.write("]}");
+        }
+        return file;
+    }
+
+    @FunctionalInterface
+    private interface Run {
+
+        void run(final Consumer<Log> consumer) throws Exception;
+
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi;
+
+import lombok.extern.slf4j.Slf4j;
+import me.jittagornp.defi.amm.ConstantProduct;
+import me.jittagornp.defi.util.UInt256;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of getAmountOut over many pools, BigInteger vs {@link UInt256} with reused instances.
+ * Checks both give the same amount before measuring.
+ *
+ * @author jittagornp
+ */
+@Slf4j
+public class UInt256Benchmark {
+
+    private static final int POOLS = 10_000;
+    private static final int ITERATIONS = 100;
+    private static final int ROUNDS = 5;
+    private static final int FEE_BPS = 25;
+
+    private static final BigInteger[] amountIns = new BigInteger[POOLS];
+    private static final BigInteger[] reserveIns = new BigInteger[POOLS];
+    private static final BigInteger[] reserveOuts = new BigInteger[POOLS];
+    private static final UInt256[] uintAmountIns = new UInt256[POOLS];
+    private static final UInt256[] uintReserveIns = new UInt256[POOLS];
+    private static final UInt256[] uintReserveOuts = new UInt256[POOLS];
+    private static long blackhole;
+
+    public static void main(String[] args) {
+        final Random random = new Random(42);
+        for (int i = 0; i < POOLS; i++) {
+            //Reserves up to uint112, amounts from dust to whale
+            amountIns[i] = new BigInteger(40 + random.nextInt(50), random).add(BigInteger.ONE);
+            reserveIns[i] = new BigInteger(60 + random.nextInt(52), random).add(BigInteger.ONE);
+            reserveOuts[i] = new BigInteger(60 + random.nextInt(52), random).add(BigInteger.ONE);
+            uintAmountIns[i] = UInt256.valueOf(amountIns[i]);
+            uintReserveIns[i] = UInt256.valueOf(reserveIns[i]);
+            uintReserveOuts[i] = UInt256.valueOf(reserveOuts[i]);
+        }
+        final UInt256 scratch = new UInt256();
+        final UInt256 result = new UInt256();
+        _verify(scratch, result);
+        for (int round = 0; round < ROUNDS; round++) {
+            _measure("getAmountOut BigInteger", () -> {
+                for (int i = 0; i < POOLS; i++) {
+                    blackhole += ConstantProduct.getAmountOut(amountIns[i], reserveIns[i], reserveOuts[i], FEE_BPS).bitLength();
+                }
+            });
+            _measure("getAmountOut UInt256   ", () -> {
+                for (int i = 0; i < POOLS; i++) {
+                    blackhole += ConstantProduct.getAmountOut(uintAmountIns[i], uintReserveIns[i], uintReserveOuts[i], FEE_BPS, scratch, result).hashCode();
+                }
+            });
+        }
+        log.info("blackhole {}", blackhole);
+    }
+
+    private static void _verify(final UInt256 scratch, final UInt256 result) {
+        for (int i = 0; i < POOLS; i++) {
+            final BigInteger expected = ConstantProduct.getAmountOut(amountIns[i], reserveIns[i], reserveOuts[i], FEE_BPS);
+            final BigInteger actual = ConstantProduct.getAmountOut(uintAmountIns[i], uintReserveIns[i], uintReserveOuts[i], FEE_BPS, scratch, result).toBigInteger();
+            if (!expected.equals(actual)) {
+                throw new IllegalStateException("getAmountOut " + amountIns[i] + " : " + expected + " != " + actual);
+            }
+        }
+        log.info("Verified {} pools", POOLS);
+    }
+
+    private static void _measure(final String name, final Runnable run) {
+        final long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            run.run();
+        }
+        final long elapsedNanos = System.nanoTime() - start;
+        log.info("{} : {} ns/op, {} ms",
+                name,
+                elapsedNanos / ((long) ITERATIONS * POOLS),
+                TimeUnit.NANOSECONDS.toMillis(elapsedNanos)
+        );
+    }
+}
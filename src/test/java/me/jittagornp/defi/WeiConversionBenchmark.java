@@ -0,0 +1,107 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.defi;
+
+import lombok.extern.slf4j.Slf4j;
+import me.jittagornp.defi.util.WeiConverter;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of wei &lt;-&gt; decimal conversion, string + BigDecimal.TEN.pow per call vs {@link WeiConverter}.
+ * Checks both give the same value and scale before measuring.
+ *
+ * @author jittagornp
+ */
+@Slf4j
+public class WeiConversionBenchmark {
+
+    private static final int VALUES = 10_000;
+    private static final int ITERATIONS = 50;
+    private static final int ROUNDS = 5;
+    private static final int[] DECIMALS = {6, 9, 18};
+
+    private static final BigInteger[] weiValues = new BigInteger[VALUES];
+    private static final BigDecimal[] decimalValues = new BigDecimal[VALUES];
+    private static final int[] decimals = new int[VALUES];
+    private static long blackhole;
+
+    public static void main(String[] args) {
+        final Random random = new Random(42);
+        for (int i = 0; i < VALUES; i++) {
+            decimals[i] = DECIMALS[i % DECIMALS.length];
+            //Mix of amounts that fit in a long and whale sized ones
+            weiValues[i] = new BigInteger(i % 4 == 0 ? 96 : 62, random);
+            decimalValues[i] = new BigDecimal(new BigInteger(i % 4 == 0 ? 96 : 50, random), random.nextInt(20));
+        }
+        _verify();
+        for (int round = 0; round < ROUNDS; round++) {
+            _measure("fromWei  string + pow", () -> {
+                for (int i = 0; i < VALUES; i++) {
+                    blackhole += _fromWeiOld(weiValues[i], decimals[i]).scale();
+                }
+            });
+            _measure("fromWei  WeiConverter", () -> {
+                for (int i = 0; i < VALUES; i++) {
+                    blackhole += WeiConverter.fromWei(weiValues[i], decimals[i]).scale();
+                }
+            });
+            _measure("toWei    multiply pow", () -> {
+                for (int i = 0; i < VALUES; i++) {
+                    blackhole += _toWeiOld(decimalValues[i], decimals[i]).bitLength();
+                }
+            });
+            _measure("toWei    WeiConverter", () -> {
+                for (int i = 0; i < VALUES; i++) {
+                    blackhole += WeiConverter.toWei(decimalValues[i], decimals[i]).bitLength();
+                }
+            });
+        }
+        log.info("blackhole {}", blackhole);
+    }
+
+    private static BigDecimal _fromWeiOld(final BigInteger value, final int decimals) {
+        return new BigDecimal(value.toString()).divide(BigDecimal.TEN.pow(decimals));
+    }
+
+    private static BigInteger _toWeiOld(final BigDecimal value, final int decimals) {
+        return value.multiply(BigDecimal.TEN.pow(decimals)).toBigInteger();
+    }
+
+    private static void _verify() {
+        for (int i = 0; i < VALUES; i++) {
+            for (final BigInteger wei : new BigInteger[]{weiValues[i], weiValues[i].negate(), BigInteger.ZERO, WeiConverter.pow10(decimals[i] + 2)}) {
+                final BigDecimal expected = _fromWeiOld(wei, decimals[i]);
+                final BigDecimal actual = WeiConverter.fromWei(wei, decimals[i]);
+                if (!expected.equals(actual)) {
+                    throw new IllegalStateException("fromWei " + wei + " / 10^" + decimals[i] + " : " + expected + " != " + actual);
+                }
+            }
+            for (final BigDecimal value : new BigDecimal[]{decimalValues[i], decimalValues[i].negate(), new BigDecimal("1E+30")}) {
+                final BigInteger expected = _toWeiOld(value, decimals[i]);
+                final BigInteger actual = WeiConverter.toWei(value, decimals[i]);
+                if (!expected.equals(actual)) {
+                    throw new IllegalStateException("toWei " + value + " * 10^" + decimals[i] + " : " + expected + " != " + actual);
+                }
+            }
+        }
+        log.info("Verified {} values", VALUES);
+    }
+
+    private static void _measure(final String name, final Runnable run) {
+        final long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            run.run();
+        }
+        final long elapsedNanos = System.nanoTime() - start;
+        log.info("{} : {} ns/op, {} ms",
+                name,
+                elapsedNanos / ((long) ITERATIONS * VALUES),
+                TimeUnit.NANOSECONDS.toMillis(elapsedNanos)
+        );
+    }
+}